@@ -21,12 +21,22 @@
 
 package com.sangupta.swift;
 
-import java.util.ArrayList;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
 import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.sangupta.swift.netty.NettyServer;
+import com.sangupta.swift.netty.Transport;
 import com.sangupta.swift.netty.http.HttpStaticFileServer;
 import com.sangupta.swift.netty.proxy.ReverseProxyServer;
 import com.sangupta.swift.netty.spdy.SpdyStaticFileServer;
@@ -35,6 +45,11 @@ import com.sangupta.swift.netty.spdy.SpdyStaticFileServer;
  * Swift is the main server, that runs multiple servers
  * in a single swift instance.
  * 
+ * All servers share one group of threads accepting connections and one
+ * serving them, so the number of threads follows the number of cores rather
+ * than the number of servers. A server may still ask for loops of its own,
+ * see {@link SwiftServer#withIsolatedEventLoops(int)}.
+ * 
  * @author sangupta
  *
  */
@@ -42,6 +57,38 @@ public class Swift {
 	
 	private Set<SwiftServer> registeredServers = new HashSet<SwiftServer>();
 	
+	private int bossThreads = 1;
+	
+	/**
+	 * Threads serving connections, <code>0</code> for one per core
+	 */
+	private int workerThreads = 0;
+	
+	/**
+	 * The transport asked for, <code>null</code> for the best one available
+	 */
+	private Transport preferredTransport = null;
+	
+	/**
+	 * The transport the shared loops run on, once started
+	 */
+	private volatile Transport transport;
+	
+	/**
+	 * Accepts connections for all servers sharing loops, once started
+	 */
+	private EventLoopGroup bossGroup;
+	
+	/**
+	 * Serves the connections of all servers sharing loops, once started
+	 */
+	private EventLoopGroup workerGroup;
+	
+	/**
+	 * The servers started for each configuration
+	 */
+	private final Map<SwiftServer, NettyServer> nettyServers = new ConcurrentHashMap<SwiftServer, NettyServer>();
+	
 	public Swift addServer(SwiftServer server) {
 		if(server == null) {
 			throw new IllegalArgumentException("SwiftServer to be added cannot be null");
@@ -54,40 +101,194 @@ public class Swift {
 		
 		return this;
 	}
+	
+	/**
+	 * Size the event loops shared by all servers.
+	 * 
+	 * @param bossThreads
+	 *            the number of threads accepting connections, one is plenty
+	 *            for all but the busiest servers; servers with several
+	 *            acceptors spread them over these threads
+	 * 
+	 * @param workerThreads
+	 *            the number of threads serving connections, <code>0</code>
+	 *            for one per core
+	 * 
+	 * @return
+	 */
+	public Swift withEventLoopThreads(int bossThreads, int workerThreads) {
+		if(bossThreads <= 0 || workerThreads < 0) {
+			throw new IllegalArgumentException("Boss threads must be positive and worker threads cannot be negative");
+		}
+		
+		this.bossThreads = bossThreads;
+		this.workerThreads = workerThreads;
+		return this;
+	}
+	
+	/**
+	 * Run the event loops shared by all servers over the given transport, if
+	 * it is available on this machine. By default, or if it is not, the best
+	 * transport available is used.
+	 * 
+	 * @param transport
+	 * @return
+	 */
+	public Swift withTransport(Transport transport) {
+		if(transport == null) {
+			throw new IllegalArgumentException("Transport cannot be null");
+		}
+		
+		this.preferredTransport = transport;
+		return this;
+	}
 
 	/**
-	 * Start operating
+	 * Start operating. All servers are started side by side and this returns
+	 * right away. Servers that have warm-up enabled fill their metadata
+	 * index, and preload their hottest files, before they start listening.
 	 * 
+	 * @return a future that completes once every server accepts connections,
+	 *         or fails as soon as one of them cannot be started; the others
+	 *         are left running, call {@link #shutdown()} to stop them
 	 */
-	public void start() {
+	public Future<Void> start() {
 		if(registeredServers.isEmpty()) {
 			System.out.println("No server configuration has been created, nothing to do... exiting!");
-			return;
+			return GlobalEventExecutor.INSTANCE.newSucceededFuture(null);
 		}
 		
-		List<NettyServer> nettyServers = new ArrayList<NettyServer>();
+		if(this.bossGroup != null) {
+			throw new IllegalStateException("Swift has already been started");
+		}
+		
+		this.transport = Transport.select(this.preferredTransport);
+		this.bossGroup = this.transport.newEventLoopGroup(this.bossThreads, new DefaultThreadFactory("swift-boss"));
+		this.workerGroup = this.transport.newEventLoopGroup(NettyServer.getWorkerThreads(this.workerThreads), new DefaultThreadFactory("swift-worker"));
+		System.out.println("Shared event loops run over " + this.transport);
+		
+		final Promise<Void> startFuture = GlobalEventExecutor.INSTANCE.newPromise();
+		final AtomicInteger starting = new AtomicInteger(registeredServers.size());
+		
+		FutureListener<Void> listener = new FutureListener<Void>() {
+			
+			@Override
+			public void operationComplete(Future<Void> future) {
+				if(!future.isSuccess()) {
+					startFuture.tryFailure(future.cause());
+					return;
+				}
+				
+				if(starting.decrementAndGet() == 0 && startFuture.trySuccess(null)) {
+					System.out.println("All servers have been configured and started!");
+				}
+			}
+			
+		};
+		
 		for(SwiftServer server : registeredServers) {
-			NettyServer ns = initializeServer(server);
+			NettyServer ns;
+			try {
+				ns = initializeServer(server);
+			} catch(RuntimeException e) {
+				startFuture.tryFailure(e);
+				continue;
+			}
+			
 			if(ns == null) {
-				// TODO: throw some exception
-				return;
+				startFuture.tryFailure(new IllegalStateException("Server on port " + server.getListenPort() + " has no document root, archive or proxy destination"));
+				continue;
 			}
 			
-			nettyServers.add(ns);
+			this.nettyServers.put(server, ns);
+			ns.start().addListener(listener);
 		}
 		
-		System.out.println("All servers have been configured and started!");
+		return startFuture;
 	}
 
 	/**
-	 * Hold this thread till swift execution ends
+	 * Hold this thread till all servers have stopped, and then release the
+	 * event loops they shared. The thread is parked meanwhile.
 	 * 
 	 */
 	public void join() {
 		System.out.println("Waiting for server to shutdown!");
-		do {
-			
-		} while(true);
+		for(NettyServer ns : this.nettyServers.values()) {
+			ns.join();
+		}
+		
+		this.shutdownEventLoops();
+	}
+	
+	/**
+	 * Shut down all servers, and the event loops they share once they have
+	 * stopped.
+	 * 
+	 */
+	public void shutdown() {
+		for(NettyServer ns : this.nettyServers.values()) {
+			ns.shutdownGracefully();
+		}
+		
+		for(NettyServer ns : this.nettyServers.values()) {
+			ns.join();
+		}
+		
+		this.shutdownEventLoops();
+	}
+	
+	/**
+	 * Check if every server accepts connections.
+	 * 
+	 * @return
+	 */
+	public boolean isHealthy() {
+		if(this.nettyServers.isEmpty()) {
+			return false;
+		}
+		
+		for(NettyServer ns : this.nettyServers.values()) {
+			if(ns.getState() != NettyServer.State.RUNNING) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return the state of each server that has been started, by its
+	 *         configuration
+	 */
+	public Map<SwiftServer, NettyServer.State> getServerStates() {
+		Map<SwiftServer, NettyServer.State> states = new LinkedHashMap<SwiftServer, NettyServer.State>();
+		for(Map.Entry<SwiftServer, NettyServer> entry : this.nettyServers.entrySet()) {
+			states.put(entry.getKey(), entry.getValue().getState());
+		}
+		
+		return states;
+	}
+	
+	/**
+	 * @return the transport the shared event loops run on, or
+	 *         <code>null</code> if not started yet; each server tells the
+	 *         one it runs on
+	 */
+	public Transport getTransport() {
+		return this.transport;
+	}
+	
+	/**
+	 * Return the server started for the given configuration, with its counts
+	 * of open connections and of requests being served, say to follow how a
+	 * shutdown is draining.
+	 * 
+	 * @param server
+	 * @return the server, or <code>null</code> if none was started for it
+	 */
+	public NettyServer getNettyServer(SwiftServer server) {
+		return this.nettyServers.get(server);
 	}
 
 	// Internal methods follow
@@ -98,21 +299,39 @@ public class Swift {
 	 * @param server
 	 */
 	private NettyServer initializeServer(SwiftServer server) {
-		if(server.isDocumentRootExists()) {
+		// null groups make the server create its own
+		EventLoopGroup bossGroup = null;
+		EventLoopGroup workerGroup = null;
+		if(!server.isIsolatedEventLoops()) {
+			bossGroup = this.bossGroup;
+			workerGroup = this.workerGroup;
+		}
+		
+		if(server.isDocumentRootExists() || server.isArchiveRootExists()) {
 			// check for spdy
 			if(server.isSpdyEnabled()) {
-				return new SpdyStaticFileServer(server);
+				return new SpdyStaticFileServer(server, bossGroup, workerGroup);
 			}
 			
 			// normal plain vanilla http server
-			return new HttpStaticFileServer(server);
+			return new HttpStaticFileServer(server, bossGroup, workerGroup);
 		}
 		
 		if(server.isProxyEnabled()) {
-			return new ReverseProxyServer(server);
+			return new ReverseProxyServer(server, bossGroup, workerGroup);
 		}
 		
 		return null;
 	}
+	
+	private void shutdownEventLoops() {
+		if(this.bossGroup != null) {
+			this.bossGroup.shutdownGracefully();
+		}
+		
+		if(this.workerGroup != null) {
+			this.workerGroup.shutdownGracefully();
+		}
+	}
 
 }
@@ -22,11 +22,21 @@
 package com.sangupta.swift;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import com.sangupta.jerry.util.AssertUtils;
 import com.sangupta.jerry.util.UriUtils;
 import com.sangupta.jerry.util.UrlManipulator;
+import com.sangupta.swift.cache.ExistenceFilter;
+import com.sangupta.swift.cache.FileMetadataIndex;
+import com.sangupta.swift.netty.FileIoExecutor;
+import com.sangupta.swift.netty.MimeTypeRegistry;
+import com.sangupta.swift.netty.Transport;
 
 /**
  * A single endpoint to which we can listen.
@@ -46,6 +56,10 @@ public class SwiftServer {
 	
 	private boolean documentRootExists = false;
 	
+	private File archiveRoot = null;
+	
+	private boolean archiveRootExists = false;
+	
 	private boolean spdyEnabled = false;
 	
 	private boolean sslEnabled = false;
@@ -55,6 +69,80 @@ public class SwiftServer {
 	private boolean proxyEnabled = false;
 	
 	private String proxyDestination = null;
+	
+	private boolean fileCacheEnabled = false;
+	
+	private long fileCacheMaxBytes = 0;
+	
+	private long fileCacheMaxFileSize = 0;
+	
+	private boolean fileWatcherEnabled = true;
+	
+	private long metadataPollMillis = FileMetadataIndex.DEFAULT_POLL_MILLIS;
+	
+	private int metadataIndexMaxEntries = FileMetadataIndex.DEFAULT_MAX_ENTRIES;
+	
+	private final Map<String, String> mimeTypes = new LinkedHashMap<String, String>();
+	
+	private boolean precompressedFilesEnabled = false;
+	
+	private boolean contentHashETagsEnabled = false;
+	
+	private final Map<Integer, File> errorPages = new LinkedHashMap<Integer, File>();
+	
+	private int openFileCacheMax = 1000;
+	
+	private long openFileCacheIdleMillis = 20000;
+	
+	private int listingCacheMaxEntries = 200000;
+	
+	private boolean warmUpEnabled = false;
+	
+	private int warmUpPreloadFiles = 0;
+	
+	private File indexSnapshot = null;
+	
+	private boolean notFoundFilterEnabled = false;
+	
+	private int fileIoThreads = 16;
+	
+	private int fileIoQueueSize = 1024;
+	
+	private boolean uploadsEnabled = false;
+	
+	private long maxUploadSize = 0;
+	
+	private boolean isolatedEventLoops = false;
+	
+	private int isolatedWorkerThreads = 0;
+	
+	private long drainTimeoutMillis = 30000;
+	
+	private Transport transport = null;
+	
+	private int acceptors = 1;
+	
+	/**
+	 * The pool running blocking file system calls, once the server is running
+	 */
+	private volatile FileIoExecutor fileIoExecutor;
+	
+	/**
+	 * The filter of paths under the document root, once the server is running
+	 */
+	private volatile ExistenceFilter existenceFilter;
+	
+	private boolean compressionEnabled = false;
+	
+	private int compressionLevel = 6;
+	
+	private int compressionMinSize = 1024;
+	
+	private long compressionCacheSize = 32 * 1024 * 1024;
+	
+	private final List<String> compressibleMimeTypes = new ArrayList<String>(Arrays.asList("text/*", "application/javascript", "application/json", 
+																			"application/xml", "application/xhtml+xml", "application/rss+xml", "application/atom+xml", 
+																			"application/manifest+json", "application/wasm", "image/svg+xml", "image/x-icon"));
 
 	public SwiftServer listen(int port) {
 		this.listenPort = port;
@@ -112,6 +200,458 @@ public class SwiftServer {
 		return this;
 	}
 
+	/**
+	 * Serve files straight out of a ZIP or JAR archive, without extracting
+	 * it. The archive is mapped into memory and its central directory read
+	 * once at startup. Stored entries are sent as they are, without copying;
+	 * deflated entries are sent gzip encoded to clients that accept it and
+	 * inflated on the fly for the rest.
+	 * 
+	 * If a document root is set as well, paths not found in the archive are
+	 * looked up there.
+	 * 
+	 * @param archive
+	 * @return
+	 */
+	public SwiftServer withArchiveRoot(File archive) {
+		this.archiveRoot = archive;
+		this.archiveRootExists = archive != null && archive.isFile() && archive.canRead();
+		return this;
+	}
+	
+	/**
+	 * Keep small, frequently requested files in memory so that repeated
+	 * requests do not hit the disk.
+	 * 
+	 * @param maxBytes
+	 *            the total number of bytes the cache may hold
+	 * 
+	 * @param maxFileSize
+	 *            the largest file that will be cached
+	 * 
+	 * @return
+	 */
+	public SwiftServer enableFileCache(long maxBytes, long maxFileSize) {
+		if(maxBytes <= 0 || maxFileSize <= 0) {
+			throw new IllegalArgumentException("File cache sizes must be positive");
+		}
+		
+		this.fileCacheEnabled = true;
+		this.fileCacheMaxBytes = maxBytes;
+		this.fileCacheMaxFileSize = maxFileSize;
+		return this;
+	}
+
+	/**
+	 * Detect changes under the document root by polling instead of using
+	 * native file watching. Useful for network file systems that do not
+	 * report changes.
+	 * 
+	 * @param intervalMillis
+	 *            how long file metadata is trusted before being read again
+	 * 
+	 * @return
+	 */
+	public SwiftServer usePollingFileWatcher(long intervalMillis) {
+		if(intervalMillis < 0) {
+			throw new IllegalArgumentException("Polling interval cannot be negative");
+		}
+		
+		this.fileWatcherEnabled = false;
+		this.metadataPollMillis = intervalMillis;
+		return this;
+	}
+	
+	/**
+	 * Tune how many paths the metadata of is kept in memory. Paths not asked
+	 * for in a while are dropped first once the index is full.
+	 * 
+	 * @param maxEntries
+	 *            the most paths to keep
+	 * 
+	 * @return
+	 */
+	public SwiftServer withMetadataIndexSize(int maxEntries) {
+		if(maxEntries <= 0) {
+			throw new IllegalArgumentException("Metadata index size must be positive");
+		}
+		
+		this.metadataIndexMaxEntries = maxEntries;
+		return this;
+	}
+
+	/**
+	 * Serve files with the given extension using the given MIME type. This
+	 * overrides the built-in mapping, if any.
+	 * 
+	 * @param extension
+	 *            the file extension, with or without the leading dot
+	 * 
+	 * @param mimeType
+	 *            the MIME type to send in the <code>Content-Type</code> header
+	 * 
+	 * @return
+	 */
+	public SwiftServer withMimeType(String extension, String mimeType) {
+		if(AssertUtils.isEmpty(mimeType)) {
+			throw new IllegalArgumentException("MIME type cannot be empty");
+		}
+		
+		this.mimeTypes.put(MimeTypeRegistry.normalizeExtension(extension), mimeType);
+		return this;
+	}
+
+	/**
+	 * Serve <code>.br</code> and <code>.gz</code> siblings of a file, when
+	 * present, to clients that accept the encoding.
+	 * 
+	 * @return
+	 */
+	public SwiftServer enablePrecompressedFiles() {
+		this.precompressedFilesEnabled = true;
+		return this;
+	}
+
+	/**
+	 * Compute a hash of the content of every file served, in the background,
+	 * and use it as the entity tag once available. Till then, and when
+	 * disabled, the tag is derived from the inode, length and modification
+	 * time of the file.
+	 * 
+	 * @return
+	 */
+	public SwiftServer enableContentHashETags() {
+		this.contentHashETagsEnabled = true;
+		return this;
+	}
+	
+	/**
+	 * Send the given file instead of the built-in page for responses with the
+	 * given error status. The file is read once, when the server starts.
+	 * 
+	 * @param statusCode
+	 *            the HTTP error status, 400 or above
+	 * 
+	 * @param page
+	 *            the file to send
+	 * 
+	 * @return
+	 */
+	public SwiftServer withErrorPage(int statusCode, File page) {
+		if(statusCode < 400 || statusCode > 599) {
+			throw new IllegalArgumentException("Error pages can only be set for 4xx and 5xx status codes");
+		}
+		
+		if(page == null || !page.isFile() || !page.canRead()) {
+			throw new IllegalArgumentException("Error page must be a readable file: " + page);
+		}
+		
+		this.errorPages.put(statusCode, page);
+		return this;
+	}
+	
+	/**
+	 * Tune how many files are kept open between requests, so that hot files
+	 * are not opened again for every response.
+	 * 
+	 * @param maxOpen
+	 *            the most files to keep open
+	 * 
+	 * @param idleMillis
+	 *            how long a file that is not asked for is kept open
+	 * 
+	 * @return
+	 */
+	public SwiftServer withOpenFileCache(int maxOpen, long idleMillis) {
+		if(maxOpen <= 0 || idleMillis <= 0) {
+			throw new IllegalArgumentException("Open file cache limits must be positive");
+		}
+		
+		this.openFileCacheMax = maxOpen;
+		this.openFileCacheIdleMillis = idleMillis;
+		return this;
+	}
+	
+	/**
+	 * Tune how many folder entries are kept in memory for directory listings.
+	 * A folder is read again only once its modification time changes, and
+	 * folders with more entries than this are read for every request.
+	 * 
+	 * @param maxEntries
+	 *            the most entries to keep, across all folders
+	 * 
+	 * @return
+	 */
+	public SwiftServer withListingCache(int maxEntries) {
+		if(maxEntries <= 0) {
+			throw new IllegalArgumentException("Listing cache size must be positive");
+		}
+		
+		this.listingCacheMaxEntries = maxEntries;
+		return this;
+	}
+	
+	/**
+	 * Warm up before accepting connections: read the metadata of everything
+	 * under the document root, or restore it from the index snapshot if one
+	 * is configured, and load the files asked for most often in the last run
+	 * into the file cache, if it is enabled.
+	 * 
+	 * @param preloadFiles
+	 *            how many of the hottest files to load, zero for none
+	 * 
+	 * @return
+	 */
+	public SwiftServer enableWarmUp(int preloadFiles) {
+		if(preloadFiles < 0) {
+			throw new IllegalArgumentException("Number of files to preload cannot be negative");
+		}
+		
+		this.warmUpEnabled = true;
+		this.warmUpPreloadFiles = preloadFiles;
+		return this;
+	}
+	
+	/**
+	 * Persist the metadata index to the given file on shutdown, and restore it
+	 * from there when warming up, instead of walking the document root again.
+	 * 
+	 * @param snapshot
+	 * 
+	 * @return
+	 */
+	public SwiftServer withIndexSnapshot(File snapshot) {
+		if(snapshot == null) {
+			throw new IllegalArgumentException("Snapshot file cannot be null");
+		}
+		
+		this.indexSnapshot = snapshot;
+		return this;
+	}
+	
+	/**
+	 * Keep a filter of every path under the document root, and answer
+	 * requests for paths it does not hold with a <code>404</code> without
+	 * touching the file system. This takes the sting out of scanners probing
+	 * for files that were never there.
+	 * 
+	 * The filter is built by walking the document root when warming up, which
+	 * this turns on, and is kept current by the file watcher; it is not used
+	 * with a polling watcher. A file requested within moments of being created
+	 * may be reported missing till the watcher catches up.
+	 * 
+	 * @return
+	 */
+	public SwiftServer enableNotFoundFilter() {
+		this.notFoundFilterEnabled = true;
+		this.warmUpEnabled = true;
+		return this;
+	}
+	
+	/**
+	 * Size the pool that runs blocking file system calls, such as opening
+	 * files and listing folders, away from the event loop. Requests that
+	 * cannot be queued are answered with a <code>503</code>.
+	 * 
+	 * @param threads
+	 *            the number of threads, raise this for slow or network file
+	 *            systems
+	 * 
+	 * @param queueSize
+	 *            how many calls may wait for a thread
+	 * 
+	 * @return
+	 */
+	public SwiftServer withFileIoThreads(int threads, int queueSize) {
+		if(threads <= 0 || queueSize <= 0) {
+			throw new IllegalArgumentException("File I/O threads and queue size must be positive");
+		}
+		
+		this.fileIoThreads = threads;
+		this.fileIoQueueSize = queueSize;
+		return this;
+	}
+	
+	/**
+	 * Accept <code>PUT</code> and <code>POST</code> requests that store their
+	 * body as the file at the request path, creating folders as needed. The
+	 * body is streamed to a temporary file next to the target and moved into
+	 * place once complete, so a file is never served half written. Reading
+	 * from the client is paused while the disk falls behind.
+	 * 
+	 * Uploads are not authenticated in any way; only enable this on a server
+	 * that cannot be reached by untrusted clients.
+	 * 
+	 * @param maxUploadSize
+	 *            the largest body accepted, in bytes; larger uploads are
+	 *            answered with a <code>413</code>
+	 * 
+	 * @return
+	 */
+	public SwiftServer enableUploads(long maxUploadSize) {
+		if(maxUploadSize <= 0) {
+			throw new IllegalArgumentException("Maximum upload size must be positive");
+		}
+		
+		this.uploadsEnabled = true;
+		this.maxUploadSize = maxUploadSize;
+		return this;
+	}
+	
+	/**
+	 * Run this server on event loops of its own, rather than on the ones
+	 * {@link Swift} shares between all its servers, so that a busy neighbour
+	 * cannot hold up its connections. A server started on its own, outside of
+	 * {@link Swift}, always has loops of its own.
+	 * 
+	 * @param workerThreads
+	 *            the number of threads serving connections, <code>0</code>
+	 *            for one per core
+	 * 
+	 * @return
+	 */
+	public SwiftServer withIsolatedEventLoops(int workerThreads) {
+		if(workerThreads < 0) {
+			throw new IllegalArgumentException("Worker threads cannot be negative");
+		}
+		
+		this.isolatedEventLoops = true;
+		this.isolatedWorkerThreads = workerThreads;
+		return this;
+	}
+	
+	/**
+	 * Run this server over the given transport when it has event loops of
+	 * its own, if the transport is available on this machine. By default, or
+	 * if it is not, the best transport available is used. Servers sharing
+	 * the loops of {@link Swift} use the transport of those.
+	 * 
+	 * @param transport
+	 * @return
+	 */
+	public SwiftServer withTransport(Transport transport) {
+		if(transport == null) {
+			throw new IllegalArgumentException("Transport cannot be null");
+		}
+		
+		this.transport = transport;
+		return this;
+	}
+	
+	/**
+	 * Accept connections on as many sockets bound to the listen port, each
+	 * registered with its own boss loop, so that the kernel spreads a storm
+	 * of new connections over cores instead of queueing them all for a
+	 * single thread. Needs the epoll transport, others use a single socket.
+	 * Servers sharing the loops of {@link Swift} only get as many boss loops
+	 * as {@link Swift#withEventLoopThreads(int, int)} creates.
+	 * 
+	 * @param acceptors
+	 *            the number of sockets, <code>1</code> by default
+	 * 
+	 * @return
+	 */
+	public SwiftServer withAcceptors(int acceptors) {
+		if(acceptors <= 0) {
+			throw new IllegalArgumentException("Acceptors must be positive");
+		}
+		
+		this.acceptors = acceptors;
+		return this;
+	}
+	
+	/**
+	 * Set how long a server being shut down waits for the requests it is
+	 * serving to finish, once it stops accepting connections, before it
+	 * closes the connections still open. Defaults to 30 seconds.
+	 * 
+	 * @param drainTimeoutMillis
+	 *            the time to wait, <code>0</code> to close all connections
+	 *            right away
+	 * 
+	 * @return
+	 */
+	public SwiftServer withDrainTimeout(long drainTimeoutMillis) {
+		if(drainTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Drain timeout cannot be negative");
+		}
+		
+		this.drainTimeoutMillis = drainTimeoutMillis;
+		return this;
+	}
+	
+	/**
+	 * Compress text responses, such as directory listings and files without
+	 * a precompressed variant, for clients that accept gzip or deflate.
+	 * 
+	 * @return
+	 */
+	public SwiftServer enableCompression() {
+		this.compressionEnabled = true;
+		return this;
+	}
+	
+	/**
+	 * @param level
+	 *            the deflate compression level, from 1 (fastest) to 9 (best)
+	 * 
+	 * @return
+	 */
+	public SwiftServer withCompressionLevel(int level) {
+		if(level < 1 || level > 9) {
+			throw new IllegalArgumentException("Compression level must be between 1 and 9");
+		}
+		
+		this.compressionLevel = level;
+		return this;
+	}
+	
+	/**
+	 * @param bytes
+	 *            responses smaller than this are sent uncompressed
+	 * 
+	 * @return
+	 */
+	public SwiftServer withCompressionMinSize(int bytes) {
+		if(bytes < 0) {
+			throw new IllegalArgumentException("Minimum size cannot be negative");
+		}
+		
+		this.compressionMinSize = bytes;
+		return this;
+	}
+	
+	/**
+	 * @param bytes
+	 *            the number of bytes of compressed files to keep in memory
+	 * 
+	 * @return
+	 */
+	public SwiftServer withCompressionCacheSize(long bytes) {
+		if(bytes <= 0) {
+			throw new IllegalArgumentException("Compression cache size must be positive");
+		}
+		
+		this.compressionCacheSize = bytes;
+		return this;
+	}
+	
+	/**
+	 * Add a MIME type to the list of types that are compressed. A type of the
+	 * form <code>text/*</code> matches all subtypes.
+	 * 
+	 * @param mimeType
+	 * @return
+	 */
+	public SwiftServer withCompressibleMimeType(String mimeType) {
+		if(AssertUtils.isEmpty(mimeType)) {
+			throw new IllegalArgumentException("MIME type cannot be empty");
+		}
+		
+		this.compressibleMimeTypes.add(mimeType);
+		return this;
+	}
+
 	public SwiftServer enableSpdySupport() {
 		this.spdyEnabled = true;
 		this.sslEnabled = true;
@@ -239,6 +779,20 @@ public class SwiftServer {
 		return documentRoot;
 	}
 
+	/**
+	 * @return the archiveRoot
+	 */
+	public File getArchiveRoot() {
+		return archiveRoot;
+	}
+
+	/**
+	 * @return the archiveRootExists
+	 */
+	public boolean isArchiveRootExists() {
+		return archiveRootExists;
+	}
+
 	/**
 	 * @return the selfSignedSSL
 	 */
@@ -246,4 +800,255 @@ public class SwiftServer {
 		return selfSignedSSL;
 	}
 
+	/**
+	 * @return the fileCacheEnabled
+	 */
+	public boolean isFileCacheEnabled() {
+		return fileCacheEnabled;
+	}
+
+	/**
+	 * @return the fileCacheMaxBytes
+	 */
+	public long getFileCacheMaxBytes() {
+		return fileCacheMaxBytes;
+	}
+
+	/**
+	 * @return the fileCacheMaxFileSize
+	 */
+	public long getFileCacheMaxFileSize() {
+		return fileCacheMaxFileSize;
+	}
+
+	/**
+	 * @return the fileWatcherEnabled
+	 */
+	public boolean isFileWatcherEnabled() {
+		return fileWatcherEnabled;
+	}
+
+	/**
+	 * @return the metadataPollMillis
+	 */
+	public long getMetadataPollMillis() {
+		return metadataPollMillis;
+	}
+
+	/**
+	 * @return the metadataIndexMaxEntries
+	 */
+	public int getMetadataIndexMaxEntries() {
+		return metadataIndexMaxEntries;
+	}
+
+	/**
+	 * @return the additional MIME types configured for this server
+	 */
+	public Map<String, String> getMimeTypes() {
+		return mimeTypes;
+	}
+
+	/**
+	 * @return the precompressedFilesEnabled
+	 */
+	public boolean isPrecompressedFilesEnabled() {
+		return precompressedFilesEnabled;
+	}
+
+	/**
+	 * @return the compressionEnabled
+	 */
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	/**
+	 * @return the compressionLevel
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * @return the compressionMinSize
+	 */
+	public int getCompressionMinSize() {
+		return compressionMinSize;
+	}
+
+	/**
+	 * @return the compressionCacheSize
+	 */
+	public long getCompressionCacheSize() {
+		return compressionCacheSize;
+	}
+
+	/**
+	 * @return the compressibleMimeTypes
+	 */
+	public List<String> getCompressibleMimeTypes() {
+		return compressibleMimeTypes;
+	}
+
+	/**
+	 * @return the contentHashETagsEnabled
+	 */
+	public boolean isContentHashETagsEnabled() {
+		return contentHashETagsEnabled;
+	}
+
+	/**
+	 * @return the custom error pages, by status code
+	 */
+	public Map<Integer, File> getErrorPages() {
+		return errorPages;
+	}
+
+	/**
+	 * @return the openFileCacheMax
+	 */
+	public int getOpenFileCacheMax() {
+		return openFileCacheMax;
+	}
+
+	/**
+	 * @return the openFileCacheIdleMillis
+	 */
+	public long getOpenFileCacheIdleMillis() {
+		return openFileCacheIdleMillis;
+	}
+
+	/**
+	 * @return the listingCacheMaxEntries
+	 */
+	public int getListingCacheMaxEntries() {
+		return listingCacheMaxEntries;
+	}
+
+	/**
+	 * @return the warmUpEnabled
+	 */
+	public boolean isWarmUpEnabled() {
+		return warmUpEnabled;
+	}
+
+	/**
+	 * @return the warmUpPreloadFiles
+	 */
+	public int getWarmUpPreloadFiles() {
+		return warmUpPreloadFiles;
+	}
+
+	/**
+	 * @return the indexSnapshot
+	 */
+	public File getIndexSnapshot() {
+		return indexSnapshot;
+	}
+
+	/**
+	 * @return the notFoundFilterEnabled
+	 */
+	public boolean isNotFoundFilterEnabled() {
+		return notFoundFilterEnabled;
+	}
+
+	/**
+	 * @return the fileIoThreads
+	 */
+	public int getFileIoThreads() {
+		return fileIoThreads;
+	}
+
+	/**
+	 * @return the fileIoQueueSize
+	 */
+	public int getFileIoQueueSize() {
+		return fileIoQueueSize;
+	}
+	
+	/**
+	 * @return the uploadsEnabled
+	 */
+	public boolean isUploadsEnabled() {
+		return uploadsEnabled;
+	}
+	
+	/**
+	 * @return the maxUploadSize
+	 */
+	public long getMaxUploadSize() {
+		return maxUploadSize;
+	}
+	
+	/**
+	 * @return the isolatedEventLoops
+	 */
+	public boolean isIsolatedEventLoops() {
+		return isolatedEventLoops;
+	}
+	
+	/**
+	 * @return the isolatedWorkerThreads
+	 */
+	public int getIsolatedWorkerThreads() {
+		return isolatedWorkerThreads;
+	}
+	
+	/**
+	 * @return the transport asked for, or <code>null</code> for the best one
+	 *         available
+	 */
+	public Transport getTransport() {
+		return transport;
+	}
+	
+	/**
+	 * @return the acceptors
+	 */
+	public int getAcceptors() {
+		return acceptors;
+	}
+	
+	/**
+	 * @return the drainTimeoutMillis
+	 */
+	public long getDrainTimeoutMillis() {
+		return drainTimeoutMillis;
+	}
+	
+	/**
+	 * @return the pool running blocking file system calls, with its queue
+	 *         depth and wait time metrics, or <code>null</code> if the server
+	 *         is not serving files
+	 */
+	public FileIoExecutor getFileIoExecutor() {
+		return fileIoExecutor;
+	}
+
+	/**
+	 * @param fileIoExecutor
+	 *            the pool running blocking file system calls
+	 */
+	public void setFileIoExecutor(FileIoExecutor fileIoExecutor) {
+		this.fileIoExecutor = fileIoExecutor;
+	}
+
+	/**
+	 * @return the filter of paths under the document root, with its hit
+	 *         counters, or <code>null</code> if not in use
+	 */
+	public ExistenceFilter getExistenceFilter() {
+		return existenceFilter;
+	}
+
+	/**
+	 * @param existenceFilter
+	 *            the filter of paths under the document root
+	 */
+	public void setExistenceFilter(ExistenceFilter existenceFilter) {
+		this.existenceFilter = existenceFilter;
+	}
+
 }
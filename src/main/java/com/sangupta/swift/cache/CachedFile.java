@@ -0,0 +1,60 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A file served out of the {@link FileContentCache}. The content buffer is
+ * owned by the caller and must be released once done.
+ * 
+ * @author sangupta
+ *
+ */
+public class CachedFile {
+	
+	private final FileMetadata metadata;
+	
+	private final ByteBuf content;
+	
+	public CachedFile(FileMetadata metadata, ByteBuf content) {
+		this.metadata = metadata;
+		this.content = content;
+	}
+	
+	// Usual accessors follow
+
+	/**
+	 * @return the metadata
+	 */
+	public FileMetadata getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * @return the content
+	 */
+	public ByteBuf getContent() {
+		return content;
+	}
+
+}
@@ -0,0 +1,328 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the entries of a folder, read with a single pass of
+ * a {@link DirectoryStream}. Entries are kept sorted by name; the orderings
+ * by size and modification time are built the first time they are asked for
+ * and kept along with the snapshot.
+ * 
+ * @author sangupta
+ *
+ */
+public class DirectorySnapshot {
+	
+	/**
+	 * The orderings a listing can be sorted in
+	 */
+	public enum SortKey {
+		
+		NAME {
+			
+			@Override
+			int compare(Entry first, Entry second) {
+				return first.name.compareTo(second.name);
+			}
+		
+		},
+		
+		SIZE {
+			
+			@Override
+			int compare(Entry first, Entry second) {
+				return first.length < second.length ? -1 : (first.length == second.length ? NAME.compare(first, second) : 1);
+			}
+		
+		},
+		
+		MODIFIED {
+			
+			@Override
+			int compare(Entry first, Entry second) {
+				return first.lastModified < second.lastModified ? -1 : (first.lastModified == second.lastModified ? NAME.compare(first, second) : 1);
+			}
+		
+		};
+		
+		abstract int compare(Entry first, Entry second);
+		
+		final Comparator<Entry> comparator() {
+			return new Comparator<Entry>() {
+				
+				@Override
+				public int compare(Entry first, Entry second) {
+					return SortKey.this.compare(first, second);
+				}
+			
+			};
+		}
+	
+	}
+	
+	private final String path;
+	
+	/**
+	 * Modification time of the folder when it was read
+	 */
+	private final long lastModified;
+	
+	private final Entry[] byName;
+	
+	private volatile Entry[] bySize;
+	
+	private volatile Entry[] byModified;
+	
+	private DirectorySnapshot(String path, long lastModified, Entry[] byName) {
+		this.path = path;
+		this.lastModified = lastModified;
+		this.byName = byName;
+	}
+	
+	/**
+	 * Read the entries of the given folder from disk. Hidden entries, and
+	 * those with names we would not serve, are left out.
+	 * 
+	 * @param metadata
+	 *            the metadata of the folder
+	 * 
+	 * @return the snapshot
+	 * 
+	 * @throws IOException
+	 *             if the folder cannot be read
+	 */
+	public static DirectorySnapshot read(FileMetadata metadata) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		
+		DirectoryStream<Path> stream = Files.newDirectoryStream(metadata.getFile().toPath());
+		try {
+			for(Path child : stream) {
+				String name = child.getFileName().toString();
+				if(!isListable(name)) {
+					continue;
+				}
+				
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(child, BasicFileAttributes.class, new LinkOption[0]);
+				} catch(IOException e) {
+					// removed while we were reading the folder
+					continue;
+				}
+				
+				if(attributes instanceof DosFileAttributes && ((DosFileAttributes) attributes).isHidden()) {
+					continue;
+				}
+				
+				entries.add(new Entry(name, attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis()));
+			}
+		} finally {
+			stream.close();
+		}
+		
+		Entry[] byName = entries.toArray(new Entry[entries.size()]);
+		Arrays.sort(byName, SortKey.NAME.comparator());
+		return new DirectorySnapshot(metadata.getPath(), metadata.getLastModified(), byName);
+	}
+	
+	/**
+	 * Check if an entry with the given name may be listed. This is the same
+	 * as matching against <code>NettyUtils.ALLOWED_FILE_NAME</code>, without
+	 * the cost of a regular expression for every entry of a large folder.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public static boolean isListable(String name) {
+		if(name.isEmpty() || !isAlphaNumeric(name.charAt(0))) {
+			return false;
+		}
+		
+		for(int index = 1; index < name.length(); index++) {
+			char c = name.charAt(index);
+			if(!isAlphaNumeric(c) && c != '-' && c != '_' && c != '.') {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Check if this snapshot is still current for the given metadata of the
+	 * folder.
+	 * 
+	 * @param metadata
+	 * @return
+	 */
+	public boolean isCurrent(FileMetadata metadata) {
+		return this.lastModified == metadata.getLastModified();
+	}
+	
+	/**
+	 * Check if the entries have already been sorted in the given order, so
+	 * that asking for them costs nothing.
+	 * 
+	 * @param sortKey
+	 * @return
+	 */
+	public boolean isSorted(SortKey sortKey) {
+		switch(sortKey) {
+			case SIZE:
+				return this.bySize != null;
+			
+			case MODIFIED:
+				return this.byModified != null;
+			
+			default:
+				return true;
+		}
+	}
+	
+	/**
+	 * Return the entries sorted in ascending order of the given key, sorting
+	 * them first if this has not been done yet. The returned array must not
+	 * be modified.
+	 * 
+	 * @param sortKey
+	 * @return
+	 */
+	public Entry[] getEntries(SortKey sortKey) {
+		switch(sortKey) {
+			case SIZE:
+				if(this.bySize == null) {
+					this.bySize = this.sortBy(sortKey);
+				}
+				
+				return this.bySize;
+			
+			case MODIFIED:
+				if(this.byModified == null) {
+					this.byModified = this.sortBy(sortKey);
+				}
+				
+				return this.byModified;
+			
+			default:
+				return this.byName;
+		}
+	}
+	
+	/**
+	 * @return the number of entries in the folder
+	 */
+	public int size() {
+		return this.byName.length;
+	}
+	
+	// Internal methods follow
+	
+	private Entry[] sortBy(SortKey sortKey) {
+		Entry[] sorted = this.byName.clone();
+		Arrays.sort(sorted, sortKey.comparator());
+		return sorted;
+	}
+	
+	private static boolean isAlphaNumeric(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	}
+	
+	// Usual accessors follow
+	
+	/**
+	 * @return the path
+	 */
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * @return the lastModified
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+	
+	/**
+	 * A single entry of the folder
+	 * 
+	 */
+	public static class Entry {
+		
+		private final String name;
+		
+		private final boolean directory;
+		
+		private final long length;
+		
+		private final long lastModified;
+		
+		Entry(String name, boolean directory, long length, long lastModified) {
+			this.name = name;
+			this.directory = directory;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+		
+		/**
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * @return the directory
+		 */
+		public boolean isDirectory() {
+			return directory;
+		}
+		
+		/**
+		 * @return the length
+		 */
+		public long getLength() {
+			return length;
+		}
+		
+		/**
+		 * @return the lastModified
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+	
+	}
+
+}
@@ -0,0 +1,163 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the {@link DirectorySnapshot}s of recently listed folders, so that a
+ * large folder is read only once for as long as its modification time stays
+ * the same, however many pages, orderings or formats are asked for.
+ * 
+ * The cache is bounded by the total number of entries held. Folders larger
+ * than the whole budget are read for every request and never cached.
+ * 
+ * @author sangupta
+ *
+ */
+public class DirectorySnapshotCache {
+	
+	private final int maxEntries;
+	
+	/**
+	 * Access ordered map that gives us the LRU ordering
+	 */
+	private final LinkedHashMap<String, DirectorySnapshot> snapshots = new LinkedHashMap<String, DirectorySnapshot>(16, 0.75f, true);
+	
+	private int currentEntries = 0;
+	
+	public DirectorySnapshotCache(int maxEntries) {
+		if(maxEntries <= 0) {
+			throw new IllegalArgumentException("Max entries must be positive");
+		}
+		
+		this.maxEntries = maxEntries;
+	}
+	
+	/**
+	 * Return the snapshot of the given folder, if we have a current one. This
+	 * never touches the file system.
+	 * 
+	 * @param metadata
+	 *            the current metadata of the folder
+	 * 
+	 * @return the snapshot, or <code>null</code> if the folder needs to be
+	 *         read
+	 */
+	public synchronized DirectorySnapshot get(FileMetadata metadata) {
+		DirectorySnapshot snapshot = this.snapshots.get(metadata.getPath());
+		if(snapshot == null) {
+			return null;
+		}
+		
+		if(!snapshot.isCurrent(metadata)) {
+			this.invalidate(metadata.getPath());
+			return null;
+		}
+		
+		return snapshot;
+	}
+	
+	/**
+	 * Read the given folder and add it to the cache.
+	 * 
+	 * @param metadata
+	 *            the current metadata of the folder
+	 * 
+	 * @return the snapshot
+	 * 
+	 * @throws IOException
+	 *             if the folder cannot be read
+	 */
+	public DirectorySnapshot load(FileMetadata metadata) throws IOException {
+		DirectorySnapshot snapshot = DirectorySnapshot.read(metadata);
+		if(snapshot.size() > this.maxEntries) {
+			return snapshot;
+		}
+		
+		synchronized (this) {
+			DirectorySnapshot old = this.snapshots.put(snapshot.getPath(), snapshot);
+			if(old != null) {
+				this.currentEntries -= old.size();
+			}
+			
+			this.currentEntries += snapshot.size();
+			this.evict();
+		}
+		
+		return snapshot;
+	}
+	
+	/**
+	 * Drop the given folder from the cache.
+	 * 
+	 * @param path
+	 */
+	public synchronized void invalidate(String path) {
+		DirectorySnapshot snapshot = this.snapshots.remove(path);
+		if(snapshot != null) {
+			this.currentEntries -= snapshot.size();
+		}
+	}
+	
+	/**
+	 * Drop all folders from the cache.
+	 * 
+	 */
+	public synchronized void clear() {
+		this.snapshots.clear();
+		this.currentEntries = 0;
+	}
+	
+	/**
+	 * @return the number of folder entries held in the cache
+	 */
+	public synchronized int getCurrentEntries() {
+		return this.currentEntries;
+	}
+	
+	/**
+	 * @return the number of folders held in the cache
+	 */
+	public synchronized int size() {
+		return this.snapshots.size();
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * Drop the least recently used folders till we are within budget. Must be
+	 * called with the lock held.
+	 * 
+	 */
+	private void evict() {
+		Iterator<DirectorySnapshot> iterator = this.snapshots.values().iterator();
+		while(this.currentEntries > this.maxEntries && iterator.hasNext()) {
+			DirectorySnapshot snapshot = iterator.next();
+			iterator.remove();
+			this.currentEntries -= snapshot.size();
+		}
+	}
+
+}
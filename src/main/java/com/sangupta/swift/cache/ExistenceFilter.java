@@ -0,0 +1,358 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over every path under the document root, that tells which
+ * requested paths are certainly missing without touching the file system.
+ * Paths are only ever added: a removed file stays in the filter and is
+ * simply looked up on disk as it would have been without one.
+ * 
+ * The filter is unusable, and answers that every path may exist, from the
+ * moment a build starts till it is complete. Paths added during the build
+ * are kept aside and added along with the rest. Folders whose entries could
+ * not be read are remembered, and paths under them are never reported
+ * missing.
+ * 
+ * Paths are compared without regard to case, so that the filter holds on
+ * case insensitive file systems as well.
+ * 
+ * @author sangupta
+ *
+ */
+public class ExistenceFilter {
+	
+	/**
+	 * Bits per path at build time, with room for the tree to double before
+	 * the false positive rate goes above one percent
+	 */
+	private static final int BITS_PER_PATH = 20;
+	
+	private static final int HASHES = 7;
+	
+	private static final int MIN_BITS = 1 << 16;
+	
+	private static final int MAX_BITS = 1 << 30;
+	
+	private final Object lock = new Object();
+	
+	/**
+	 * The bits in use, <code>null</code> while building
+	 */
+	private volatile Bits bits;
+	
+	/**
+	 * Paths seen while building, guarded by the lock
+	 */
+	private List<String> pending;
+	
+	/**
+	 * Folders we do not know the entries of, with a trailing separator
+	 */
+	private final Set<String> unknownFolders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	private final AtomicLong checks = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	private final AtomicLong falsePositives = new AtomicLong();
+	
+	/**
+	 * Start building the filter afresh. Until {@link #complete()} is called
+	 * every path is reported as one that may exist.
+	 * 
+	 */
+	public void begin() {
+		synchronized (this.lock) {
+			this.bits = null;
+			this.pending = new ArrayList<String>();
+			this.unknownFolders.clear();
+		}
+	}
+	
+	/**
+	 * Finish the build started with {@link #begin()}, sizing the filter for
+	 * the paths added since, and start using it.
+	 * 
+	 * @return the number of paths in the filter
+	 */
+	public int complete() {
+		synchronized (this.lock) {
+			if(this.pending == null) {
+				return 0;
+			}
+			
+			Bits built = new Bits(this.pending.size());
+			for(String path : this.pending) {
+				built.add(path);
+			}
+			
+			this.bits = built;
+			this.pending = null;
+			return built.count;
+		}
+	}
+	
+	/**
+	 * Record that the given path exists.
+	 * 
+	 * @param path
+	 *            the sanitized path
+	 */
+	public void add(String path) {
+		Bits current = this.bits;
+		if(current == null) {
+			synchronized (this.lock) {
+				if(this.pending != null) {
+					this.pending.add(path);
+					return;
+				}
+				
+				current = this.bits;
+			}
+			
+			if(current == null) {
+				// never built, nothing to keep up to date
+				return;
+			}
+		}
+		
+		current.add(path);
+	}
+	
+	/**
+	 * Record that the entries of the given folder are not known, so that
+	 * nothing under it is reported missing.
+	 * 
+	 * @param folder
+	 *            the sanitized path of the folder
+	 */
+	public void addUnknownFolder(String folder) {
+		this.unknownFolders.add(folder.endsWith(File.separator) ? folder : folder + File.separatorChar);
+	}
+	
+	/**
+	 * Check if the given path may exist.
+	 * 
+	 * @param path
+	 *            the sanitized path
+	 * 
+	 * @return <code>false</code> only if the path certainly does not exist
+	 */
+	public boolean mightExist(String path) {
+		final Bits current = this.bits;
+		if(current == null) {
+			return true;
+		}
+		
+		this.checks.incrementAndGet();
+		if(current.mightContain(path)) {
+			return true;
+		}
+		
+		if(!this.unknownFolders.isEmpty()) {
+			for(String folder : this.unknownFolders) {
+				if(path.regionMatches(true, 0, folder, 0, folder.length())) {
+					return true;
+				}
+			}
+		}
+		
+		this.misses.incrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Record that a path the filter let through did not exist after all,
+	 * either by chance or because it was removed since.
+	 * 
+	 */
+	public void recordFalsePositive() {
+		if(this.bits != null) {
+			this.falsePositives.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * @return whether the filter is built and in use
+	 */
+	public boolean isReady() {
+		return this.bits != null;
+	}
+	
+	/**
+	 * @return the number of paths added to the filter
+	 */
+	public int getPathCount() {
+		Bits current = this.bits;
+		return current == null ? 0 : current.count;
+	}
+	
+	/**
+	 * @return the number of lookups answered by the filter
+	 */
+	public long getChecks() {
+		return this.checks.get();
+	}
+	
+	/**
+	 * @return the number of lookups answered as certainly missing
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+	
+	/**
+	 * @return the number of lookups let through that turned out missing
+	 */
+	public long getFalsePositives() {
+		return this.falsePositives.get();
+	}
+	
+	/**
+	 * @return the percentage of lookups answered without the file system
+	 */
+	public double getMissRate() {
+		long count = this.checks.get();
+		if(count == 0) {
+			return 0;
+		}
+		
+		return this.misses.get() * 100d / count;
+	}
+	
+	@Override
+	public String toString() {
+		return "ExistenceFilter [ready=" + this.isReady() + ", paths=" + this.getPathCount() + ", unknownFolders=" + this.unknownFolders.size() + ", checks="
+				+ this.checks + ", misses=" + this.misses + ", falsePositives=" + this.falsePositives + "]";
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * 64-bit FNV-1a of the lower cased path, finished with the MurmurHash3
+	 * mixer so that the two halves can be used as independent hashes.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	private static long hash(String path) {
+		long hash = 0xcbf29ce484222325L;
+		for(int index = 0; index < path.length(); index++) {
+			hash ^= Character.toLowerCase(path.charAt(index));
+			hash *= 0x100000001b3L;
+		}
+		
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+	
+	/**
+	 * Drop the trailing separator a request for a folder may carry.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	private static String normalize(String path) {
+		if(path.length() > 1 && path.charAt(path.length() - 1) == File.separatorChar) {
+			return path.substring(0, path.length() - 1);
+		}
+		
+		return path;
+	}
+	
+	/**
+	 * The bit set, sized once when the filter is built
+	 * 
+	 */
+	private static class Bits {
+		
+		private final AtomicLongArray words;
+		
+		private final int mask;
+		
+		/**
+		 * Only ever added to by one thread at a time
+		 */
+		private volatile int count;
+		
+		Bits(int paths) {
+			long wanted = Math.max(MIN_BITS, (long) paths * BITS_PER_PATH);
+			int size = MIN_BITS;
+			while(size < wanted && size < MAX_BITS) {
+				size <<= 1;
+			}
+			
+			this.words = new AtomicLongArray(size >>> 6);
+			this.mask = size - 1;
+		}
+		
+		void add(String path) {
+			final long hash = hash(normalize(path));
+			final int first = (int) hash;
+			final int second = (int) (hash >>> 32) | 1;
+			
+			for(int index = 0; index < HASHES; index++) {
+				int bit = (first + index * second) & this.mask;
+				int word = bit >>> 6;
+				long flag = 1L << bit;
+				
+				long value = this.words.get(word);
+				while((value & flag) == 0 && !this.words.compareAndSet(word, value, value | flag)) {
+					value = this.words.get(word);
+				}
+			}
+			
+			this.count++;
+		}
+		
+		boolean mightContain(String path) {
+			final long hash = hash(normalize(path));
+			final int first = (int) hash;
+			final int second = (int) (hash >>> 32) | 1;
+			
+			for(int index = 0; index < HASHES; index++) {
+				int bit = (first + index * second) & this.mask;
+				if((this.words.get(bit >>> 6) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+	
+	}
+
+}
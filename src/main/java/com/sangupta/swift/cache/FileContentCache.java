@@ -0,0 +1,423 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A size-bounded, in-memory cache of small static files. File contents are
+ * held in pooled direct buffers and handed out as retained duplicates so that
+ * a cache hit never needs to touch the file system.
+ * 
+ * Lookups never take a lock. Once the byte budget is exceeded entries are
+ * evicted with a clock sweep, which approximates least-recently-used order:
+ * a hit only flags its entry, and entries not hit since the sweep last
+ * passed them go first. Entries are dropped as soon as the
+ * {@link FileMetadata} they are looked up with reports a different
+ * modification time or length. Content derived from a file, such as its
+ * compressed form, may be kept under a key of its own.
+ * 
+ * @author sangupta
+ *
+ */
+public class FileContentCache {
+	
+	private final long maxBytes;
+	
+	private final long maxFileSize;
+	
+	private final ByteBufAllocator allocator;
+	
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	
+	/**
+	 * The same entries in the order the clock sweeps them, only used with the
+	 * lock held
+	 */
+	private final LinkedHashMap<String, Entry> clock = new LinkedHashMap<String, Entry>();
+	
+	/**
+	 * Only changed with the lock held
+	 */
+	private volatile long currentBytes = 0;
+	
+	public FileContentCache(long maxBytes, long maxFileSize) {
+		this(maxBytes, maxFileSize, PooledByteBufAllocator.DEFAULT);
+	}
+	
+	public FileContentCache(long maxBytes, long maxFileSize, ByteBufAllocator allocator) {
+		if(maxBytes <= 0) {
+			throw new IllegalArgumentException("Cache size must be positive");
+		}
+		
+		if(maxFileSize <= 0 || maxFileSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Max file size must be positive and fit in a single buffer");
+		}
+		
+		this.maxBytes = maxBytes;
+		this.maxFileSize = Math.min(maxFileSize, maxBytes);
+		this.allocator = allocator;
+	}
+	
+	/**
+	 * Return the cached content for the given file, if any. The content of the
+	 * returned object is a retained duplicate and must be released by the
+	 * caller, usually by writing it out to the channel.
+	 * 
+	 * @param metadata
+	 *            the current metadata of the file
+	 * 
+	 * @return the cached file, or <code>null</code> if not present or stale
+	 */
+	public CachedFile get(FileMetadata metadata) {
+		return this.get(metadata.getPath(), metadata);
+	}
+	
+	/**
+	 * Return the content cached under the given key, provided it was derived
+	 * from the file as described by the given metadata.
+	 * 
+	 * @param key
+	 *            the cache key
+	 * 
+	 * @param metadata
+	 *            the current metadata of the source file
+	 * 
+	 * @return the cached file, or <code>null</code> if not present or stale
+	 */
+	public CachedFile get(String key, FileMetadata metadata) {
+		Entry entry = this.entries.get(key);
+		if(entry == null) {
+			return null;
+		}
+		
+		if(entry.lastModified != metadata.getLastModified() || entry.sourceLength != metadata.getLength()) {
+			this.invalidate(key, entry);
+			return null;
+		}
+		
+		ByteBuf content = entry.retainedContent();
+		if(content == null) {
+			// evicted while we were looking
+			return null;
+		}
+		
+		entry.referenced = true;
+		return new CachedFile(metadata, content);
+	}
+	
+	/**
+	 * Check if content derived from the file as described by the given
+	 * metadata is cached under the given key.
+	 * 
+	 * @param key
+	 *            the cache key
+	 * 
+	 * @param metadata
+	 *            the current metadata of the source file
+	 * 
+	 * @return
+	 */
+	public boolean contains(String key, FileMetadata metadata) {
+		Entry entry = this.entries.get(key);
+		return entry != null && entry.lastModified == metadata.getLastModified() && entry.sourceLength == metadata.getLength();
+	}
+	
+	/**
+	 * Check if the given file can be held in this cache.
+	 * 
+	 * @param fileLength
+	 *            the length of the file
+	 * 
+	 * @return <code>true</code> if the file is small enough to be cached
+	 */
+	public boolean isCacheable(long fileLength) {
+		return fileLength <= this.maxFileSize;
+	}
+	
+	/**
+	 * Read the given file into a direct buffer and add it to the cache.
+	 * 
+	 * @param metadata
+	 *            the metadata of the file to read
+	 * 
+	 * @return the cached file with a retained duplicate of the content, or
+	 *         <code>null</code> if the file could not be cached
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public CachedFile load(FileMetadata metadata) throws IOException {
+		final long length = metadata.getLength();
+		if(!this.isCacheable(length)) {
+			return null;
+		}
+		
+		final int size = (int) length;
+		ByteBuf content = this.allocator.directBuffer(size, size);
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(metadata.getFile(), "r");
+			FileChannel channel = raf.getChannel();
+			
+			long position = 0;
+			while(position < size) {
+				int read = content.writeBytes(channel, position, size - (int) position);
+				if(read < 0) {
+					break;
+				}
+				
+				position += read;
+			}
+		} catch(IOException e) {
+			content.release();
+			throw e;
+		} finally {
+			if(raf != null) {
+				raf.close();
+			}
+		}
+		
+		if(content.readableBytes() != size) {
+			// file changed while we were reading it
+			content.release();
+			return null;
+		}
+		
+		return this.put(metadata.getPath(), metadata, content);
+	}
+	
+	/**
+	 * Add content derived from the given file to the cache. The cache takes
+	 * ownership of the buffer.
+	 * 
+	 * @param key
+	 *            the cache key
+	 * 
+	 * @param metadata
+	 *            the metadata of the source file
+	 * 
+	 * @param content
+	 *            the content to cache
+	 * 
+	 * @return the cached file with a retained duplicate of the content, or
+	 *         <code>null</code> if the content could not be cached
+	 */
+	public CachedFile put(String key, FileMetadata metadata, ByteBuf content) {
+		if(!this.isCacheable(content.readableBytes())) {
+			content.release();
+			return null;
+		}
+		
+		Entry entry = new Entry(metadata.getLastModified(), metadata.getLength(), content);
+		synchronized (this) {
+			Entry old = this.entries.put(key, entry);
+			if(old != null) {
+				this.clock.remove(key);
+				this.currentBytes -= old.size;
+				old.release();
+			}
+			
+			this.clock.put(key, entry);
+			this.currentBytes += entry.size;
+			this.evict();
+			
+			if(this.entries.get(key) != entry) {
+				return null;
+			}
+			
+			return new CachedFile(metadata, content.retainedDuplicate());
+		}
+	}
+	
+	/**
+	 * Remove the given path from the cache.
+	 * 
+	 * @param path
+	 *            the sanitized path used as the cache key
+	 */
+	public synchronized void invalidate(String path) {
+		Entry entry = this.entries.remove(path);
+		if(entry != null) {
+			this.clock.remove(path);
+			this.currentBytes -= entry.size;
+			entry.release();
+		}
+	}
+	
+	/**
+	 * Remove all entries from the cache and release their buffers.
+	 * 
+	 */
+	public synchronized void clear() {
+		for(Entry entry : this.entries.values()) {
+			entry.release();
+		}
+		
+		this.entries.clear();
+		this.clock.clear();
+		this.currentBytes = 0;
+	}
+	
+	/**
+	 * @return the number of bytes currently held in the cache
+	 */
+	public long getCurrentBytes() {
+		return this.currentBytes;
+	}
+	
+	/**
+	 * @return the number of files currently held in the cache
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * Remove the given entry, unless it was replaced meanwhile.
+	 * 
+	 * @param key
+	 * @param entry
+	 */
+	private synchronized void invalidate(String key, Entry entry) {
+		if(this.entries.remove(key, entry)) {
+			this.clock.remove(key);
+			this.currentBytes -= entry.size;
+			entry.release();
+		}
+	}
+	
+	/**
+	 * Sweep the clock till we are within budget: entries hit since the last
+	 * sweep move to the back for another round, the others are evicted. Must
+	 * be called with the lock held.
+	 * 
+	 */
+	private void evict() {
+		while(this.currentBytes > this.maxBytes && !this.clock.isEmpty()) {
+			Iterator<Map.Entry<String, Entry>> iterator = this.clock.entrySet().iterator();
+			Map.Entry<String, Entry> head = iterator.next();
+			iterator.remove();
+			
+			Entry entry = head.getValue();
+			if(entry.referenced) {
+				entry.referenced = false;
+				this.clock.put(head.getKey(), entry);
+				continue;
+			}
+			
+			this.entries.remove(head.getKey());
+			this.currentBytes -= entry.size;
+			entry.release();
+		}
+	}
+	
+	/**
+	 * A single entry in the cache
+	 * 
+	 */
+	private static class Entry {
+		
+		/**
+		 * Modification time of the source file
+		 */
+		final long lastModified;
+		
+		/**
+		 * Length of the source file
+		 */
+		final long sourceLength;
+		
+		/**
+		 * Number of bytes held
+		 */
+		final long size;
+		
+		final ByteBuf content;
+		
+		/**
+		 * The cache's own reference plus lookups duplicating the content right
+		 * now. The content is released once this drops to zero, so a lookup
+		 * racing an eviction never touches a released, possibly recycled,
+		 * buffer.
+		 */
+		private final AtomicInteger references = new AtomicInteger(1);
+		
+		/**
+		 * Whether the entry was hit since the clock last passed it. Updates
+		 * may race, which only makes eviction less exact.
+		 */
+		boolean referenced;
+		
+		Entry(long lastModified, long sourceLength, ByteBuf content) {
+			this.lastModified = lastModified;
+			this.sourceLength = sourceLength;
+			this.size = content.readableBytes();
+			this.content = content;
+		}
+		
+		/**
+		 * @return a retained duplicate of the content, or <code>null</code>
+		 *         if the entry has been evicted
+		 */
+		ByteBuf retainedContent() {
+			while(true) {
+				int count = this.references.get();
+				if(count == 0) {
+					return null;
+				}
+				
+				if(this.references.compareAndSet(count, count + 1)) {
+					break;
+				}
+			}
+			
+			try {
+				return this.content.retainedDuplicate();
+			} finally {
+				this.release();
+			}
+		}
+		
+		void release() {
+			if(this.references.decrementAndGet() == 0) {
+				this.content.release();
+			}
+		}
+		
+	}
+
+}
@@ -0,0 +1,465 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import io.netty.util.AsciiString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import com.sangupta.swift.netty.HttpDateClock;
+import com.sangupta.swift.netty.MimeTypeRegistry;
+
+/**
+ * Immutable snapshot of everything the static handlers need to know about a
+ * path under the document root, captured with a single <code>stat</code>.
+ * 
+ * @author sangupta
+ *
+ */
+public class FileMetadata {
+	
+	/**
+	 * Files that are served when a directory is requested
+	 */
+	public static final String[] INDEX_FILES = { "index.html", "index.htm" };
+	
+	public static final AsciiString ENCODING_BROTLI = AsciiString.cached("br");
+	
+	public static final AsciiString ENCODING_GZIP = AsciiString.cached("gzip");
+	
+	/**
+	 * How long a snapshot of a missing path stays valid, watched or not
+	 */
+	static final long MISSING_MAX_AGE_MILLIS = 1000;
+	
+	private final String path;
+	
+	private final File file;
+	
+	private final boolean exists;
+	
+	private final boolean directory;
+	
+	private final boolean regularFile;
+	
+	private final boolean hidden;
+	
+	private final long length;
+	
+	private final long lastModified;
+	
+	private final AsciiString contentType;
+	
+	private final String indexPath;
+	
+	/**
+	 * The <code>Content-Encoding</code> of this file if it is a precompressed
+	 * variant of another file
+	 */
+	private final AsciiString contentEncoding;
+	
+	/**
+	 * Precompressed <code>.br</code> sibling, if any
+	 */
+	private final FileMetadata brotliVariant;
+	
+	/**
+	 * Precompressed <code>.gz</code> sibling, if any
+	 */
+	private final FileMetadata gzipVariant;
+	
+	/**
+	 * Strong entity tag derived from the inode, length and modification time
+	 */
+	private final AsciiString statETag;
+	
+	/**
+	 * Strong entity tag derived from the file content, computed in the
+	 * background when enabled
+	 */
+	private volatile AsciiString contentHashETag;
+	
+	/**
+	 * The formatted <code>Last-Modified</code> value, computed when first needed
+	 */
+	private volatile AsciiString lastModifiedHeader;
+	
+	/**
+	 * When was this snapshot taken
+	 */
+	private final long createdAt;
+	
+	/**
+	 * Whether changes to this path are reported by a file watcher
+	 */
+	volatile boolean watched;
+	
+	/**
+	 * Whether this entry was loaded from an index snapshot and still needs to
+	 * be checked against the disk before use
+	 */
+	boolean restored;
+	
+	/**
+	 * How often this file was asked for. Updates may race and lose a count,
+	 * which is fine for telling hot files from cold ones.
+	 */
+	int hits;
+	
+	/**
+	 * Whether this entry was used since the index last looked at it for
+	 * eviction. Updates may race, which only makes eviction less exact.
+	 */
+	boolean referenced;
+	
+	FileMetadata(String path, File file, boolean exists, boolean directory, boolean regularFile, boolean hidden, long length, long lastModified, 
+						 AsciiString contentType, String indexPath, AsciiString contentEncoding, FileMetadata brotliVariant, FileMetadata gzipVariant, AsciiString statETag) {
+		this.path = path;
+		this.file = file;
+		this.exists = exists;
+		this.directory = directory;
+		this.regularFile = regularFile;
+		this.hidden = hidden;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.contentType = contentType;
+		this.indexPath = indexPath;
+		this.contentEncoding = contentEncoding;
+		this.brotliVariant = brotliVariant;
+		this.gzipVariant = gzipVariant;
+		this.statETag = statETag;
+		this.createdAt = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Read the metadata for the given file from disk.
+	 * 
+	 * @param path
+	 *            the sanitized path used as the key
+	 * 
+	 * @param file
+	 *            the file on disk
+	 * 
+	 * @param mimeTypes
+	 *            the registry to resolve the content type with
+	 * 
+	 * @param lookupVariants
+	 *            whether to look for precompressed siblings of the file
+	 * 
+	 * @return the metadata, never <code>null</code>
+	 */
+	public static FileMetadata read(String path, File file, MimeTypeRegistry mimeTypes, boolean lookupVariants) {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class, new LinkOption[0]);
+		} catch(IOException e) {
+			return new FileMetadata(path, file, false, false, false, false, 0, 0, null, null, null, null, null, null);
+		}
+		
+		String indexPath = null;
+		if(attributes.isDirectory()) {
+			for(String indexFile : INDEX_FILES) {
+				if(new File(file, indexFile).isFile()) {
+					indexPath = path.endsWith(File.separator) ? path + indexFile : path + File.separatorChar + indexFile;
+					break;
+				}
+			}
+		}
+		
+		final long lastModified = attributes.lastModifiedTime().toMillis();
+		AsciiString contentType = null;
+		FileMetadata brotliVariant = null;
+		FileMetadata gzipVariant = null;
+		if(attributes.isRegularFile()) {
+			contentType = mimeTypes.getMimeType(path);
+			
+			if(lookupVariants) {
+				brotliVariant = readVariant(path, file, ".br", ENCODING_BROTLI, contentType, lastModified);
+				gzipVariant = readVariant(path, file, ".gz", ENCODING_GZIP, contentType, lastModified);
+			}
+		}
+		
+		AsciiString etag = attributes.isRegularFile() ? createETag(attributes) : null;
+		return new FileMetadata(path, file, true, attributes.isDirectory(), attributes.isRegularFile(), file.isHidden(), attributes.size(), lastModified, 
+								contentType, indexPath, null, brotliVariant, gzipVariant, etag);
+	}
+	
+	/**
+	 * Read the metadata of a precompressed sibling. Siblings older than the
+	 * original file are considered stale and ignored.
+	 * 
+	 * @return the metadata, or <code>null</code> if there is no usable sibling
+	 */
+	private static FileMetadata readVariant(String path, File original, String suffix, AsciiString encoding, AsciiString contentType, long originalModified) {
+		File file = new File(original.getPath() + suffix);
+		
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class, new LinkOption[0]);
+		} catch(IOException e) {
+			return null;
+		}
+		
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		if(!attributes.isRegularFile() || lastModified < originalModified) {
+			return null;
+		}
+		
+		return new FileMetadata(path + suffix, file, true, false, true, false, attributes.size(), lastModified, contentType, null, encoding, null, null, createETag(attributes));
+	}
+	
+	/**
+	 * Create an entity tag from the inode, size and modification time of a
+	 * file, in the same spirit as Apache and nginx do.
+	 * 
+	 * @param attributes
+	 * @return
+	 */
+	private static AsciiString createETag(BasicFileAttributes attributes) {
+		StringBuilder builder = new StringBuilder(40);
+		builder.append('"');
+		
+		// the file key carries the device and inode where the platform has them
+		Object fileKey = attributes.fileKey();
+		if(fileKey != null) {
+			builder.append(Integer.toHexString(fileKey.hashCode())).append('-');
+		}
+		
+		builder.append(Long.toHexString(attributes.size())).append('-');
+		builder.append(Long.toHexString(attributes.lastModifiedTime().toMillis()));
+		builder.append('"');
+		return new AsciiString(builder);
+	}
+	
+	/**
+	 * Check if this snapshot may still be used.
+	 * 
+	 * @param now
+	 *            current time in millis
+	 * 
+	 * @param maxAgeMillis
+	 *            how long an unwatched snapshot stays valid
+	 * 
+	 * @return
+	 */
+	boolean isValid(long now, long maxAgeMillis) {
+		if(this.restored) {
+			return false;
+		}
+		
+		// every path ever probed would be kept if watching kept misses valid
+		if(!this.exists) {
+			return now - this.createdAt <= Math.min(maxAgeMillis, MISSING_MAX_AGE_MILLIS);
+		}
+		
+		if(this.watched) {
+			return true;
+		}
+		
+		return now - this.createdAt <= maxAgeMillis;
+	}
+	
+	/**
+	 * Carry over what we learnt about the previous snapshot of the same path,
+	 * as long as the file itself did not change.
+	 * 
+	 * @param previous
+	 */
+	void inherit(FileMetadata previous) {
+		this.hits = previous.hits;
+		
+		if(this.statETag != null && this.statETag.equals(previous.statETag)) {
+			this.contentHashETag = previous.contentHashETag;
+		}
+	}
+	
+	/**
+	 * Count a request for this file.
+	 * 
+	 */
+	public void recordHit() {
+		this.hits++;
+	}
+	
+	// Usual accessors follow
+
+	/**
+	 * @return the path
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the exists
+	 */
+	public boolean isExists() {
+		return exists;
+	}
+
+	/**
+	 * @return the directory
+	 */
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the regularFile
+	 */
+	public boolean isRegularFile() {
+		return regularFile;
+	}
+
+	/**
+	 * @return the hidden
+	 */
+	public boolean isHidden() {
+		return hidden;
+	}
+
+	/**
+	 * @return the length
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the lastModified
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the last modified time formatted for the
+	 *         <code>Last-Modified</code> header
+	 */
+	public AsciiString getLastModifiedHeader() {
+		AsciiString header = this.lastModifiedHeader;
+		if(header == null) {
+			header = HttpDateClock.format(this.lastModified);
+			this.lastModifiedHeader = header;
+		}
+		
+		return header;
+	}
+
+	/**
+	 * @return the entity tag to send, the content hash based one if
+	 *         available
+	 */
+	public AsciiString getETag() {
+		AsciiString etag = this.contentHashETag;
+		if(etag != null) {
+			return etag;
+		}
+		
+		return this.statETag;
+	}
+	
+	/**
+	 * @return the entity tag derived from inode, length and modification time
+	 */
+	public AsciiString getStatETag() {
+		return statETag;
+	}
+	
+	/**
+	 * @return the entity tag derived from the content, if computed
+	 */
+	public AsciiString getContentHashETag() {
+		return contentHashETag;
+	}
+	
+	/**
+	 * @param contentHashETag
+	 *            the entity tag derived from the content
+	 */
+	void setContentHashETag(AsciiString contentHashETag) {
+		this.contentHashETag = contentHashETag;
+	}
+
+	/**
+	 * @return the contentType
+	 */
+	public AsciiString getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return the content encoding, if this is a precompressed variant
+	 */
+	public AsciiString getContentEncoding() {
+		return contentEncoding;
+	}
+
+	/**
+	 * @return the precompressed brotli variant, if any
+	 */
+	public FileMetadata getBrotliVariant() {
+		return brotliVariant;
+	}
+
+	/**
+	 * @return the precompressed gzip variant, if any
+	 */
+	public FileMetadata getGzipVariant() {
+		return gzipVariant;
+	}
+	
+	/**
+	 * @return whether the representation sent depends on the
+	 *         <code>Accept-Encoding</code> request header
+	 */
+	public boolean hasVariants() {
+		return this.contentEncoding != null || this.brotliVariant != null || this.gzipVariant != null;
+	}
+
+	/**
+	 * @return how often this file was asked for, roughly
+	 */
+	public int getHits() {
+		return hits;
+	}
+	
+	/**
+	 * @return the path of the index file to serve for this directory, or
+	 *         <code>null</code> if none exists
+	 */
+	public String getIndexPath() {
+		return indexPath;
+	}
+
+}
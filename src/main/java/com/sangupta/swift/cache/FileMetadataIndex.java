@@ -0,0 +1,897 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sangupta.swift.netty.MimeTypeRegistry;
+
+/**
+ * A concurrent index of {@link FileMetadata} keyed by the sanitized request
+ * path. Directories are registered with a {@link WatchService} as they are
+ * first seen, and any change reported for them drops the affected entries.
+ * When no watch service is available, or polling has been asked for, entries
+ * simply expire after the polling interval and are read again.
+ * 
+ * If enabled, a hash of the content of each file is computed on a background
+ * thread and used as its entity tag once available.
+ * 
+ * The index holds at most a given number of entries, evicting the ones not
+ * used for a while with a clock sweep so that lookups never take a lock.
+ * Entries are kept sorted by path, so that a whole folder is dropped in one
+ * go when it changes. Paths that do not exist are only kept for a moment.
+ * 
+ * If enabled, and changes are being watched, an {@link ExistenceFilter} of
+ * all paths under the document root is built by {@link #preIndex(int)} and
+ * kept up to date as files are created.
+ * 
+ * @author sangupta
+ *
+ */
+public class FileMetadataIndex {
+	
+	/**
+	 * Default time after which an unwatched entry is read again
+	 */
+	public static final long DEFAULT_POLL_MILLIS = 2000;
+	
+	/**
+	 * Default number of entries held in the index
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 250000;
+	
+	private final File documentRoot;
+	
+	private final Path rootPath;
+	
+	private final long pollMillis;
+	
+	private final MimeTypeRegistry mimeTypes;
+	
+	private final boolean lookupVariants;
+	
+	/**
+	 * Computes content hashes, <code>null</code> if disabled
+	 */
+	private final ThreadPoolExecutor hashExecutor;
+	
+	private final int maxEntries;
+	
+	private final ConcurrentNavigableMap<String, FileMetadata> entries = new ConcurrentSkipListMap<String, FileMetadata>();
+	
+	/**
+	 * Entries in the order they were added, swept to find the ones to evict.
+	 * Entries dropped from the index meanwhile are skipped over.
+	 */
+	private final ConcurrentLinkedQueue<FileMetadata> clock = new ConcurrentLinkedQueue<FileMetadata>();
+	
+	/**
+	 * Size of the clock, which is not cheap to ask for
+	 */
+	private final AtomicInteger clockSize = new AtomicInteger();
+	
+	/**
+	 * Watched folders keyed by their index key
+	 */
+	private final ConcurrentNavigableMap<String, WatchKey> watchedFolders = new ConcurrentSkipListMap<String, WatchKey>();
+	
+	private final WatchService watchService;
+	
+	private final Thread watchThread;
+	
+	/**
+	 * All paths under the document root, <code>null</code> if disabled
+	 */
+	private final ExistenceFilter existenceFilter;
+	
+	/**
+	 * Parallelism of the last walk, used again to rebuild the filter
+	 */
+	private volatile int walkParallelism = 1;
+	
+	/**
+	 * Told of the paths the watcher reports as changed, may be
+	 * <code>null</code>
+	 */
+	private volatile ChangeListener changeListener;
+	
+	private volatile boolean closed = false;
+	
+	public FileMetadataIndex(File documentRoot, MimeTypeRegistry mimeTypes, boolean lookupVariants, boolean contentHash, boolean useWatcher, long pollMillis, boolean existenceFilter, int maxEntries) {
+		if(maxEntries <= 0) {
+			throw new IllegalArgumentException("Max entries must be positive");
+		}
+		
+		this.documentRoot = documentRoot;
+		this.maxEntries = maxEntries;
+		this.mimeTypes = mimeTypes;
+		this.lookupVariants = lookupVariants;
+		
+		if(contentHash) {
+			this.hashExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(4096), new DefaultThreadFactory("swift-content-hash", true));
+		} else {
+			this.hashExecutor = null;
+		}
+		this.rootPath = documentRoot.toPath().toAbsolutePath().normalize();
+		this.pollMillis = pollMillis;
+		
+		WatchService service = null;
+		if(useWatcher) {
+			try {
+				service = this.rootPath.getFileSystem().newWatchService();
+			} catch(IOException e) {
+				System.out.println("Unable to create file watcher, falling back to polling: " + e.getMessage());
+			} catch(UnsupportedOperationException e) {
+				System.out.println("File watching not supported, falling back to polling");
+			}
+		}
+		
+		this.watchService = service;
+		
+		if(existenceFilter && this.watchService == null) {
+			System.out.println("Existence filter needs a file watcher to stay current, disabled");
+		}
+		
+		this.existenceFilter = existenceFilter && this.watchService != null ? new ExistenceFilter() : null;
+		
+		if(this.watchService == null) {
+			this.watchThread = null;
+			return;
+		}
+		
+		this.watchThread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				watchLoop();
+			}
+			
+		}, "swift-file-watcher-" + documentRoot.getName());
+		this.watchThread.setDaemon(true);
+		this.watchThread.start();
+	}
+	
+	/**
+	 * Return the metadata for the given sanitized path, reading it from disk
+	 * only if we have no valid snapshot.
+	 * 
+	 * @param path
+	 *            the sanitized path
+	 * 
+	 * @return the metadata, never <code>null</code>
+	 */
+	public FileMetadata get(String path) {
+		final FileMetadata previous = this.entries.get(path);
+		if(previous != null && previous.isValid(System.currentTimeMillis(), this.pollMillis)) {
+			previous.referenced = true;
+			return previous;
+		}
+		
+		File file = new File(this.documentRoot, path);
+		FileMetadata metadata = FileMetadata.read(path, file, this.mimeTypes, this.lookupVariants);
+		if(previous != null) {
+			metadata.inherit(previous);
+		}
+		
+		// register the watch before publishing so that we do not miss a change,
+		// missing paths expire soon enough on their own
+		if(this.watchService != null && metadata.isExists()) {
+			metadata.watched = this.watch(file, metadata.isDirectory());
+		}
+		
+		this.add(metadata);
+		
+		if(this.hashExecutor != null && metadata.isRegularFile() && metadata.getContentHashETag() == null) {
+			this.computeContentHash(metadata);
+		}
+		
+		return metadata;
+	}
+	
+	/**
+	 * Walk the whole document root and read the metadata of everything under
+	 * it, one fork/join task per folder. Hidden folders are not descended
+	 * into. The existence filter, if enabled, is built along the way.
+	 * 
+	 * @param parallelism
+	 *            how many folders to read at the same time
+	 * 
+	 * @return the number of entries in the index afterwards
+	 */
+	public int preIndex(int parallelism) {
+		this.walkParallelism = parallelism;
+		if(this.existenceFilter != null) {
+			this.existenceFilter.begin();
+		}
+		
+		this.walk(this.get(File.separator), parallelism);
+		
+		if(this.existenceFilter != null) {
+			this.existenceFilter.add(File.separator);
+			this.existenceFilter.complete();
+		}
+		
+		return this.entries.size();
+	}
+	
+	/**
+	 * Check if the given path may exist, without touching the file system.
+	 * 
+	 * @param path
+	 *            the sanitized path
+	 * 
+	 * @return <code>false</code> only if the existence filter is in use and
+	 *         knows the path does not exist
+	 */
+	public boolean mightExist(String path) {
+		return this.existenceFilter == null || this.existenceFilter.mightExist(path);
+	}
+	
+	/**
+	 * Fill the index from a snapshot written by {@link #save(File)}. Entries
+	 * are checked against the disk the first time they are asked for, and
+	 * keep their content hash and hit count if the file did not change.
+	 * 
+	 * @param snapshotFile
+	 * 
+	 * @return the number of entries loaded, zero if the snapshot could not be
+	 *         used
+	 */
+	public int restore(File snapshotFile) {
+		List<FileMetadata> restored;
+		try {
+			restored = IndexSnapshot.read(snapshotFile, this.documentRoot, this.mimeTypes);
+		} catch(IOException e) {
+			System.out.println("Unable to read index snapshot " + snapshotFile + ": " + e.getMessage());
+			return 0;
+		}
+		
+		if(restored == null) {
+			System.out.println("Ignoring index snapshot " + snapshotFile + " as it is not one of this document root");
+			return 0;
+		}
+		
+		for(FileMetadata metadata : restored) {
+			if(this.entries.putIfAbsent(metadata.getPath(), metadata) == null) {
+				this.enqueue(metadata);
+			}
+		}
+		
+		return restored.size();
+	}
+	
+	/**
+	 * Write a snapshot of the index to the given file, to be restored by the
+	 * next run.
+	 * 
+	 * @param snapshotFile
+	 * 
+	 * @return the number of entries written
+	 * 
+	 * @throws IOException
+	 */
+	public int save(File snapshotFile) throws IOException {
+		return IndexSnapshot.write(snapshotFile, this.documentRoot, this.entries.values());
+	}
+	
+	/**
+	 * Return the files asked for most often, as far as the index knows.
+	 * 
+	 * @param count
+	 *            the most files to return
+	 * 
+	 * @return the files, hottest first
+	 */
+	public List<FileMetadata> getHottest(int count) {
+		List<FileMetadata> files = new ArrayList<FileMetadata>();
+		for(FileMetadata metadata : this.entries.values()) {
+			if(metadata.isRegularFile() && metadata.getHits() > 0) {
+				files.add(metadata);
+			}
+		}
+		
+		Collections.sort(files, new Comparator<FileMetadata>() {
+			
+			@Override
+			public int compare(FileMetadata first, FileMetadata second) {
+				return second.getHits() < first.getHits() ? -1 : (second.getHits() == first.getHits() ? 0 : 1);
+			}
+			
+		});
+		
+		if(files.size() > count) {
+			return files.subList(0, count);
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * Return the metadata for the given path only if it can be had without
+	 * touching the file system.
+	 * 
+	 * @param path
+	 * @return the metadata, or <code>null</code> if it needs to be read
+	 */
+	public FileMetadata getCached(String path) {
+		FileMetadata metadata = this.entries.get(path);
+		if(metadata != null && metadata.isValid(System.currentTimeMillis(), this.pollMillis)) {
+			metadata.referenced = true;
+			return metadata;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Drop the entry for the given path, if any.
+	 * 
+	 * @param path
+	 */
+	public void invalidate(String path) {
+		this.entries.remove(path);
+	}
+	
+	/**
+	 * Forget what we know of a file the server has just written, and of the
+	 * folders holding it. The existence filter learns of the file and any
+	 * folder created for it right away, rather than when the watcher gets to
+	 * it.
+	 * 
+	 * @param path
+	 *            the sanitized path of the file
+	 */
+	public void fileWritten(String path) {
+		this.entries.remove(path);
+		
+		int separator = path.lastIndexOf(File.separatorChar);
+		while(separator >= 0) {
+			String folder = path.substring(0, separator + 1);
+			this.entries.remove(folder);
+			if(separator > 0) {
+				this.entries.remove(path.substring(0, separator));
+			}
+			
+			if(this.existenceFilter != null) {
+				this.existenceFilter.add(folder);
+			}
+			
+			separator = path.lastIndexOf(File.separatorChar, separator - 1);
+		}
+		
+		if(this.existenceFilter != null) {
+			this.existenceFilter.add(path);
+		}
+	}
+	
+	/**
+	 * Set who to tell of the paths the watcher reports as changed, so that
+	 * what is held for them elsewhere can be dropped as well.
+	 * 
+	 * @param changeListener
+	 */
+	public void setChangeListener(ChangeListener changeListener) {
+		this.changeListener = changeListener;
+	}
+	
+	/**
+	 * @return the number of entries currently in the index, counted one by
+	 *         one
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+	
+	/**
+	 * @return the filter of all paths under the document root, with its hit
+	 *         counters, or <code>null</code> if disabled
+	 */
+	public ExistenceFilter getExistenceFilter() {
+		return this.existenceFilter;
+	}
+	
+	/**
+	 * @return whether changes are being tracked with a watch service
+	 */
+	public boolean isWatching() {
+		return this.watchService != null;
+	}
+	
+	/**
+	 * Stop watching the document root.
+	 * 
+	 */
+	public void close() {
+		this.closed = true;
+		if(this.hashExecutor != null) {
+			this.hashExecutor.shutdownNow();
+		}
+		
+		if(this.watchService != null) {
+			try {
+				this.watchService.close();
+			} catch(IOException e) {
+				// nothing we can do
+			}
+		}
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * Publish a new snapshot, evicting entries not used for a while if the
+	 * index is full.
+	 * 
+	 * @param metadata
+	 */
+	private void add(FileMetadata metadata) {
+		this.entries.put(metadata.getPath(), metadata);
+		this.enqueue(metadata);
+	}
+	
+	private void enqueue(FileMetadata metadata) {
+		this.clock.offer(metadata);
+		if(this.clockSize.incrementAndGet() > this.maxEntries) {
+			this.evict();
+		}
+	}
+	
+	/**
+	 * Sweep the clock till it is within bounds: entries used since the last
+	 * sweep get another round, the others are dropped.
+	 * 
+	 */
+	private void evict() {
+		while(this.clockSize.get() > this.maxEntries) {
+			FileMetadata metadata = this.clock.poll();
+			if(metadata == null) {
+				return;
+			}
+			
+			if(metadata.referenced && this.entries.get(metadata.getPath()) == metadata) {
+				metadata.referenced = false;
+				this.clock.offer(metadata);
+				continue;
+			}
+			
+			// either not used lately, or already replaced or dropped
+			this.entries.remove(metadata.getPath(), metadata);
+			this.clockSize.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Read the metadata of everything under the given folder.
+	 * 
+	 * @param folder
+	 * @param parallelism
+	 */
+	private void walk(FileMetadata folder, int parallelism) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new IndexTask(folder, 0));
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Check if a walk should descend into the given folder. Hidden folders
+	 * that may still be requested are noted in the existence filter as ones
+	 * we know nothing about.
+	 * 
+	 * @param metadata
+	 * @return
+	 */
+	private boolean isWalkable(FileMetadata metadata) {
+		if(!metadata.isDirectory()) {
+			return false;
+		}
+		
+		if(!metadata.isHidden()) {
+			return true;
+		}
+		
+		// dot folders can never be requested
+		if(this.existenceFilter != null && !metadata.getFile().getName().startsWith(".")) {
+			this.existenceFilter.addUnknownFolder(metadata.getPath());
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Add a path the watcher reported as created to the existence filter,
+	 * along with everything under it if it is a folder.
+	 * 
+	 * @param path
+	 */
+	private void addCreated(Path path) {
+		String key = this.toKey(path);
+		if(key == null) {
+			return;
+		}
+		
+		this.existenceFilter.add(key);
+		
+		if(path.toFile().isDirectory()) {
+			// registers the watch, and reads what was moved in with it
+			FileMetadata metadata = this.get(key);
+			if(this.isWalkable(metadata)) {
+				this.walk(metadata, 1);
+			}
+		}
+	}
+	
+	/**
+	 * Build the existence filter again after the watcher lost track of
+	 * changes. This runs on the watcher thread, and changes made meanwhile
+	 * are picked up from its queue once done.
+	 * 
+	 */
+	private void rebuildExistenceFilter() {
+		long start = System.currentTimeMillis();
+		this.preIndex(this.walkParallelism);
+		System.out.println("Rebuilt existence filter of " + this.existenceFilter.getPathCount() + " paths in " + (System.currentTimeMillis() - start) + " ms");
+	}
+	
+	/**
+	 * Hash the content of the file in the background and attach the result to
+	 * the metadata. If the queue is full the file keeps its stat based tag.
+	 * 
+	 * @param metadata
+	 */
+	private void computeContentHash(final FileMetadata metadata) {
+		try {
+			this.hashExecutor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						MessageDigest digest = MessageDigest.getInstance("MD5");
+						InputStream stream = new FileInputStream(metadata.getFile());
+						try {
+							byte[] buffer = new byte[16 * 1024];
+							int read;
+							while((read = stream.read(buffer)) >= 0) {
+								digest.update(buffer, 0, read);
+							}
+						} finally {
+							stream.close();
+						}
+						
+						// only publish if the file did not change while we were reading
+						if(metadata.getFile().lastModified() != metadata.getLastModified()) {
+							return;
+						}
+						
+						StringBuilder builder = new StringBuilder(34);
+						builder.append('"');
+						for(byte b : digest.digest()) {
+							builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+						}
+						
+						builder.append('"');
+						metadata.setContentHashETag(new AsciiString(builder));
+					} catch(IOException e) {
+						// file went away, the watcher will take care of it
+					} catch(NoSuchAlgorithmException e) {
+						// cannot happen, MD5 is always available
+					}
+				}
+				
+			});
+		} catch(RejectedExecutionException e) {
+			// too busy, keep the stat based tag
+		}
+	}
+	
+	/**
+	 * Make sure that the folder that would report a change to this file is
+	 * being watched. For a missing file this is the nearest existing ancestor.
+	 * 
+	 * @param file
+	 * @param directory
+	 * @return <code>true</code> if changes to the file will be reported
+	 */
+	private boolean watch(File file, boolean directory) {
+		Path path = file.toPath().toAbsolutePath().normalize();
+		if(!path.startsWith(this.rootPath)) {
+			return false;
+		}
+		
+		boolean watched = true;
+		if(directory) {
+			// watch the directory itself so that index file changes are seen
+			watched = this.register(path);
+		}
+		
+		Path parent = path.getParent();
+		while(parent != null && parent.startsWith(this.rootPath)) {
+			if(parent.toFile().isDirectory()) {
+				return this.register(parent) && watched;
+			}
+			
+			parent = parent.getParent();
+		}
+		
+		// this is the document root itself
+		return watched;
+	}
+	
+	private boolean register(Path folder) {
+		String folderKey = this.toKey(folder);
+		if(this.watchedFolders.containsKey(folderKey)) {
+			return true;
+		}
+		
+		try {
+			WatchKey key = folder.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			this.watchedFolders.put(folderKey, key);
+			return true;
+		} catch(IOException e) {
+			return false;
+		} catch(ClosedWatchServiceException e) {
+			return false;
+		}
+	}
+	
+	private void watchLoop() {
+		while(!this.closed) {
+			WatchKey key;
+			try {
+				key = this.watchService.take();
+			} catch(InterruptedException e) {
+				return;
+			} catch(ClosedWatchServiceException e) {
+				return;
+			}
+			
+			Path folder = (Path) key.watchable();
+			for(WatchEvent<?> event : key.pollEvents()) {
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					// we lost track of what changed
+					this.entries.clear();
+					this.fireChanged(File.separator, true);
+					if(this.existenceFilter != null) {
+						this.rebuildExistenceFilter();
+					}
+					
+					continue;
+				}
+				
+				Path child = folder.resolve((Path) event.context());
+				this.invalidateTree(child);
+				
+				if(this.existenceFilter != null && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					this.addCreated(child);
+				}
+				
+				// a precompressed sibling changes what we know of the original
+				String name = child.getFileName().toString();
+				if(name.endsWith(".gz") || name.endsWith(".br")) {
+					this.invalidatePath(folder.resolve(name.substring(0, name.length() - 3)));
+				}
+			}
+			
+			// the folder itself changed as well
+			this.invalidatePath(folder);
+			
+			if(!key.reset()) {
+				this.watchedFolders.remove(this.toKey(folder));
+				this.invalidateTree(folder);
+			}
+		}
+	}
+	
+	/**
+	 * Remove the entry for the given path and everything under it.
+	 * 
+	 * @param path
+	 */
+	private void invalidateTree(Path path) {
+		String key = this.toKey(path);
+		if(key == null) {
+			return;
+		}
+		
+		String prefix = key.endsWith(File.separator) ? key : key + File.separatorChar;
+		
+		// keys are sorted, so everything under the folder is a single range
+		this.entries.remove(key);
+		this.entries.subMap(prefix, prefix + '\uffff').clear();
+		this.fireChanged(key, true);
+		
+		// the folder may have gone, so stop tracking it
+		this.unwatchIfGone(key, this.watchedFolders.get(key));
+		for(Map.Entry<String, WatchKey> folder : this.watchedFolders.subMap(prefix, prefix + '\uffff').entrySet()) {
+			this.unwatchIfGone(folder.getKey(), folder.getValue());
+		}
+	}
+	
+	private void unwatchIfGone(String key, WatchKey watchKey) {
+		if(watchKey == null || ((Path) watchKey.watchable()).toFile().isDirectory()) {
+			return;
+		}
+		
+		watchKey.cancel();
+		this.watchedFolders.remove(key, watchKey);
+	}
+	
+	private void invalidatePath(Path path) {
+		String key = this.toKey(path);
+		if(key == null) {
+			return;
+		}
+		
+		this.entries.remove(key);
+		this.entries.remove(key.endsWith(File.separator) ? key.substring(0, key.length() - 1) : key + File.separatorChar);
+		this.fireChanged(key, false);
+	}
+	
+	private void fireChanged(String key, boolean tree) {
+		ChangeListener listener = this.changeListener;
+		if(listener != null) {
+			listener.changed(key, tree);
+		}
+	}
+	
+	/**
+	 * Reads the metadata of everything in a single folder, and forks a task
+	 * for each folder found in it.
+	 * 
+	 */
+	private class IndexTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Stop descending at this depth, in case of symbolic link loops
+		 */
+		private static final int MAX_DEPTH = 64;
+		
+		private final FileMetadata folder;
+		
+		private final int depth;
+		
+		IndexTask(FileMetadata folder, int depth) {
+			this.folder = folder;
+			this.depth = depth;
+		}
+		
+		@Override
+		protected void compute() {
+			if(!this.folder.isDirectory()) {
+				return;
+			}
+			
+			final String path = this.folder.getPath();
+			final ExistenceFilter filter = FileMetadataIndex.this.existenceFilter;
+			
+			// without a watch on the folder we would never hear of new entries
+			if(filter != null && (this.depth > MAX_DEPTH || !this.folder.watched)) {
+				filter.addUnknownFolder(path);
+			}
+			
+			if(this.depth > MAX_DEPTH) {
+				return;
+			}
+			
+			final String prefix = path.endsWith(File.separator) ? path : path + File.separatorChar;
+			
+			List<IndexTask> subTasks = new ArrayList<IndexTask>();
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(this.folder.getFile().toPath());
+				try {
+					for(Path child : stream) {
+						String childPath = prefix + child.getFileName().toString();
+						if(filter != null) {
+							filter.add(childPath);
+						}
+						
+						FileMetadata metadata = FileMetadataIndex.this.get(childPath);
+						if(FileMetadataIndex.this.isWalkable(metadata)) {
+							subTasks.add(new IndexTask(metadata, this.depth + 1));
+						}
+					}
+				} finally {
+					stream.close();
+				}
+			} catch(IOException e) {
+				// folder went away or cannot be read, skip it
+				if(filter != null) {
+					filter.addUnknownFolder(path);
+				}
+				
+				return;
+			}
+			
+			invokeAll(subTasks);
+		}
+		
+	}
+	
+	/**
+	 * Told of the paths whose entries the watcher dropped as they changed.
+	 * Called on the watcher thread.
+	 * 
+	 */
+	public interface ChangeListener {
+		
+		/**
+		 * @param path
+		 *            the sanitized path that changed
+		 * 
+		 * @param tree
+		 *            whether everything under the path may have changed too
+		 */
+		public void changed(String path, boolean tree);
+		
+	}
+	
+	/**
+	 * Convert an absolute path into the sanitized form used as index key.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	private String toKey(Path path) {
+		if(!path.startsWith(this.rootPath)) {
+			return null;
+		}
+		
+		String relative = this.rootPath.relativize(path).toString();
+		return File.separator + relative;
+	}
+
+}
@@ -0,0 +1,271 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import io.netty.util.AsciiString;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.sangupta.swift.netty.MimeTypeRegistry;
+
+/**
+ * Reads and writes the compact, binary snapshot of a {@link FileMetadataIndex}
+ * that lets a restarted server skip walking the document root. The snapshot
+ * is memory mapped when read, and every entry loaded from it is checked
+ * against the disk the first time it is used.
+ * 
+ * Content types are not stored, they are resolved again with the current
+ * registry when the snapshot is read.
+ * 
+ * @author sangupta
+ *
+ */
+public class IndexSnapshot {
+	
+	private static final int MAGIC = 0x53574958;
+	
+	private static final int VERSION = 1;
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private static final int FLAG_DIRECTORY = 1;
+	
+	private static final int FLAG_REGULAR_FILE = 2;
+	
+	private static final int FLAG_HIDDEN = 4;
+	
+	private static final int FLAG_BROTLI_VARIANT = 8;
+	
+	private static final int FLAG_GZIP_VARIANT = 16;
+	
+	private IndexSnapshot() {
+		// not to be created
+	}
+	
+	/**
+	 * Write the given entries to the snapshot file. The file is replaced in
+	 * one go, so a crash while writing leaves the old snapshot in place.
+	 * 
+	 * @param snapshotFile
+	 * @param documentRoot
+	 * @param entries
+	 * @return the number of entries written
+	 * @throws IOException
+	 */
+	public static int write(File snapshotFile, File documentRoot, Collection<FileMetadata> entries) throws IOException {
+		File temp = new File(snapshotFile.getPath() + ".tmp");
+		
+		int count = 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, documentRoot.getAbsolutePath());
+			
+			for(FileMetadata metadata : entries) {
+				if(!metadata.isExists() || metadata.getContentEncoding() != null) {
+					continue;
+				}
+				
+				writeEntry(out, metadata);
+				count++;
+			}
+			
+			// end marker, so that a truncated file is noticed
+			writeString(out, null);
+		} finally {
+			out.close();
+		}
+		
+		if(snapshotFile.exists() && !snapshotFile.delete()) {
+			throw new IOException("Unable to replace snapshot: " + snapshotFile);
+		}
+		
+		if(!temp.renameTo(snapshotFile)) {
+			throw new IOException("Unable to move snapshot in place: " + snapshotFile);
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Read the entries of the given snapshot file.
+	 * 
+	 * @param snapshotFile
+	 * @param documentRoot
+	 *            the document root the snapshot must have been taken of
+	 * @param mimeTypes
+	 *            the registry to resolve content types with
+	 * @return the entries, all of them in need of a check against the disk, or
+	 *         <code>null</code> if the snapshot does not belong to this
+	 *         document root or is not one we can read
+	 * @throws IOException
+	 */
+	public static List<FileMetadata> read(File snapshotFile, File documentRoot, MimeTypeRegistry mimeTypes) throws IOException {
+		MappedByteBuffer buffer;
+		RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			// the mapping stays valid once the file is closed
+			raf.close();
+		}
+		
+		try {
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			
+			if(!documentRoot.getAbsolutePath().equals(readString(buffer))) {
+				return null;
+			}
+			
+			List<FileMetadata> entries = new ArrayList<FileMetadata>();
+			String path;
+			while((path = readString(buffer)) != null) {
+				entries.add(readEntry(buffer, path, new File(documentRoot, path), mimeTypes));
+			}
+			
+			return entries;
+		} catch(BufferUnderflowException e) {
+			// cut short, do not trust any of it
+			return null;
+		}
+	}
+	
+	// Internal methods follow
+	
+	private static void writeEntry(DataOutputStream out, FileMetadata metadata) throws IOException {
+		FileMetadata brotli = metadata.getBrotliVariant();
+		FileMetadata gzip = metadata.getGzipVariant();
+		
+		int flags = 0;
+		flags |= metadata.isDirectory() ? FLAG_DIRECTORY : 0;
+		flags |= metadata.isRegularFile() ? FLAG_REGULAR_FILE : 0;
+		flags |= metadata.isHidden() ? FLAG_HIDDEN : 0;
+		flags |= brotli != null ? FLAG_BROTLI_VARIANT : 0;
+		flags |= gzip != null ? FLAG_GZIP_VARIANT : 0;
+		
+		writeString(out, metadata.getPath());
+		out.writeByte(flags);
+		out.writeLong(metadata.getLength());
+		out.writeLong(metadata.getLastModified());
+		out.writeInt(metadata.getHits());
+		writeString(out, metadata.getIndexPath());
+		writeString(out, toString(metadata.getStatETag()));
+		writeString(out, toString(metadata.getContentHashETag()));
+		
+		for(FileMetadata variant : new FileMetadata[] { brotli, gzip }) {
+			if(variant != null) {
+				out.writeLong(variant.getLength());
+				out.writeLong(variant.getLastModified());
+				writeString(out, toString(variant.getStatETag()));
+			}
+		}
+	}
+	
+	private static FileMetadata readEntry(ByteBuffer buffer, String path, File file, MimeTypeRegistry mimeTypes) {
+		int flags = buffer.get();
+		long length = buffer.getLong();
+		long lastModified = buffer.getLong();
+		int hits = buffer.getInt();
+		String indexPath = readString(buffer);
+		AsciiString statETag = toAsciiString(readString(buffer));
+		AsciiString contentHashETag = toAsciiString(readString(buffer));
+		
+		boolean regularFile = (flags & FLAG_REGULAR_FILE) != 0;
+		AsciiString contentType = regularFile ? mimeTypes.getMimeType(path) : null;
+		
+		FileMetadata brotli = null;
+		if((flags & FLAG_BROTLI_VARIANT) != 0) {
+			brotli = readVariant(buffer, path, file, ".br", FileMetadata.ENCODING_BROTLI, contentType);
+		}
+		
+		FileMetadata gzip = null;
+		if((flags & FLAG_GZIP_VARIANT) != 0) {
+			gzip = readVariant(buffer, path, file, ".gz", FileMetadata.ENCODING_GZIP, contentType);
+		}
+		
+		FileMetadata metadata = new FileMetadata(path, file, true, (flags & FLAG_DIRECTORY) != 0, regularFile, (flags & FLAG_HIDDEN) != 0, length, lastModified,
+												 contentType, indexPath, null, brotli, gzip, statETag);
+		metadata.setContentHashETag(contentHashETag);
+		metadata.hits = hits;
+		metadata.restored = true;
+		return metadata;
+	}
+	
+	private static FileMetadata readVariant(ByteBuffer buffer, String path, File original, String suffix, AsciiString encoding, AsciiString contentType) {
+		long length = buffer.getLong();
+		long lastModified = buffer.getLong();
+		AsciiString statETag = toAsciiString(readString(buffer));
+		
+		return new FileMetadata(path + suffix, new File(original.getPath() + suffix), true, false, true, false, length, lastModified, contentType, null, encoding, null, null, statETag);
+	}
+	
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if(value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		
+		byte[] bytes = value.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if(length < 0) {
+			return null;
+		}
+		
+		if(length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+	
+	private static String toString(AsciiString value) {
+		return value == null ? null : value.toString();
+	}
+	
+	private static AsciiString toAsciiString(String value) {
+		return value == null ? null : new AsciiString(value);
+	}
+
+}
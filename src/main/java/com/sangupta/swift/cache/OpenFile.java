@@ -0,0 +1,184 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import io.netty.util.AsciiString;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file channel shared by all responses that send the same file. Only
+ * positional reads and transfers may be done on the channel, as others will
+ * be using it at the same time. The channel is closed once the last
+ * reference has been released.
+ * 
+ * The reference count is our own rather than that of
+ * {@link io.netty.util.AbstractReferenceCounted}, so that the cache can take
+ * a reference to a file it finds without a lock, and fail rather than throw
+ * if the file was dropped and closed meanwhile.
+ * 
+ * @author sangupta
+ *
+ */
+public class OpenFile implements ReferenceCounted {
+	
+	private final String path;
+	
+	private final FileChannel channel;
+	
+	/**
+	 * The stat based entity tag of the file when it was opened
+	 */
+	private final AsciiString statETag;
+	
+	private final AtomicInteger references = new AtomicInteger(1);
+	
+	/**
+	 * When was this file last handed out, maintained by the cache
+	 */
+	volatile long lastUsed;
+	
+	OpenFile(String path, FileChannel channel, AsciiString statETag) {
+		this.path = path;
+		this.channel = channel;
+		this.statETag = statETag;
+		this.lastUsed = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Check if the file opened is still the one described by the given
+	 * metadata.
+	 * 
+	 * @param metadata
+	 * @return
+	 */
+	boolean isCurrent(FileMetadata metadata) {
+		return this.statETag != null && this.statETag.equals(metadata.getStatETag());
+	}
+	
+	/**
+	 * Take one more reference, unless the file has already been closed.
+	 * 
+	 * @return <code>true</code> if the reference was taken
+	 */
+	boolean tryRetain() {
+		while(true) {
+			int count = this.references.get();
+			if(count == 0) {
+				return false;
+			}
+			
+			if(this.references.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	@Override
+	public int refCnt() {
+		return this.references.get();
+	}
+	
+	@Override
+	public OpenFile retain() {
+		return this.retain(1);
+	}
+	
+	@Override
+	public OpenFile retain(int increment) {
+		while(true) {
+			int count = this.references.get();
+			if(count == 0) {
+				throw new IllegalReferenceCountException(0, increment);
+			}
+			
+			if(this.references.compareAndSet(count, count + increment)) {
+				return this;
+			}
+		}
+	}
+	
+	@Override
+	public boolean release() {
+		return this.release(1);
+	}
+	
+	@Override
+	public boolean release(int decrement) {
+		while(true) {
+			int count = this.references.get();
+			if(count < decrement) {
+				throw new IllegalReferenceCountException(count, -decrement);
+			}
+			
+			if(this.references.compareAndSet(count, count - decrement)) {
+				if(count != decrement) {
+					return false;
+				}
+				
+				this.deallocate();
+				return true;
+			}
+		}
+	}
+	
+	@Override
+	public OpenFile touch() {
+		return this;
+	}
+	
+	@Override
+	public OpenFile touch(Object hint) {
+		return this;
+	}
+	
+	// Internal methods follow
+	
+	private void deallocate() {
+		try {
+			this.channel.close();
+		} catch(IOException e) {
+			// eat up
+		}
+	}
+	
+	// Usual accessors follow
+	
+	/**
+	 * @return the path
+	 */
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * @return the channel
+	 */
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+}
@@ -0,0 +1,294 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps files that are being served open, so that hot files do not pay for
+ * an <code>open</code> and <code>close</code> on every request, much like the
+ * <code>open_file_cache</code> of nginx.
+ * 
+ * The cache holds one reference to every {@link OpenFile} and hands out one
+ * more to each caller, which must release it when done. Files are dropped
+ * from the cache once they have not been asked for within the idle time,
+ * when more than the allowed number are open, when the file watcher reports
+ * a change, or when a newer copy is opened in their place. A dropped file is
+ * closed when the last response using it is done.
+ * 
+ * Lookups, which happen on the event loops, never take a lock nor close a
+ * file: the files sit in a concurrent map, and a reference is only taken on
+ * a file the cache has not dropped yet. The least recently used order is
+ * worked out by the sweeper alone, from the time each file was last handed
+ * out. It runs when a file is opened beyond the limit, on the file I/O pool,
+ * and on a task scheduled with {@link #startSweeping(EventExecutorGroup)},
+ * so that a file is not held open, and its disk space used after it is
+ * deleted, for lack of requests.
+ * 
+ * @author sangupta
+ *
+ */
+public class OpenFileCache {
+	
+	private final int maxOpen;
+	
+	private final long idleMillis;
+	
+	private final ConcurrentMap<String, OpenFile> files = new ConcurrentHashMap<String, OpenFile>();
+	
+	/**
+	 * The task dropping idle files, <code>null</code> till scheduled
+	 */
+	private ScheduledFuture<?> sweeper;
+	
+	public OpenFileCache(int maxOpen, long idleMillis) {
+		if(maxOpen <= 0 || idleMillis <= 0) {
+			throw new IllegalArgumentException("Max open files and idle time must be positive");
+		}
+		
+		this.maxOpen = maxOpen;
+		this.idleMillis = idleMillis;
+	}
+	
+	/**
+	 * Return the open file for the given metadata, if we have it. This never
+	 * touches the file system, and leaves a file that has changed on disk for
+	 * {@link #open(FileMetadata)} to replace.
+	 * 
+	 * @param metadata
+	 *            the current metadata of the file
+	 * 
+	 * @return the file with a reference owned by the caller, or
+	 *         <code>null</code> if the file needs to be opened
+	 */
+	public OpenFile getIfOpen(FileMetadata metadata) {
+		OpenFile file = this.files.get(metadata.getPath());
+		if(file == null || !file.isCurrent(metadata)) {
+			return null;
+		}
+		
+		// dropped and closed since we looked it up
+		if(!file.tryRetain()) {
+			return null;
+		}
+		
+		file.lastUsed = System.currentTimeMillis();
+		return file;
+	}
+	
+	/**
+	 * Return the open file for the given metadata, opening it if needed. This
+	 * may close files, and is meant for the file I/O pool.
+	 * 
+	 * @param metadata
+	 *            the current metadata of the file
+	 * 
+	 * @return the file with a reference owned by the caller
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public OpenFile open(FileMetadata metadata) throws IOException {
+		OpenFile file = this.getIfOpen(metadata);
+		if(file != null) {
+			return file;
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile(metadata.getFile(), "r");
+		file = new OpenFile(metadata.getPath(), raf.getChannel(), metadata.getStatETag());
+		file.lastUsed = System.currentTimeMillis();
+		
+		// the caller's reference, taken before anyone else can drop the file
+		file.retain();
+		
+		while(true) {
+			OpenFile existing = this.files.putIfAbsent(metadata.getPath(), file);
+			if(existing == null) {
+				break;
+			}
+			
+			if(existing.isCurrent(metadata) && existing.tryRetain()) {
+				// someone else opened it meanwhile, use theirs
+				file.release(2);
+				existing.lastUsed = System.currentTimeMillis();
+				return existing;
+			}
+			
+			// an older copy, replace it unless someone beat us to it
+			if(this.files.replace(metadata.getPath(), existing, file)) {
+				existing.release();
+				break;
+			}
+		}
+		
+		if(this.files.size() > this.maxOpen) {
+			this.evict();
+		}
+		
+		return file;
+	}
+	
+	/**
+	 * Drop the given path from the cache.
+	 * 
+	 * @param path
+	 */
+	public void invalidate(String path) {
+		OpenFile file = this.files.remove(path);
+		if(file != null) {
+			file.release();
+		}
+	}
+	
+	/**
+	 * Drop the given path and everything under it from the cache. This looks
+	 * at every open file, of which there are only so many.
+	 * 
+	 * @param path
+	 */
+	public void invalidateTree(String path) {
+		String prefix = path.endsWith(File.separator) ? path : path + File.separatorChar;
+		
+		for(Map.Entry<String, OpenFile> entry : this.files.entrySet()) {
+			if(entry.getKey().equals(path) || entry.getKey().startsWith(prefix)) {
+				this.drop(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Drop idle files every half of the idle time, on the given executor.
+	 * 
+	 * @param executor
+	 */
+	public synchronized void startSweeping(EventExecutorGroup executor) {
+		if(this.sweeper != null) {
+			return;
+		}
+		
+		final long period = Math.max(1, this.idleMillis / 2);
+		this.sweeper = executor.scheduleAtFixedRate(new Runnable() {
+			
+			@Override
+			public void run() {
+				sweep();
+			}
+			
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Drop the files that have not been used within the idle time, and then
+	 * the least recently used ones till we are within limits.
+	 * 
+	 */
+	public void sweep() {
+		final long now = System.currentTimeMillis();
+		
+		for(Map.Entry<String, OpenFile> entry : this.files.entrySet()) {
+			if(now - entry.getValue().lastUsed >= this.idleMillis) {
+				this.drop(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		this.evict();
+	}
+	
+	/**
+	 * Stop sweeping and drop all files from the cache.
+	 * 
+	 */
+	public synchronized void close() {
+		if(this.sweeper != null) {
+			this.sweeper.cancel(false);
+			this.sweeper = null;
+		}
+		
+		this.clear();
+	}
+	
+	/**
+	 * Drop all files from the cache.
+	 * 
+	 */
+	public void clear() {
+		for(Map.Entry<String, OpenFile> entry : this.files.entrySet()) {
+			this.drop(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/**
+	 * @return the number of files held open by the cache
+	 */
+	public int size() {
+		return this.files.size();
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * Drop the least recently used files till we are within limits. Each
+	 * round looks at every open file, but rounds are only needed for the few
+	 * files opened since the last sweep. Rounds are serialized so that opens
+	 * racing past the limit do not each drop a file for the same excess.
+	 * 
+	 */
+	private synchronized void evict() {
+		while(this.files.size() > this.maxOpen) {
+			Map.Entry<String, OpenFile> oldest = null;
+			for(Map.Entry<String, OpenFile> entry : this.files.entrySet()) {
+				if(oldest == null || entry.getValue().lastUsed < oldest.getValue().lastUsed) {
+					oldest = entry;
+				}
+			}
+			
+			if(oldest == null) {
+				return;
+			}
+			
+			this.drop(oldest.getKey(), oldest.getValue());
+		}
+	}
+	
+	/**
+	 * Drop the file from the cache, and release the reference of the cache,
+	 * unless it has already been dropped or replaced.
+	 * 
+	 * @param path
+	 * @param file
+	 */
+	private void drop(String path, OpenFile file) {
+		if(this.files.remove(path, file)) {
+			file.release();
+		}
+	}
+
+}
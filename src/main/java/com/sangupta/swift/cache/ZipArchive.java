@@ -0,0 +1,552 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AsciiString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.sangupta.swift.netty.HttpDateClock;
+import com.sangupta.swift.netty.MimeTypeRegistry;
+
+/**
+ * A ZIP or JAR archive served in place of a document root. The archive is
+ * mapped into memory and its central directory read once, when opened, into
+ * an index of entries keyed by the sanitized request path, along with the
+ * offset of the data of each entry in the archive. Nothing is read from the
+ * archive afterwards except the data being sent.
+ * 
+ * Only entries that are stored or deflated are served; encrypted entries and
+ * other compression methods are skipped. ZIP64 archives are read, but the
+ * archive must be smaller than 2 GB to be mapped in one piece.
+ * 
+ * @author sangupta
+ *
+ */
+public class ZipArchive {
+	
+	public static final int METHOD_STORED = 0;
+	
+	public static final int METHOD_DEFLATED = 8;
+	
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	
+	private static final int END_SIGNATURE = 0x06054b50;
+	
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	
+	private static final int END_SIZE = 22;
+	
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	
+	private static final int LOCAL_HEADER_SIZE = 30;
+	
+	private static final int EXTRA_ZIP64 = 0x0001;
+	
+	private static final int EXTRA_TIMESTAMP = 0x5455;
+	
+	private static final long UNSIGNED_INT = 0xFFFFFFFFL;
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private final File file;
+	
+	/**
+	 * The archive, shared by every region sent from it
+	 */
+	private final OpenFile openFile;
+	
+	/**
+	 * The whole archive, little endian
+	 */
+	private final ByteBuffer mapped;
+	
+	private final Map<String, Entry> entries;
+	
+	/**
+	 * Paths of all folders, explicit or implied by the entries in them, with
+	 * a trailing separator
+	 */
+	private final Set<String> folders;
+	
+	private ZipArchive(File file, OpenFile openFile, ByteBuffer mapped, Map<String, Entry> entries, Set<String> folders) {
+		this.file = file;
+		this.openFile = openFile;
+		this.mapped = mapped;
+		this.entries = entries;
+		this.folders = folders;
+	}
+	
+	/**
+	 * Map the given archive and read its central directory.
+	 * 
+	 * @param file
+	 *            the archive
+	 * 
+	 * @param mimeTypes
+	 *            the registry to find the content type of each entry in
+	 * 
+	 * @return the archive, ready to serve
+	 * 
+	 * @throws IOException
+	 *             if the archive cannot be read, is too large, or is not a
+	 *             valid ZIP file
+	 */
+	public static ZipArchive open(File file, MimeTypeRegistry mimeTypes) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		OpenFile openFile = new OpenFile(file.getAbsolutePath(), channel, null);
+		
+		try {
+			final long size = channel.size();
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("Archives of 2 GB or more cannot be mapped: " + file);
+			}
+			
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			mapped.order(ByteOrder.LITTLE_ENDIAN);
+			
+			Map<String, Entry> entries = new HashMap<String, Entry>();
+			Set<String> folders = new HashSet<String>();
+			folders.add(File.separator);
+			
+			readCentralDirectory(file, mapped, mimeTypes, entries, folders);
+			return new ZipArchive(file, openFile, mapped, entries, folders);
+		} catch(IOException e) {
+			openFile.release();
+			throw e;
+		} catch(RuntimeException e) {
+			// a bad offset somewhere in the archive
+			openFile.release();
+			throw new IOException("Archive is corrupt: " + file, e);
+		}
+	}
+	
+	/**
+	 * Return the entry for the given path.
+	 * 
+	 * @param path
+	 *            the sanitized path
+	 * 
+	 * @return the entry, or <code>null</code> if the archive has no file at
+	 *         the path
+	 */
+	public Entry get(String path) {
+		return this.entries.get(path);
+	}
+	
+	/**
+	 * Check if the given path is a folder in the archive.
+	 * 
+	 * @param path
+	 *            the sanitized path, with or without a trailing separator
+	 * 
+	 * @return
+	 */
+	public boolean isFolder(String path) {
+		return this.folders.contains(path.endsWith(File.separator) ? path : path + File.separatorChar);
+	}
+	
+	/**
+	 * The given section of the archive, straight from the mapped memory.
+	 * 
+	 * @param offset
+	 * @param length
+	 * @return a buffer that needs no releasing
+	 */
+	public ByteBuf slice(long offset, long length) {
+		ByteBuffer buffer = this.mapped.duplicate();
+		buffer.position((int) offset);
+		buffer.limit((int) (offset + length));
+		return Unpooled.wrappedBuffer(buffer.slice());
+	}
+	
+	/**
+	 * @return the archive file, with a reference for the caller to release
+	 */
+	public OpenFile retainFile() {
+		return this.openFile.retain();
+	}
+	
+	/**
+	 * @return the number of entries that can be served
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+	
+	/**
+	 * Give up the archive. Responses still sending from it keep it open till
+	 * they are done.
+	 * 
+	 */
+	public void close() {
+		this.openFile.release();
+	}
+	
+	@Override
+	public String toString() {
+		return "ZipArchive [file=" + this.file + ", entries=" + this.entries.size() + ", folders=" + this.folders.size() + "]";
+	}
+	
+	// Internal methods follow
+	
+	private static void readCentralDirectory(File file, ByteBuffer mapped, MimeTypeRegistry mimeTypes, Map<String, Entry> entries, Set<String> folders) throws IOException {
+		final int size = mapped.capacity();
+		
+		// the end record sits behind a comment of at most 64k
+		int end = -1;
+		for(int position = size - END_SIZE; position >= 0 && position >= size - END_SIZE - 0xFFFF; position--) {
+			if(mapped.getInt(position) == END_SIGNATURE) {
+				end = position;
+				break;
+			}
+		}
+		
+		if(end < 0) {
+			throw new IOException("Not a ZIP archive: " + file);
+		}
+		
+		long directorySize = mapped.getInt(end + 12) & UNSIGNED_INT;
+		long directoryOffset = mapped.getInt(end + 16) & UNSIGNED_INT;
+		
+		int locator = end - ZIP64_LOCATOR_SIZE;
+		if(locator >= 0 && mapped.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+			int zip64End = toPosition(mapped.getLong(locator + 8), size);
+			if(mapped.getInt(zip64End) != ZIP64_END_SIGNATURE) {
+				throw new IOException("Bad ZIP64 end of central directory: " + file);
+			}
+			
+			directorySize = mapped.getLong(zip64End + 40);
+			directoryOffset = mapped.getLong(zip64End + 48);
+		}
+		
+		final Calendar calendar = Calendar.getInstance();
+		final int directoryEnd = toPosition(directoryOffset + directorySize, size);
+		
+		int skipped = 0;
+		int position = toPosition(directoryOffset, size);
+		while(position + CENTRAL_HEADER_SIZE <= directoryEnd && mapped.getInt(position) == CENTRAL_HEADER_SIGNATURE) {
+			final int flags = mapped.getShort(position + 8) & 0xFFFF;
+			final int method = mapped.getShort(position + 10) & 0xFFFF;
+			final int dosTime = mapped.getShort(position + 12) & 0xFFFF;
+			final int dosDate = mapped.getShort(position + 14) & 0xFFFF;
+			final int crc = mapped.getInt(position + 16);
+			long compressedSize = mapped.getInt(position + 20) & UNSIGNED_INT;
+			long uncompressedSize = mapped.getInt(position + 24) & UNSIGNED_INT;
+			final int nameLength = mapped.getShort(position + 28) & 0xFFFF;
+			final int extraLength = mapped.getShort(position + 30) & 0xFFFF;
+			final int commentLength = mapped.getShort(position + 32) & 0xFFFF;
+			long localOffset = mapped.getInt(position + 42) & UNSIGNED_INT;
+			
+			byte[] nameBytes = new byte[nameLength];
+			ByteBuffer name = mapped.duplicate();
+			name.position(position + CENTRAL_HEADER_SIZE);
+			name.get(nameBytes);
+			String entryName = new String(nameBytes, UTF_8);
+			
+			long lastModified = -1;
+			
+			// sizes and offsets too large for the header, and the exact time
+			int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+			final int extraEnd = extra + extraLength;
+			while(extra + 4 <= extraEnd) {
+				final int id = mapped.getShort(extra) & 0xFFFF;
+				final int length = mapped.getShort(extra + 2) & 0xFFFF;
+				int field = extra + 4;
+				final int fieldEnd = Math.min(field + length, extraEnd);
+				
+				if(id == EXTRA_ZIP64) {
+					if(uncompressedSize == UNSIGNED_INT && field + 8 <= fieldEnd) {
+						uncompressedSize = mapped.getLong(field);
+						field += 8;
+					}
+					
+					if(compressedSize == UNSIGNED_INT && field + 8 <= fieldEnd) {
+						compressedSize = mapped.getLong(field);
+						field += 8;
+					}
+					
+					if(localOffset == UNSIGNED_INT && field + 8 <= fieldEnd) {
+						localOffset = mapped.getLong(field);
+					}
+				} else if(id == EXTRA_TIMESTAMP && length >= 5 && (mapped.get(field) & 1) != 0) {
+					lastModified = (mapped.getInt(field + 1) & UNSIGNED_INT) * 1000;
+				}
+				
+				extra += 4 + length;
+			}
+			
+			position = extraEnd + commentLength;
+			
+			String path = toPath(entryName);
+			if(path == null) {
+				skipped++;
+				continue;
+			}
+			
+			addFolders(path, folders);
+			if(entryName.endsWith("/")) {
+				folders.add(path + File.separatorChar);
+				continue;
+			}
+			
+			if((flags & 1) != 0 || (method != METHOD_STORED && method != METHOD_DEFLATED)) {
+				// encrypted, or compressed in a way we cannot send
+				skipped++;
+				continue;
+			}
+			
+			// the data follows the local header, whose extra field may differ
+			final int local = toPosition(localOffset, size);
+			if(mapped.getInt(local) != LOCAL_HEADER_SIGNATURE) {
+				throw new IOException("Bad local header for " + entryName + " in " + file);
+			}
+			
+			long dataOffset = local + LOCAL_HEADER_SIZE + (mapped.getShort(local + 26) & 0xFFFF) + (mapped.getShort(local + 28) & 0xFFFF);
+			if(dataOffset + compressedSize > size) {
+				throw new IOException("Data of " + entryName + " runs past the end of " + file);
+			}
+			
+			if(lastModified < 0) {
+				lastModified = fromDosTime(calendar, dosDate, dosTime);
+			}
+			
+			// a later entry of the same name replaces an earlier one
+			entries.put(path, new Entry(path, method, crc, compressedSize, uncompressedSize, dataOffset, lastModified, mimeTypes.getMimeType(path)));
+		}
+		
+		if(skipped > 0) {
+			System.out.println("Skipped " + skipped + " entries of archive " + file + " that cannot be served");
+		}
+	}
+	
+	/**
+	 * The sanitized path for the given entry name, as <code>UriSanitizer</code>
+	 * would produce it for a request.
+	 * 
+	 * @param name
+	 * @return the path without any trailing separator, or <code>null</code>
+	 *         if no request could ever reach the entry
+	 */
+	private static String toPath(String name) {
+		StringBuilder builder = new StringBuilder(name.length() + 1);
+		for(String segment : name.split("/")) {
+			if(segment.isEmpty()) {
+				continue;
+			}
+			
+			if(segment.startsWith(".") || segment.endsWith(".") || segment.indexOf('\\') >= 0) {
+				return null;
+			}
+			
+			builder.append(File.separatorChar).append(segment);
+		}
+		
+		if(builder.length() == 0) {
+			return null;
+		}
+		
+		return builder.toString();
+	}
+	
+	private static void addFolders(String path, Set<String> folders) {
+		int separator = path.lastIndexOf(File.separatorChar);
+		while(separator > 0 && folders.add(path.substring(0, separator + 1))) {
+			separator = path.lastIndexOf(File.separatorChar, separator - 1);
+		}
+	}
+	
+	/**
+	 * The MS-DOS date and time of the header, which is in local time.
+	 * 
+	 * @param calendar
+	 * @param date
+	 * @param time
+	 * @return
+	 */
+	private static long fromDosTime(Calendar calendar, int date, int time) {
+		calendar.clear();
+		calendar.set(1980 + (date >> 9), ((date >> 5) & 0x0F) - 1, date & 0x1F, time >> 11, (time >> 5) & 0x3F, (time & 0x1F) * 2);
+		return calendar.getTimeInMillis();
+	}
+	
+	private static int toPosition(long offset, int size) throws IOException {
+		if(offset < 0 || offset > size) {
+			throw new IOException("Offset out of bounds: " + offset);
+		}
+		
+		return (int) offset;
+	}
+	
+	/**
+	 * A file in the archive.
+	 * 
+	 */
+	public static class Entry {
+		
+		private final String path;
+		
+		private final int method;
+		
+		private final int crc;
+		
+		private final long compressedSize;
+		
+		private final long length;
+		
+		/**
+		 * Where the stored or deflated data starts in the archive
+		 */
+		private final long dataOffset;
+		
+		private final long lastModified;
+		
+		private final AsciiString lastModifiedHeader;
+		
+		private final AsciiString contentType;
+		
+		/**
+		 * Strong entity tag made of the checksum and the length, which does
+		 * not change when the same content is packed again
+		 */
+		private final AsciiString etag;
+		
+		Entry(String path, int method, int crc, long compressedSize, long length, long dataOffset, long lastModified, AsciiString contentType) {
+			this.path = path;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.length = length;
+			this.dataOffset = dataOffset;
+			this.lastModified = lastModified;
+			this.lastModifiedHeader = HttpDateClock.format(lastModified);
+			this.contentType = contentType;
+			this.etag = new AsciiString("\"" + Integer.toHexString(crc) + '-' + Long.toHexString(length) + '"');
+		}
+		
+		/**
+		 * @return whether the data is deflated rather than stored
+		 */
+		public boolean isDeflated() {
+			return this.method == METHOD_DEFLATED;
+		}
+		
+		@Override
+		public String toString() {
+			return "Entry [path=" + this.path + ", method=" + this.method + ", length=" + this.length + ", compressedSize=" + this.compressedSize + "]";
+		}
+		
+		// Usual accessors follow
+		
+		/**
+		 * @return the path
+		 */
+		public String getPath() {
+			return path;
+		}
+		
+		/**
+		 * @return the method
+		 */
+		public int getMethod() {
+			return method;
+		}
+		
+		/**
+		 * @return the CRC-32 of the uncompressed data
+		 */
+		public int getCrc() {
+			return crc;
+		}
+		
+		/**
+		 * @return the compressedSize
+		 */
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+		
+		/**
+		 * @return the uncompressed length
+		 */
+		public long getLength() {
+			return length;
+		}
+		
+		/**
+		 * @return the dataOffset
+		 */
+		public long getDataOffset() {
+			return dataOffset;
+		}
+		
+		/**
+		 * @return the lastModified
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+		
+		/**
+		 * @return the lastModifiedHeader
+		 */
+		public AsciiString getLastModifiedHeader() {
+			return lastModifiedHeader;
+		}
+		
+		/**
+		 * @return the contentType
+		 */
+		public AsciiString getContentType() {
+			return contentType;
+		}
+		
+		/**
+		 * @return the etag
+		 */
+		public AsciiString getETag() {
+			return etag;
+		}
+	
+	}
+
+}
@@ -0,0 +1,389 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sangupta.swift.SwiftServer;
+import com.sangupta.swift.cache.CachedFile;
+import com.sangupta.swift.cache.FileContentCache;
+import com.sangupta.swift.cache.FileMetadata;
+import com.sangupta.swift.netty.http.AcceptEncoding;
+
+/**
+ * Compresses responses on a dedicated pool of threads so that the event loops
+ * never block on <code>Deflater</code>. Compressed files are kept in a
+ * bounded cache keyed by path and encoding, and validated against the file's
+ * modification time, so that every file is compressed only once.
+ * 
+ * @author sangupta
+ *
+ */
+public class CompressionService {
+	
+	public static final AsciiString ENCODING_GZIP = FileMetadata.ENCODING_GZIP;
+	
+	public static final AsciiString ENCODING_DEFLATE = AsciiString.cached("deflate");
+	
+	/**
+	 * Size of the queue of pending compression jobs
+	 */
+	private static final int MAX_PENDING_JOBS = 1024;
+	
+	private static final int BUFFER_SIZE = 8192;
+	
+	/**
+	 * How long to wait on shutdown for the jobs already running
+	 */
+	private static final long SHUTDOWN_WAIT_MILLIS = 5000;
+	
+	private final int level;
+	
+	private final int minSize;
+	
+	private final String[] mimeTypes;
+	
+	private final FileContentCache cache;
+	
+	private final ThreadPoolExecutor executor;
+	
+	private final ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+	
+	/**
+	 * Keys of files currently being compressed
+	 */
+	private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+	
+	public CompressionService(SwiftServer server) {
+		this.level = server.getCompressionLevel();
+		this.minSize = server.getCompressionMinSize();
+		
+		List<String> types = server.getCompressibleMimeTypes();
+		this.mimeTypes = types.toArray(new String[types.size()]);
+		
+		this.cache = new FileContentCache(server.getCompressionCacheSize(), server.getCompressionCacheSize());
+		
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_JOBS), 
+											   new DefaultThreadFactory("swift-compression", true));
+	}
+	
+	/**
+	 * Choose the encoding to use for the client, gzip being preferred.
+	 * 
+	 * @param acceptEncoding
+	 *            the <code>Accept-Encoding</code> request header
+	 * 
+	 * @return the encoding, or <code>null</code> if the client does not take a
+	 *         compressed response
+	 */
+	public AsciiString selectEncoding(String acceptEncoding) {
+		if(acceptEncoding == null) {
+			return null;
+		}
+		
+		if(AcceptEncoding.accepts(acceptEncoding, "gzip")) {
+			return ENCODING_GZIP;
+		}
+		
+		if(AcceptEncoding.accepts(acceptEncoding, "deflate")) {
+			return ENCODING_DEFLATE;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Check if content of the given type and size is worth compressing.
+	 * 
+	 * @param contentType
+	 * @param length
+	 * @return
+	 */
+	public boolean isCompressible(CharSequence contentType, long length) {
+		if(length < this.minSize || contentType == null) {
+			return false;
+		}
+		
+		for(String mimeType : this.mimeTypes) {
+			if(mimeType.endsWith("/*")) {
+				if(AsciiString.regionMatches(contentType, true, 0, mimeType, 0, mimeType.length() - 1)) {
+					return true;
+				}
+				
+				continue;
+			}
+			
+			if(AsciiString.contentEqualsIgnoreCase(contentType, mimeType)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Check if the given file is worth compressing and small enough to be
+	 * kept compressed in memory.
+	 * 
+	 * @param metadata
+	 * @return
+	 */
+	public boolean isCompressible(FileMetadata metadata) {
+		return metadata.getContentEncoding() == null 
+				&& this.cache.isCacheable(metadata.getLength()) 
+				&& this.isCompressible(metadata.getContentType(), metadata.getLength());
+	}
+	
+	/**
+	 * Check if the compressed form of the file is ready to be served, without
+	 * queuing it for compression.
+	 * 
+	 * @param metadata
+	 * @param encoding
+	 * @return
+	 */
+	public boolean hasCompressedFile(FileMetadata metadata, AsciiString encoding) {
+		return this.cache.contains(encoding + ":" + metadata.getPath(), metadata);
+	}
+	
+	/**
+	 * Return the compressed form of the file if we have it. If not, the file
+	 * is queued for compression so that later requests can be served from
+	 * memory.
+	 * 
+	 * @param metadata
+	 * @param encoding
+	 * @return the compressed file with a retained duplicate of the content, or
+	 *         <code>null</code> if not yet available
+	 */
+	public CachedFile getCompressedFile(final FileMetadata metadata, final AsciiString encoding) {
+		final String key = encoding + ":" + metadata.getPath();
+		CachedFile cachedFile = this.cache.get(key, metadata);
+		if(cachedFile != null) {
+			return cachedFile;
+		}
+		
+		if(this.pending.putIfAbsent(key, Boolean.TRUE) != null) {
+			return null;
+		}
+		
+		try {
+			this.executor.execute(new Job() {
+				
+				@Override
+				public void run() {
+					try {
+						FileInputStream input = new FileInputStream(metadata.getFile());
+						ByteBuf compressed;
+						try {
+							compressed = compress(input, encoding);
+						} finally {
+							input.close();
+						}
+						
+						CachedFile cached = cache.put(key, metadata, compressed);
+						if(cached != null) {
+							cached.getContent().release();
+						}
+					} catch(IOException e) {
+						// file changed or went away, the next request will retry
+					} finally {
+						pending.remove(key);
+					}
+				}
+				
+				@Override
+				public void cancel() {
+					pending.remove(key);
+				}
+				
+			});
+		} catch(RejectedExecutionException e) {
+			this.pending.remove(key);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Compress the given content off the event loop. The content is released
+	 * once compressed.
+	 * 
+	 * @param content
+	 *            the content to compress
+	 * 
+	 * @param encoding
+	 *            the encoding to use
+	 * 
+	 * @param eventExecutor
+	 *            the executor to notify listeners on, usually the event loop
+	 *            of the channel
+	 * 
+	 * @return a future that is completed with the compressed content
+	 */
+	public Future<ByteBuf> compress(final ByteBuf content, final AsciiString encoding, EventExecutor eventExecutor) {
+		final Promise<ByteBuf> promise = eventExecutor.newPromise();
+		
+		try {
+			this.executor.execute(new Job() {
+				
+				@Override
+				public void run() {
+					try {
+						promise.setSuccess(compress(new ByteBufInputStream(content), encoding));
+					} catch(Throwable t) {
+						promise.setFailure(t);
+					} finally {
+						content.release();
+					}
+				}
+				
+				@Override
+				public void cancel() {
+					content.release();
+					promise.tryFailure(new RejectedExecutionException("Compression service was shut down"));
+				}
+				
+			});
+		} catch(RejectedExecutionException e) {
+			content.release();
+			promise.setFailure(e);
+		}
+		
+		return promise;
+	}
+	
+	/**
+	 * @return the number of compression jobs waiting to run
+	 */
+	public int getPendingJobs() {
+		return this.executor.getQueue().size();
+	}
+	
+	/**
+	 * Stop the compression threads and release all cached content. Jobs that
+	 * have not started yet are cancelled, and those running are given a
+	 * little time to finish, so that what they compressed is released too.
+	 * 
+	 */
+	public void shutdown() {
+		List<Runnable> queued = this.executor.shutdownNow();
+		for(Runnable job : queued) {
+			((Job) job).cancel();
+		}
+		
+		try {
+			this.executor.awaitTermination(SHUTDOWN_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		this.cache.clear();
+	}
+	
+	// Internal methods follow
+	
+	private ByteBuf compress(InputStream input, AsciiString encoding) throws IOException {
+		ByteBuf output = this.allocator.directBuffer();
+		boolean success = false;
+		
+		try {
+			DeflaterOutputStream stream;
+			if(ENCODING_GZIP.equals(encoding)) {
+				stream = new GZIPOutputStream(new ByteBufOutputStream(output), BUFFER_SIZE) {
+					
+					{
+						this.def.setLevel(level);
+					}
+					
+				};
+			} else {
+				stream = new DeflaterOutputStream(new ByteBufOutputStream(output), new Deflater(this.level), BUFFER_SIZE) {
+					
+					@Override
+					public void close() throws IOException {
+						super.close();
+						
+						// we supplied the deflater, so we must free it
+						this.def.end();
+					}
+					
+				};
+			}
+			
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while((read = input.read(buffer)) >= 0) {
+				stream.write(buffer, 0, read);
+			}
+			
+			stream.close();
+			
+			success = true;
+			return output;
+		} finally {
+			if(!success) {
+				output.release();
+			}
+		}
+	}
+	
+	/**
+	 * A compression job, which must let go of what it holds when it is
+	 * dropped without being run.
+	 * 
+	 */
+	private static abstract class Job implements Runnable {
+		
+		/**
+		 * Called instead of {@link #run()} when the service shuts down first.
+		 * 
+		 */
+		public abstract void cancel();
+		
+	}
+
+}
@@ -0,0 +1,283 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps count of the connections of a server and of the requests they are
+ * being served, and drains them when the server is shut down: connections
+ * that are idle are closed, and the others are closed once the response in
+ * progress, sent with <code>Connection: close</code>, has been written out.
+ * 
+ * Connections that do not speak HTTP, such as proxied ones, are only
+ * counted, and are left to be closed by their client while draining.
+ * 
+ * @author sangupta
+ *
+ */
+public class ConnectionTracker {
+	
+	private final boolean http;
+	
+	private final ChannelGroup channels = new DefaultChannelGroup("swift-connections", GlobalEventExecutor.INSTANCE);
+	
+	private final AtomicInteger activeChannels = new AtomicInteger();
+	
+	private final AtomicInteger inFlightRequests = new AtomicInteger();
+	
+	/**
+	 * Completes once no connection is open anymore after draining started
+	 */
+	private final Promise<Void> drained = GlobalEventExecutor.INSTANCE.newPromise();
+	
+	private volatile boolean draining;
+	
+	/**
+	 * Create a tracker.
+	 * 
+	 * @param http
+	 *            whether the connections speak HTTP, in which case the
+	 *            handlers are added after the HTTP codec
+	 */
+	public ConnectionTracker(boolean http) {
+		this.http = http;
+	}
+	
+	/**
+	 * Create the handler tracking a new connection.
+	 * 
+	 * @return
+	 */
+	public ChannelHandler newHandler() {
+		return new TrackingHandler();
+	}
+	
+	/**
+	 * Start draining: idle connections are closed, and the others are closed
+	 * after their next response. Connections still open once the timeout
+	 * has passed are closed regardless of what they are sending.
+	 * 
+	 * @param timeoutMillis
+	 *            the time to wait for requests being served
+	 * 
+	 * @return a future that completes once all connections are closed
+	 */
+	public Future<Void> drain(final long timeoutMillis) {
+		this.draining = true;
+		
+		for(final Channel channel : this.channels) {
+			final TrackingHandler handler = channel.pipeline().get(TrackingHandler.class);
+			if(handler == null) {
+				continue;
+			}
+			
+			channel.eventLoop().execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					handler.closeIfIdle(channel);
+				}
+			
+			});
+		}
+		
+		this.checkDrained();
+		if(!this.drained.isDone()) {
+			GlobalEventExecutor.INSTANCE.schedule(new Runnable() {
+				
+				@Override
+				public void run() {
+					if(drained.isDone()) {
+						return;
+					}
+					
+					System.out.println("Closing " + activeChannels.get() + " connections still open after draining for " + timeoutMillis + " ms");
+					channels.close();
+				}
+			
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		
+		return this.drained;
+	}
+	
+	/**
+	 * @return whether connections are being drained
+	 */
+	public boolean isDraining() {
+		return this.draining;
+	}
+	
+	/**
+	 * @return the number of connections open
+	 */
+	public int getActiveChannels() {
+		return this.activeChannels.get();
+	}
+	
+	/**
+	 * @return the number of requests read whose response has not been
+	 *         written out fully yet
+	 */
+	public int getInFlightRequests() {
+		return this.inFlightRequests.get();
+	}
+	
+	// Internal methods follow
+	
+	private void checkDrained() {
+		if(this.draining && this.activeChannels.get() == 0) {
+			this.drained.trySuccess(null);
+		}
+	}
+	
+	/**
+	 * Tracks a single connection, only ever used from its event loop.
+	 * 
+	 */
+	private class TrackingHandler extends ChannelDuplexHandler {
+		
+		/**
+		 * Requests read whose last content has not been written yet
+		 */
+		private int pending;
+		
+		/**
+		 * Requests read whose response has not been written out fully yet,
+		 * including the ones whose last content is still being sent
+		 */
+		private int unfinished;
+		
+		/**
+		 * Whether the connection is closed once the response in progress has
+		 * been written out
+		 */
+		private boolean closing;
+		
+		@Override
+		public void channelActive(ChannelHandlerContext context) throws Exception {
+			activeChannels.incrementAndGet();
+			channels.add(context.channel());
+			super.channelActive(context);
+			
+			// accepted just as draining started
+			if(draining) {
+				this.closeIfIdle(context.channel());
+			}
+		}
+		
+		@Override
+		public void channelInactive(ChannelHandlerContext context) throws Exception {
+			// responses already written are accounted for as their writes fail
+			inFlightRequests.addAndGet(-this.pending);
+			this.unfinished -= this.pending;
+			this.pending = 0;
+			
+			activeChannels.decrementAndGet();
+			checkDrained();
+			
+			super.channelInactive(context);
+		}
+		
+		@Override
+		public void channelRead(ChannelHandlerContext context, Object message) throws Exception {
+			if(message instanceof HttpRequest) {
+				this.pending++;
+				this.unfinished++;
+				inFlightRequests.incrementAndGet();
+			}
+			
+			super.channelRead(context, message);
+		}
+		
+		@Override
+		public void write(ChannelHandlerContext context, Object message, ChannelPromise promise) throws Exception {
+			if(message instanceof HttpResponse) {
+				HttpResponse response = (HttpResponse) message;
+				if(response.getStatus().code() < 200) {
+					// an interim response, the real one is still to come
+					context.write(message, promise);
+					return;
+				}
+				
+				if(draining) {
+					this.closing = true;
+					response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+				}
+			}
+			
+			if(message instanceof LastHttpContent && this.pending > 0) {
+				this.pending--;
+				
+				final boolean close = this.closing;
+				promise = promise.unvoid();
+				promise.addListener(new ChannelFutureListener() {
+					
+					@Override
+					public void operationComplete(ChannelFuture future) {
+						unfinished--;
+						inFlightRequests.decrementAndGet();
+						if(close) {
+							future.channel().close();
+							return;
+						}
+						
+						// a response started before draining has just been sent
+						if(draining) {
+							closeIfIdle(future.channel());
+						}
+					}
+				
+				});
+			}
+			
+			context.write(message, promise);
+		}
+		
+		private void closeIfIdle(Channel channel) {
+			if(http && this.unfinished == 0) {
+				channel.close();
+			}
+		}
+	
+	}
+
+}
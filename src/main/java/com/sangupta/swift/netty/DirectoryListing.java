@@ -0,0 +1,458 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.AsciiString;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sangupta.swift.cache.DirectorySnapshot;
+import com.sangupta.swift.cache.DirectorySnapshot.Entry;
+import com.sangupta.swift.cache.DirectorySnapshot.SortKey;
+
+/**
+ * Renders a page of a {@link DirectorySnapshot} as HTML or JSON. The page is
+ * produced a few hundred entries at a time, so a listing of a huge folder
+ * can be streamed out with chunked encoding without ever building the whole
+ * page in memory; small pages can be rendered in one go with
+ * {@link #readAll(ByteBufAllocator)}.
+ * 
+ * The format, ordering and page are picked with the <code>format</code>
+ * (<code>html</code> or <code>json</code>), <code>sort</code>
+ * (<code>name</code>, <code>size</code> or <code>modified</code>),
+ * <code>order</code> (<code>asc</code> or <code>desc</code>),
+ * <code>page</code> and <code>limit</code> query parameters. Without a
+ * limit, all entries are listed.
+ * 
+ * @author sangupta
+ *
+ */
+public class DirectoryListing implements ChunkedInput<ByteBuf> {
+	
+	public static final AsciiString APPLICATION_JSON_UTF8 = AsciiString.cached("application/json; charset=UTF-8");
+	
+	/**
+	 * How many entries are rendered into a single chunk
+	 */
+	public static final int ENTRIES_PER_CHUNK = 256;
+	
+	private final String path;
+	
+	private final DirectorySnapshot snapshot;
+	
+	private final Options options;
+	
+	private final Entry[] entries;
+	
+	/**
+	 * Index of the first entry of the page, in the requested order
+	 */
+	private final int from;
+	
+	/**
+	 * Index past the last entry of the page, in the requested order
+	 */
+	private final int to;
+	
+	/**
+	 * Index of the next entry to render, in the requested order
+	 */
+	private int next;
+	
+	private boolean headerWritten = false;
+	
+	private boolean footerWritten = false;
+	
+	private final StringBuilder builder = new StringBuilder(ENTRIES_PER_CHUNK * 64);
+	
+	/**
+	 * Create a listing of a page of the given folder.
+	 * 
+	 * @param path
+	 *            the request path of the folder, shown as the title
+	 * 
+	 * @param snapshot
+	 *            the entries of the folder, sorted as asked for by the options
+	 * 
+	 * @param options
+	 *            what to list and how
+	 */
+	public DirectoryListing(String path, DirectorySnapshot snapshot, Options options) {
+		this.path = path;
+		this.snapshot = snapshot;
+		this.options = options;
+		this.entries = snapshot.getEntries(options.sortKey);
+		
+		final int total = this.entries.length;
+		if(options.limit > 0) {
+			this.from = (int) Math.min(total, (long) (options.page - 1) * options.limit);
+			this.to = (int) Math.min(total, (long) this.from + options.limit);
+		} else {
+			this.from = 0;
+			this.to = total;
+		}
+		
+		this.next = this.from;
+	}
+	
+	/**
+	 * Render the whole page into a single buffer.
+	 * 
+	 * @param allocator
+	 * @return
+	 */
+	public ByteBuf readAll(ByteBufAllocator allocator) {
+		ByteBuf content = allocator.buffer();
+		while(!this.footerWritten) {
+			this.renderNext(content);
+		}
+		
+		return content;
+	}
+	
+	@Override
+	public boolean isEndOfInput() {
+		return this.footerWritten;
+	}
+	
+	@Override
+	public void close() {
+		// nothing is held
+	}
+	
+	@Override
+	@Deprecated
+	public ByteBuf readChunk(ChannelHandlerContext context) {
+		return this.readChunk(context.alloc());
+	}
+	
+	@Override
+	public ByteBuf readChunk(ByteBufAllocator allocator) {
+		if(this.footerWritten) {
+			return null;
+		}
+		
+		ByteBuf chunk = allocator.buffer(this.builder.capacity());
+		this.renderNext(chunk);
+		return chunk;
+	}
+	
+	@Override
+	public long length() {
+		return -1;
+	}
+	
+	@Override
+	public long progress() {
+		return this.next - this.from;
+	}
+	
+	/**
+	 * @return the content type of the rendered listing
+	 */
+	public AsciiString getContentType() {
+		return this.options.getContentType();
+	}
+	
+	/**
+	 * @return the number of entries on this page
+	 */
+	public int getEntryCount() {
+		return this.to - this.from;
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * Render the next batch of entries, along with the header or footer if
+	 * it is their turn.
+	 * 
+	 * @param buffer
+	 */
+	private void renderNext(ByteBuf buffer) {
+		final StringBuilder builder = this.builder;
+		builder.setLength(0);
+		
+		if(!this.headerWritten) {
+			this.headerWritten = true;
+			if(this.options.json) {
+				this.renderJsonHeader(builder);
+			} else {
+				this.renderHtmlHeader(builder);
+			}
+		}
+		
+		final int end = Math.min(this.to, this.next + ENTRIES_PER_CHUNK);
+		for( ; this.next < end; this.next++) {
+			Entry entry = this.entries[this.options.descending ? this.entries.length - 1 - this.next : this.next];
+			if(this.options.json) {
+				this.renderJsonEntry(builder, entry, this.next == this.from);
+			} else {
+				renderHtmlEntry(builder, entry);
+			}
+		}
+		
+		if(this.next == this.to) {
+			this.footerWritten = true;
+			if(this.options.json) {
+				builder.append("]}\r\n");
+			} else {
+				this.renderHtmlFooter(builder);
+			}
+		}
+		
+		ByteBufUtil.writeUtf8(buffer, builder);
+	}
+	
+	private void renderHtmlHeader(StringBuilder builder) {
+		builder.append("<!DOCTYPE html>\r\n");
+		builder.append("<html><head><title>");
+		builder.append("Listing of: ");
+		appendHtml(builder, this.path);
+		builder.append("</title></head><body>\r\n");
+		
+		builder.append("<h3>Listing of: ");
+		appendHtml(builder, this.path);
+		builder.append("</h3>\r\n");
+		
+		builder.append("<ul>");
+		builder.append("<li><a href=\"../\">..</a></li>\r\n");
+	}
+	
+	private static void renderHtmlEntry(StringBuilder builder, Entry entry) {
+		builder.append("<li><a href=\"");
+		builder.append(entry.getName());
+		if(entry.isDirectory()) {
+			builder.append('/');
+		}
+		
+		builder.append("\">");
+		builder.append(entry.getName());
+		builder.append("</a></li>\r\n");
+	}
+	
+	private void renderHtmlFooter(StringBuilder builder) {
+		builder.append("</ul>");
+		
+		if(this.options.limit > 0) {
+			builder.append("<p>");
+			if(this.options.page > 1) {
+				builder.append("<a href=\"");
+				this.options.appendQuery(builder, this.options.page - 1);
+				builder.append("\">Previous</a> ");
+			}
+			
+			if(this.to < this.entries.length) {
+				builder.append("<a href=\"");
+				this.options.appendQuery(builder, this.options.page + 1);
+				builder.append("\">Next</a>");
+			}
+			
+			builder.append("</p>");
+		}
+		
+		builder.append("</body></html>\r\n");
+	}
+	
+	private void renderJsonHeader(StringBuilder builder) {
+		builder.append("{\"path\":");
+		appendJson(builder, this.path);
+		builder.append(",\"lastModified\":").append(this.snapshot.getLastModified());
+		builder.append(",\"total\":").append(this.entries.length);
+		builder.append(",\"page\":").append(this.options.page);
+		builder.append(",\"limit\":").append(this.options.limit);
+		builder.append(",\"entries\":[");
+	}
+	
+	private void renderJsonEntry(StringBuilder builder, Entry entry, boolean first) {
+		if(!first) {
+			builder.append(',');
+		}
+		
+		builder.append("\r\n{\"name\":\"").append(entry.getName());
+		if(entry.isDirectory()) {
+			builder.append("\",\"type\":\"directory\"");
+		} else {
+			builder.append("\",\"type\":\"file\",\"size\":").append(entry.getLength());
+		}
+		
+		builder.append(",\"modified\":").append(entry.getLastModified()).append('}');
+	}
+	
+	private static void appendHtml(StringBuilder builder, String value) {
+		for(int index = 0; index < value.length(); index++) {
+			char c = value.charAt(index);
+			switch(c) {
+				case '<':
+					builder.append("&lt;");
+					break;
+				
+				case '>':
+					builder.append("&gt;");
+					break;
+				
+				case '&':
+					builder.append("&amp;");
+					break;
+				
+				case '"':
+					builder.append("&quot;");
+					break;
+				
+				default:
+					builder.append(c);
+					break;
+			}
+		}
+	}
+	
+	private static void appendJson(StringBuilder builder, String value) {
+		builder.append('"');
+		for(int index = 0; index < value.length(); index++) {
+			char c = value.charAt(index);
+			if(c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			} else if(c < 0x20) {
+				builder.append(String.format("\\u%04x", (int) c));
+			} else {
+				builder.append(c);
+			}
+		}
+		
+		builder.append('"');
+	}
+	
+	/**
+	 * What to list, and how, as asked for in the query string
+	 * 
+	 */
+	public static class Options {
+		
+		private boolean json = false;
+		
+		private SortKey sortKey = SortKey.NAME;
+		
+		private boolean descending = false;
+		
+		/**
+		 * The page to list, starting at one
+		 */
+		private int page = 1;
+		
+		/**
+		 * Entries per page, zero to list all entries
+		 */
+		private int limit = 0;
+		
+		/**
+		 * Read the options from the query string of the given request URI.
+		 * Values we do not understand are ignored.
+		 * 
+		 * @param uri
+		 * @return
+		 */
+		public static Options parse(String uri) {
+			Options options = new Options();
+			if(uri.indexOf('?') < 0) {
+				return options;
+			}
+			
+			Map<String, List<String>> parameters = new QueryStringDecoder(uri).parameters();
+			
+			options.json = "json".equalsIgnoreCase(getParameter(parameters, "format"));
+			options.descending = "desc".equalsIgnoreCase(getParameter(parameters, "order"));
+			
+			String sort = getParameter(parameters, "sort");
+			if("size".equalsIgnoreCase(sort)) {
+				options.sortKey = SortKey.SIZE;
+			} else if("modified".equalsIgnoreCase(sort)) {
+				options.sortKey = SortKey.MODIFIED;
+			}
+			
+			options.limit = Math.max(0, getNumber(parameters, "limit"));
+			options.page = Math.max(1, getNumber(parameters, "page"));
+			return options;
+		}
+		
+		/**
+		 * @return the content type the listing is rendered in
+		 */
+		public AsciiString getContentType() {
+			return this.json ? APPLICATION_JSON_UTF8 : ResponseTemplates.TEXT_HTML_UTF8;
+		}
+		
+		/**
+		 * @return the ordering the entries need to be sorted in
+		 */
+		public SortKey getSortKey() {
+			return this.sortKey;
+		}
+		
+		/**
+		 * Append the query string that asks for the given page with these
+		 * options, escaped for use in an HTML attribute.
+		 * 
+		 * @param builder
+		 * @param page
+		 */
+		void appendQuery(StringBuilder builder, int page) {
+			builder.append("?page=").append(page);
+			builder.append("&amp;limit=").append(this.limit);
+			builder.append("&amp;sort=").append(this.sortKey.name().toLowerCase(Locale.ENGLISH));
+			if(this.descending) {
+				builder.append("&amp;order=desc");
+			}
+		}
+		
+		private static String getParameter(Map<String, List<String>> parameters, String name) {
+			List<String> values = parameters.get(name);
+			if(values == null || values.isEmpty()) {
+				return null;
+			}
+			
+			return values.get(0);
+		}
+		
+		private static int getNumber(Map<String, List<String>> parameters, String name) {
+			String value = getParameter(parameters, name);
+			if(value == null) {
+				return 0;
+			}
+			
+			try {
+				return Integer.parseInt(value);
+			} catch(NumberFormatException e) {
+				return 0;
+			}
+		}
+	
+	}
+
+}
@@ -0,0 +1,212 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of threads for file system calls that may block, such as
+ * opening files, reading their attributes or listing folders. Keeping these
+ * off the event loop means a slow disk or network file system only delays
+ * the requests that need it, not every connection on the loop.
+ * 
+ * Results are delivered on the event loop of the channel that asked for
+ * them. When the queue is full, tasks are rejected right away rather than
+ * piling up.
+ * 
+ * @author sangupta
+ *
+ */
+public class FileIoExecutor {
+	
+	private final ThreadPoolExecutor executor;
+	
+	private final int queueSize;
+	
+	private final AtomicLong submitted = new AtomicLong();
+	
+	private final AtomicLong completed = new AtomicLong();
+	
+	private final AtomicLong rejected = new AtomicLong();
+	
+	/**
+	 * Total time tasks spent in the queue before a thread picked them up
+	 */
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	
+	private final AtomicLong started = new AtomicLong();
+	
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	
+	public FileIoExecutor(String name, int threads, int queueSize) {
+		if(threads <= 0 || queueSize <= 0) {
+			throw new IllegalArgumentException("Threads and queue size must be positive");
+		}
+		
+		this.queueSize = queueSize;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+											   new DefaultThreadFactory("swift-file-io-" + name, true));
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Run the given task on the pool.
+	 * 
+	 * @param task
+	 *            the blocking work
+	 * 
+	 * @param eventExecutor
+	 *            the event loop to notify listeners of the result on
+	 * 
+	 * @return the future result, failed with a
+	 *         {@link RejectedExecutionException} if the queue is full
+	 */
+	public <T> Future<T> submit(final Callable<T> task, EventExecutor eventExecutor) {
+		final Promise<T> promise = eventExecutor.newPromise();
+		final long queuedAt = System.nanoTime();
+		
+		try {
+			this.executor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					recordWait(System.nanoTime() - queuedAt);
+					
+					try {
+						promise.setSuccess(task.call());
+					} catch(Throwable t) {
+						promise.setFailure(t);
+					} finally {
+						completed.incrementAndGet();
+					}
+				}
+			
+			});
+		} catch(RejectedExecutionException e) {
+			this.rejected.incrementAndGet();
+			promise.setFailure(e);
+			return promise;
+		}
+		
+		this.submitted.incrementAndGet();
+		return promise;
+	}
+	
+	/**
+	 * Stop accepting tasks. Tasks already queued are still run.
+	 * 
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+	
+	/**
+	 * @return the number of tasks waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return this.executor.getQueue().size();
+	}
+	
+	/**
+	 * @return the maximum number of tasks that may wait for a thread
+	 */
+	public int getQueueSize() {
+		return this.queueSize;
+	}
+	
+	/**
+	 * @return the number of threads currently running a task
+	 */
+	public int getActiveThreads() {
+		return this.executor.getActiveCount();
+	}
+	
+	/**
+	 * @return the number of tasks accepted so far
+	 */
+	public long getSubmittedTasks() {
+		return this.submitted.get();
+	}
+	
+	/**
+	 * @return the number of tasks run so far
+	 */
+	public long getCompletedTasks() {
+		return this.completed.get();
+	}
+	
+	/**
+	 * @return the number of tasks turned away because the queue was full
+	 */
+	public long getRejectedTasks() {
+		return this.rejected.get();
+	}
+	
+	/**
+	 * @return the average time, in microseconds, a task waited in the queue
+	 */
+	public long getAverageWaitMicros() {
+		long count = this.started.get();
+		if(count == 0) {
+			return 0;
+		}
+		
+		return TimeUnit.NANOSECONDS.toMicros(this.totalWaitNanos.get() / count);
+	}
+	
+	/**
+	 * @return the longest time, in microseconds, a task waited in the queue
+	 */
+	public long getMaxWaitMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(this.maxWaitNanos.get());
+	}
+	
+	@Override
+	public String toString() {
+		return "FileIoExecutor [queueDepth=" + this.getQueueDepth() + ", activeThreads=" + this.getActiveThreads() + ", submitted=" + this.submitted
+				+ ", completed=" + this.completed + ", rejected=" + this.rejected + ", averageWaitMicros=" + this.getAverageWaitMicros()
+				+ ", maxWaitMicros=" + this.getMaxWaitMicros() + "]";
+	}
+	
+	// Internal methods follow
+	
+	private void recordWait(long nanos) {
+		this.totalWaitNanos.addAndGet(nanos);
+		this.started.incrementAndGet();
+		
+		long max = this.maxWaitNanos.get();
+		while(nanos > max && !this.maxWaitNanos.compareAndSet(max, nanos)) {
+			max = this.maxWaitNanos.get();
+		}
+	}
+
+}
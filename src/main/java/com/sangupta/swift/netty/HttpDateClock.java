@@ -0,0 +1,347 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.handler.codec.DateFormatter;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+
+import java.util.Date;
+
+/**
+ * Formats and parses HTTP dates (RFC 1123, always in GMT) without the garbage
+ * of {@link java.text.SimpleDateFormat}. The value of the <code>Date</code>
+ * header, and the matching <code>Expires</code> and
+ * <code>Cache-Control</code> values, are computed at most once per second
+ * and shared by all threads. Headers that must agree with each other are to
+ * be taken from a single {@link Tick}, as the second may change in between
+ * two calls.
+ * 
+ * @author sangupta
+ *
+ */
+public class HttpDateClock {
+	
+	private static final byte[][] DAYS = { bytes("Sun"), bytes("Mon"), bytes("Tue"), bytes("Wed"), bytes("Thu"), bytes("Fri"), bytes("Sat") };
+	
+	private static final byte[][] MONTHS = { bytes("Jan"), bytes("Feb"), bytes("Mar"), bytes("Apr"), bytes("May"), bytes("Jun"), 
+											 bytes("Jul"), bytes("Aug"), bytes("Sep"), bytes("Oct"), bytes("Nov"), bytes("Dec") };
+	
+	/**
+	 * Length of a date like <code>Sun, 06 Nov 1994 08:49:37 GMT</code>
+	 */
+	private static final int DATE_LENGTH = 29;
+	
+	private static volatile Tick current = new Tick(System.currentTimeMillis() / 1000, 0);
+	
+	private HttpDateClock() {
+		// no instance
+	}
+	
+	/**
+	 * @return the value for the <code>Date</code> header for this second
+	 */
+	public static AsciiString getDate() {
+		return tick().date;
+	}
+	
+	/**
+	 * @param cacheSeconds
+	 *            the number of seconds the response may be cached
+	 * 
+	 * @return the value for the <code>Expires</code> header for this second
+	 */
+	public static AsciiString getExpires(int cacheSeconds) {
+		return now(cacheSeconds).expires;
+	}
+	
+	/**
+	 * @param cacheSeconds
+	 *            the number of seconds the response may be cached
+	 * 
+	 * @return the value for the <code>Cache-Control</code> header
+	 */
+	public static AsciiString getCacheControl(int cacheSeconds) {
+		return now(cacheSeconds).cacheControl;
+	}
+	
+	/**
+	 * @param cacheSeconds
+	 *            the number of seconds the response may be cached
+	 * 
+	 * @return the <code>Date</code>, <code>Expires</code> and
+	 *         <code>Cache-Control</code> values, all for this same second
+	 */
+	public static Tick now(int cacheSeconds) {
+		Tick tick = tick();
+		if(tick.cacheSeconds != cacheSeconds) {
+			tick = tick.withCacheSeconds(cacheSeconds);
+			current = tick;
+		}
+		
+		return tick;
+	}
+	
+	/**
+	 * Format the given time as an HTTP date.
+	 * 
+	 * @param millis
+	 *            milliseconds since epoch
+	 * 
+	 * @return the formatted date
+	 */
+	public static AsciiString format(long millis) {
+		return new AsciiString(formatBytes(floorDiv(millis, 1000)), false);
+	}
+	
+	/**
+	 * Parse an HTTP date. RFC 1123 dates, which is what all modern clients
+	 * send, are parsed without allocation. The obsolete RFC 850 and asctime
+	 * formats are handed over to Netty's {@link DateFormatter}.
+	 * 
+	 * @param value
+	 *            the header value
+	 * 
+	 * @return milliseconds since epoch, or <code>-1</code> if the value cannot
+	 *         be parsed
+	 */
+	public static long parse(CharSequence value) {
+		if(value == null) {
+			return -1;
+		}
+		
+		if(value.length() == DATE_LENGTH) {
+			long millis = parseRfc1123(value);
+			if(millis >= 0) {
+				return millis;
+			}
+		}
+		
+		Date date = DateFormatter.parseHttpDate(value);
+		if(date == null) {
+			return -1;
+		}
+		
+		return date.getTime();
+	}
+	
+	// Internal methods follow
+	
+	private static Tick tick() {
+		Tick tick = current;
+		long second = System.currentTimeMillis() / 1000;
+		if(tick.second == second) {
+			return tick;
+		}
+		
+		// racing threads may compute the same value, which is harmless
+		tick = new Tick(second, tick.cacheSeconds);
+		current = tick;
+		return tick;
+	}
+	
+	/**
+	 * Parse <code>EEE, dd MMM yyyy HH:mm:ss GMT</code>. The day name is not
+	 * verified as it carries no information.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	private static long parseRfc1123(CharSequence value) {
+		if(value.charAt(3) != ',' || value.charAt(4) != ' ' || value.charAt(7) != ' ' || value.charAt(11) != ' ' 
+				|| value.charAt(16) != ' ' || value.charAt(19) != ':' || value.charAt(22) != ':' || value.charAt(25) != ' '
+				|| value.charAt(26) != 'G' || value.charAt(27) != 'M' || value.charAt(28) != 'T') {
+			return -1;
+		}
+		
+		int day = digits(value, 5, 2);
+		int year = digits(value, 12, 4);
+		int hour = digits(value, 17, 2);
+		int minute = digits(value, 20, 2);
+		int second = digits(value, 23, 2);
+		int month = month(value, 8);
+		
+		if(day < 1 || day > 31 || year < 0 || month < 0 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+			return -1;
+		}
+		
+		long days = daysFromCivil(year, month + 1, day);
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+	}
+	
+	private static int digits(CharSequence value, int start, int count) {
+		int result = 0;
+		for(int index = start; index < start + count; index++) {
+			char c = value.charAt(index);
+			if(c < '0' || c > '9') {
+				return -1;
+			}
+			
+			result = result * 10 + (c - '0');
+		}
+		
+		return result;
+	}
+	
+	private static int month(CharSequence value, int start) {
+		for(int index = 0; index < MONTHS.length; index++) {
+			byte[] month = MONTHS[index];
+			if(value.charAt(start) == month[0] && value.charAt(start + 1) == month[1] && value.charAt(start + 2) == month[2]) {
+				return index;
+			}
+		}
+		
+		return -1;
+	}
+	
+	private static byte[] formatBytes(long epochSeconds) {
+		long days = floorDiv(epochSeconds, 86400);
+		int secondOfDay = (int) (epochSeconds - days * 86400);
+		
+		// civil from days, see http://howardhinnant.github.io/date_algorithms.html
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		int doe = (int) (z - era * 146097);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+		
+		// 1970-01-01 was a Thursday
+		int weekday = (int) floorMod(days + 4, 7);
+		
+		byte[] bytes = new byte[DATE_LENGTH];
+		System.arraycopy(DAYS[weekday], 0, bytes, 0, 3);
+		bytes[3] = ',';
+		bytes[4] = ' ';
+		twoDigits(bytes, 5, day);
+		bytes[7] = ' ';
+		System.arraycopy(MONTHS[month - 1], 0, bytes, 8, 3);
+		bytes[11] = ' ';
+		twoDigits(bytes, 12, (int) (year / 100));
+		twoDigits(bytes, 14, (int) (year % 100));
+		bytes[16] = ' ';
+		twoDigits(bytes, 17, secondOfDay / 3600);
+		bytes[19] = ':';
+		twoDigits(bytes, 20, (secondOfDay / 60) % 60);
+		bytes[22] = ':';
+		twoDigits(bytes, 23, secondOfDay % 60);
+		bytes[25] = ' ';
+		bytes[26] = 'G';
+		bytes[27] = 'M';
+		bytes[28] = 'T';
+		return bytes;
+	}
+	
+	private static long daysFromCivil(long year, int month, int day) {
+		year -= month <= 2 ? 1 : 0;
+		long era = floorDiv(year, 400);
+		int yoe = (int) (year - era * 400);
+		int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+	
+	private static void twoDigits(byte[] bytes, int index, int value) {
+		bytes[index] = (byte) ('0' + value / 10);
+		bytes[index + 1] = (byte) ('0' + value % 10);
+	}
+	
+	private static long floorDiv(long x, long y) {
+		long result = x / y;
+		if((x % y != 0) && ((x ^ y) < 0)) {
+			result--;
+		}
+		
+		return result;
+	}
+	
+	private static long floorMod(long x, long y) {
+		return x - floorDiv(x, y) * y;
+	}
+	
+	private static byte[] bytes(String value) {
+		return value.getBytes(CharsetUtil.US_ASCII);
+	}
+	
+	/**
+	 * All values computed for a single second
+	 * 
+	 */
+	/**
+	 * The header values for one second and one cache time.
+	 * 
+	 */
+	public static class Tick {
+		
+		final long second;
+		
+		final int cacheSeconds;
+		
+		final AsciiString date;
+		
+		final AsciiString expires;
+		
+		final AsciiString cacheControl;
+		
+		Tick(long second, int cacheSeconds) {
+			this(second, cacheSeconds, new AsciiString(formatBytes(second), false));
+		}
+		
+		private Tick(long second, int cacheSeconds, AsciiString date) {
+			this.second = second;
+			this.cacheSeconds = cacheSeconds;
+			this.date = date;
+			this.expires = new AsciiString(formatBytes(second + cacheSeconds), false);
+			this.cacheControl = new AsciiString("private, max-age=" + cacheSeconds);
+		}
+		
+		Tick withCacheSeconds(int cacheSeconds) {
+			return new Tick(this.second, cacheSeconds, this.date);
+		}
+		
+		/**
+		 * @return the value for the <code>Date</code> header
+		 */
+		public AsciiString getDate() {
+			return this.date;
+		}
+		
+		/**
+		 * @return the value for the <code>Expires</code> header
+		 */
+		public AsciiString getExpires() {
+			return this.expires;
+		}
+		
+		/**
+		 * @return the value for the <code>Cache-Control</code> header
+		 */
+		public AsciiString getCacheControl() {
+			return this.cacheControl;
+		}
+		
+	}
+
+}
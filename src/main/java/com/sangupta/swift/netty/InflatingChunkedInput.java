@@ -0,0 +1,167 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates raw deflated data, such as an entry of a ZIP archive, one chunk at
+ * a time as the channel asks for it, so that clients that do not accept a
+ * compressed response can still be sent one without inflating it all up
+ * front. Chunks are a full TLS record each.
+ * 
+ * @author sangupta
+ *
+ */
+public class InflatingChunkedInput implements ChunkedInput<ByteBuf> {
+	
+	private static final int INPUT_SIZE = 8 * 1024;
+	
+	private final ByteBuf compressed;
+	
+	private final long length;
+	
+	private final Inflater inflater = new Inflater(true);
+	
+	private final byte[] input = new byte[INPUT_SIZE];
+	
+	private long produced;
+	
+	/**
+	 * Whether the extra byte the inflater wants after raw data was given
+	 */
+	private boolean padded;
+	
+	private boolean closed;
+	
+	/**
+	 * Create an input over the given data. The buffer is released when the
+	 * input is closed.
+	 * 
+	 * @param compressed
+	 *            the raw deflated data
+	 * 
+	 * @param length
+	 *            the length of the data once inflated
+	 */
+	public InflatingChunkedInput(ByteBuf compressed, long length) {
+		this.compressed = compressed;
+		this.length = length;
+	}
+	
+	@Override
+	public boolean isEndOfInput() throws Exception {
+		return this.produced >= this.length || this.closed;
+	}
+	
+	@Override
+	public void close() {
+		if(this.closed) {
+			return;
+		}
+		
+		this.closed = true;
+		this.inflater.end();
+		this.compressed.release();
+	}
+	
+	@Override
+	@Deprecated
+	public ByteBuf readChunk(ChannelHandlerContext context) throws Exception {
+		return this.readChunk(context.alloc());
+	}
+	
+	@Override
+	public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+		if(this.isEndOfInput()) {
+			return null;
+		}
+		
+		final int size = (int) Math.min(SharedChunkedFile.TLS_RECORD_SIZE, this.length - this.produced);
+		
+		// the inflater only writes to arrays
+		ByteBuf chunk = allocator.heapBuffer(size);
+		boolean release = true;
+		try {
+			while(chunk.writerIndex() < size) {
+				if(this.inflater.needsInput()) {
+					this.fill();
+				}
+				
+				int inflated = this.inflater.inflate(chunk.array(), chunk.arrayOffset() + chunk.writerIndex(), size - chunk.writerIndex());
+				if(inflated == 0 && (this.inflater.finished() || this.inflater.needsDictionary())) {
+					throw new IOException("Deflated data is shorter than expected");
+				}
+				
+				chunk.writerIndex(chunk.writerIndex() + inflated);
+			}
+			
+			this.produced += size;
+			release = false;
+			return chunk;
+		} catch(DataFormatException e) {
+			throw new IOException("Deflated data is corrupt", e);
+		} finally {
+			if(release) {
+				chunk.release();
+			}
+		}
+	}
+	
+	@Override
+	public long length() {
+		return this.length;
+	}
+	
+	@Override
+	public long progress() {
+		return this.produced;
+	}
+	
+	// Internal methods follow
+	
+	private void fill() throws IOException {
+		int count = Math.min(INPUT_SIZE, this.compressed.readableBytes());
+		if(count > 0) {
+			this.compressed.readBytes(this.input, 0, count);
+			this.inflater.setInput(this.input, 0, count);
+			return;
+		}
+		
+		if(this.padded) {
+			throw new IOException("Deflated data is truncated");
+		}
+		
+		// zlib needs a dummy byte after raw data to be sure it is complete
+		this.padded = true;
+		this.input[0] = 0;
+		this.inflater.setInput(this.input, 0, 1);
+	}
+
+}
@@ -0,0 +1,248 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable lookup table from file extension to MIME type. The built-in
+ * table is read once from <code>mime.types</code> on the classpath, and a
+ * server specific copy with additional types may be created using
+ * {@link #extend(Map)}.
+ * 
+ * Lookups hash the extension directly off the file name, and return a
+ * pre-encoded {@link AsciiString} so that no garbage is created per request.
+ * 
+ * @author sangupta
+ *
+ */
+public class MimeTypeRegistry {
+	
+	/**
+	 * MIME type to use when the extension is not known
+	 */
+	public static final AsciiString DEFAULT_MIME_TYPE = AsciiString.cached("application/octet-stream");
+	
+	/**
+	 * The built-in registry
+	 */
+	public static final MimeTypeRegistry DEFAULT = new MimeTypeRegistry(loadBuiltIn());
+	
+	private final Map<String, String> types;
+	
+	private final String[] keys;
+	
+	private final AsciiString[] values;
+	
+	private final int mask;
+	
+	private MimeTypeRegistry(Map<String, String> types) {
+		this.types = types;
+		
+		int capacity = 16;
+		while(capacity < types.size() * 2) {
+			capacity <<= 1;
+		}
+		
+		this.keys = new String[capacity];
+		this.values = new AsciiString[capacity];
+		this.mask = capacity - 1;
+		
+		for(Map.Entry<String, String> entry : types.entrySet()) {
+			String key = entry.getKey();
+			int index = hash(key, 0, key.length()) & this.mask;
+			while(this.keys[index] != null) {
+				index = (index + 1) & this.mask;
+			}
+			
+			this.keys[index] = key;
+			this.values[index] = new AsciiString(entry.getValue());
+		}
+	}
+	
+	/**
+	 * Create a new registry that contains all types of this registry along
+	 * with the given ones, which take precedence.
+	 * 
+	 * @param additional
+	 *            map of extension to MIME type
+	 * 
+	 * @return the new registry, or this instance if nothing is to be added
+	 */
+	public MimeTypeRegistry extend(Map<String, String> additional) {
+		if(additional == null || additional.isEmpty()) {
+			return this;
+		}
+		
+		Map<String, String> merged = new LinkedHashMap<String, String>(this.types);
+		for(Map.Entry<String, String> entry : additional.entrySet()) {
+			merged.put(normalizeExtension(entry.getKey()), entry.getValue());
+		}
+		
+		return new MimeTypeRegistry(merged);
+	}
+	
+	/**
+	 * Find the MIME type for the given file name or path.
+	 * 
+	 * @param name
+	 *            the file name or path
+	 * 
+	 * @return the MIME type, {@link #DEFAULT_MIME_TYPE} if not known
+	 */
+	public AsciiString getMimeType(CharSequence name) {
+		final int length = name.length();
+		
+		int dot = -1;
+		for(int index = length - 1; index >= 0; index--) {
+			char c = name.charAt(index);
+			if(c == '.') {
+				dot = index;
+				break;
+			}
+			
+			if(c == '/' || c == '\\') {
+				break;
+			}
+		}
+		
+		if(dot < 0 || dot == length - 1) {
+			return DEFAULT_MIME_TYPE;
+		}
+		
+		final int start = dot + 1;
+		int index = hash(name, start, length) & this.mask;
+		String key;
+		while((key = this.keys[index]) != null) {
+			if(matches(key, name, start, length)) {
+				return this.values[index];
+			}
+			
+			index = (index + 1) & this.mask;
+		}
+		
+		return DEFAULT_MIME_TYPE;
+	}
+	
+	/**
+	 * Normalize an extension as given by a user, so that <code>.CSS</code>
+	 * becomes <code>css</code>
+	 * 
+	 * @param extension
+	 * @return
+	 */
+	public static String normalizeExtension(String extension) {
+		if(extension == null) {
+			throw new IllegalArgumentException("Extension cannot be null");
+		}
+		
+		extension = extension.trim();
+		if(extension.startsWith(".")) {
+			extension = extension.substring(1);
+		}
+		
+		if(extension.isEmpty()) {
+			throw new IllegalArgumentException("Extension cannot be empty");
+		}
+		
+		return extension.toLowerCase(Locale.US);
+	}
+	
+	// Internal methods follow
+	
+	private static int hash(CharSequence chars, int start, int end) {
+		int hash = 0;
+		for(int index = start; index < end; index++) {
+			hash = 31 * hash + toLowerCase(chars.charAt(index));
+		}
+		
+		// spread the bits as the table uses the lower ones
+		return hash ^ (hash >>> 16);
+	}
+	
+	private static boolean matches(String key, CharSequence chars, int start, int end) {
+		if(key.length() != end - start) {
+			return false;
+		}
+		
+		for(int index = 0; index < key.length(); index++) {
+			if(key.charAt(index) != toLowerCase(chars.charAt(start + index))) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private static char toLowerCase(char c) {
+		if(c >= 'A' && c <= 'Z') {
+			return (char) (c + ('a' - 'A'));
+		}
+		
+		return c;
+	}
+	
+	private static Map<String, String> loadBuiltIn() {
+		Map<String, String> types = new LinkedHashMap<String, String>();
+		
+		InputStream stream = MimeTypeRegistry.class.getResourceAsStream("mime.types");
+		if(stream == null) {
+			throw new IllegalStateException("Built-in mime.types not found on classpath");
+		}
+		
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(stream, CharsetUtil.UTF_8));
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				
+				String[] tokens = line.split("\\s+");
+				for(int index = 1; index < tokens.length; index++) {
+					types.put(normalizeExtension(tokens[index]), tokens[0]);
+				}
+			}
+		} catch(IOException e) {
+			throw new IllegalStateException("Unable to read built-in mime.types", e);
+		} finally {
+			try {
+				stream.close();
+			} catch(IOException e) {
+				// eat up
+			}
+		}
+		
+		return types;
+	}
+
+}
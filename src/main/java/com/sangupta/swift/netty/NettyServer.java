@@ -19,42 +19,489 @@
  * 
  */
 
+
 package com.sangupta.swift.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.EventLoopGroup;
 import io.netty.handler.ssl.SslContext;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sangupta.swift.SwiftServer;
 
 /**
- * The netty server created as part of the swift server configurations
+ * The netty server created as part of the swift server configurations.
+ * Creating one only prepares it; {@link #start()} warms it up and binds its
+ * port without blocking the caller, and {@link #join()} waits for it to stop.
  * 
  * @author sangupta
  *
  */
 public abstract class NettyServer {
 	
+	/**
+	 * Where a server is in its life
+	 */
+	public enum State {
+		
+		/**
+		 * Created, but not started yet
+		 */
+		NEW,
+		
+		/**
+		 * Warming up or binding its port
+		 */
+		STARTING,
+		
+		/**
+		 * Accepting connections
+		 */
+		RUNNING,
+		
+		/**
+		 * Not accepting connections anymore, waiting for the ones open to be
+		 * done with the requests they are being served
+		 */
+		DRAINING,
+		
+		/**
+		 * Shut down, everything it held has been released
+		 */
+		STOPPED,
+		
+		/**
+		 * Could not be started, everything it held has been released
+		 */
+		FAILED
+		
+	}
+	
+	protected final SwiftServer server;
+	
 	protected SslContext sslContext;
 	
 	protected EventLoopGroup bossGroup;
 	
 	protected EventLoopGroup workerGroup;
 	
+	/**
+	 * The transport the event loops belong to, which all channels of the
+	 * server use
+	 */
+	protected Transport transport;
+	
 	protected ServerBootstrap serverBootstrap;
 	
-	protected Channel channel;
-
 	/**
-	 * Shutdown this netty implementation gracefully
+	 * The channels accepting connections, one per acceptor, once bound
+	 */
+	protected volatile List<Channel> channels = Collections.emptyList();
+	
+	/**
+	 * Keeps count of the connections of this server and drains them once it
+	 * is shut down; initializers add its handler to each connection
+	 */
+	protected final ConnectionTracker connections;
+	
+	/**
+	 * Whether the event loop groups were created for this server alone, in
+	 * which case they are shut down along with it
+	 */
+	protected boolean ownEventLoops;
+	
+	private volatile State state = State.NEW;
+	
+	private volatile long drainTimeoutMillis;
+	
+	/**
+	 * Whether draining has started, once the first channel was closed
+	 */
+	private boolean drainStarted;
+	
+	/**
+	 * Completes once the server has stopped, or failed to start, and released
+	 * everything it holds
+	 */
+	private final Promise<Void> terminationFuture = GlobalEventExecutor.INSTANCE.newPromise();
+	
+	protected NettyServer(SwiftServer server) {
+		this(server, new ConnectionTracker(true));
+	}
+	
+	protected NettyServer(SwiftServer server, ConnectionTracker connections) {
+		this.server = server;
+		this.connections = connections;
+		this.drainTimeoutMillis = server.getDrainTimeoutMillis();
+	}
+	
+	/**
+	 * Warm the server up and bind its port, on a thread of its own. Servers
+	 * started one after the other thus come up side by side.
+	 * 
+	 * @return a future that completes once the server accepts connections, or
+	 *         fails if it could not be started
+	 */
+	public Future<Void> start() {
+		synchronized(this) {
+			if(this.state != State.NEW) {
+				throw new IllegalStateException("Server on port " + this.server.getListenPort() + " has already been started");
+			}
+			
+			this.state = State.STARTING;
+		}
+		
+		final Promise<Void> startFuture = GlobalEventExecutor.INSTANCE.newPromise();
+		Thread thread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					warmUp();
+					
+					final int acceptors = getAcceptors();
+					final List<ChannelFuture> binds = new ArrayList<ChannelFuture>(acceptors);
+					for(int index = 0; index < acceptors; index++) {
+						binds.add(bind());
+					}
+					
+					final AtomicInteger binding = new AtomicInteger(acceptors);
+					for(ChannelFuture bind : binds) {
+						bind.addListener(new ChannelFutureListener() {
+							
+							@Override
+							public void operationComplete(ChannelFuture future) {
+								if(binding.decrementAndGet() == 0) {
+									bound(binds, startFuture);
+								}
+							}
+							
+						});
+					}
+				} catch(RuntimeException e) {
+					failed(e, startFuture);
+				}
+			}
+			
+		}, "swift-start-" + this.server.getListenPort());
+		
+		thread.start();
+		return startFuture;
+	}
+	
+	/**
+	 * Wait till this server has stopped and released everything it holds.
+	 * The thread is parked meanwhile.
+	 * 
+	 */
+	public void join() {
+		this.terminationFuture.awaitUninterruptibly();
+	}
+	
+	/**
+	 * Shutdown this netty implementation gracefully, draining its connections
+	 * for as long as the server configuration allows. Event loops shared with
+	 * other servers are left running for their owner to shut down.
 	 * 
 	 */
 	public void shutdownGracefully() {
-		if(this.bossGroup != null) {
-			this.bossGroup.shutdownGracefully();
+		this.drain(this.server.getDrainTimeoutMillis());
+	}
+	
+	/**
+	 * Stop accepting connections and drain the ones open: idle ones are
+	 * closed right away, and the others once the response they are being
+	 * sent, which asks the client to close the connection, has been written
+	 * out. Connections still open after the given time are closed anyway, and
+	 * only then are the event loops of the server released.
+	 * 
+	 * @param timeoutMillis
+	 *            the time to wait for requests being served
+	 * 
+	 * @return the future that completes once the server has stopped
+	 */
+	public Future<Void> drain(long timeoutMillis) {
+		List<Channel> channels;
+		synchronized(this) {
+			if(this.state == State.NEW) {
+				this.state = State.STOPPED;
+				this.release();
+				return this.terminationFuture;
+			}
+			
+			if(this.state != State.STARTING && this.state != State.RUNNING) {
+				return this.terminationFuture;
+			}
+			
+			// a server still starting is closed as soon as it is bound
+			this.state = State.DRAINING;
+			this.drainTimeoutMillis = timeoutMillis;
+			channels = this.channels;
 		}
 		
-		if(this.workerGroup != null) {
-			this.workerGroup.shutdownGracefully();
+		closeAll(channels);
+		return this.terminationFuture;
+	}
+	
+	/**
+	 * @return where the server is in its life
+	 */
+	public State getState() {
+		return this.state;
+	}
+	
+	/**
+	 * @return the future that completes once the server has stopped, or
+	 *         failed to start, and released everything it holds
+	 */
+	public Future<Void> getTerminationFuture() {
+		return this.terminationFuture;
+	}
+	
+	/**
+	 * @return the transport the server runs on, once its event loops are
+	 *         known
+	 */
+	public Transport getTransport() {
+		return this.transport;
+	}
+	
+	/**
+	 * @return the number of connections open
+	 */
+	public int getActiveChannels() {
+		return this.connections.getActiveChannels();
+	}
+	
+	/**
+	 * @return the number of requests being served, whose response has not
+	 *         been written out fully yet
+	 */
+	public int getInFlightRequests() {
+		return this.connections.getInFlightRequests();
+	}
+	
+	/**
+	 * @return the configuration this server runs
+	 */
+	public SwiftServer getServer() {
+		return this.server;
+	}
+	
+	/**
+	 * Return the number of worker threads to use when asked for the given
+	 * number, which may be <code>0</code> for one per core.
+	 * 
+	 * @param threads
+	 * @return
+	 */
+	public static int getWorkerThreads(int threads) {
+		if(threads > 0) {
+			return threads;
+		}
+		
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * Get ready to accept connections, before the port is bound. Runs on the
+	 * thread starting the server and may take a while.
+	 * 
+	 */
+	protected void warmUp() {
+		// nothing to do by default
+	}
+	
+	/**
+	 * Bind the port of the server. Called once per acceptor, the port being
+	 * shared between them.
+	 * 
+	 * @return
+	 */
+	protected ChannelFuture bind() {
+		return this.serverBootstrap.bind(this.server.getListenPort());
+	}
+	
+	/**
+	 * Release whatever the server holds besides its channel and event loops,
+	 * once it has stopped.
+	 * 
+	 */
+	protected void releaseResources() {
+		// nothing to do by default
+	}
+	
+	/**
+	 * Serve connections on the given event loop groups, shared with other
+	 * servers, or on groups created for this server alone if none are given.
+	 * The latter run on the transport the server configuration asks for, if
+	 * available, or else on the best one available.
+	 * 
+	 * @param server
+	 * @param bossGroup
+	 *            the group accepting connections, or <code>null</code>
+	 * @param workerGroup
+	 *            the group serving connections, or <code>null</code>
+	 */
+	protected void useEventLoops(SwiftServer server, EventLoopGroup bossGroup, EventLoopGroup workerGroup) {
+		if(bossGroup != null && workerGroup != null) {
+			this.bossGroup = bossGroup;
+			this.workerGroup = workerGroup;
+			this.transport = Transport.of(workerGroup);
+			this.ownEventLoops = false;
+			return;
 		}
+		
+		final String name = String.valueOf(server.getListenPort());
+		this.transport = Transport.select(server.getTransport());
+		this.bossGroup = this.transport.newEventLoopGroup(server.getAcceptors(), new DefaultThreadFactory("swift-boss-" + name));
+		this.workerGroup = this.transport.newEventLoopGroup(getWorkerThreads(server.getIsolatedWorkerThreads()), new DefaultThreadFactory("swift-worker-" + name));
+		this.ownEventLoops = true;
 	}
+	
+	/**
+	 * Return the number of channels to bind the port with, each registered
+	 * with the next boss loop. More than one needs the transport to let
+	 * them share the port.
+	 * 
+	 * @return
+	 */
+	private int getAcceptors() {
+		final int acceptors = this.server.getAcceptors();
+		if(acceptors > 1 && !this.transport.enableReusePort(this.serverBootstrap)) {
+			System.out.println("Transport " + this.transport + " cannot share port " + this.server.getListenPort() + " between acceptors, using a single one");
+			return 1;
+		}
+		
+		return acceptors;
+	}
+	
+	private void bound(List<ChannelFuture> binds, Promise<Void> startFuture) {
+		final List<Channel> channels = new ArrayList<Channel>(binds.size());
+		Throwable cause = null;
+		for(ChannelFuture bind : binds) {
+			if(bind.isSuccess()) {
+				channels.add(bind.channel());
+			} else if(cause == null) {
+				cause = bind.cause();
+			}
+		}
+		
+		if(cause != null) {
+			closeAll(channels);
+			this.failed(cause, startFuture);
+			return;
+		}
+		
+		ChannelFutureListener closed = new ChannelFutureListener() {
+			
+			@Override
+			public void operationComplete(ChannelFuture future) {
+				drainConnections();
+			}
+			
+		};
+		
+		for(Channel channel : channels) {
+			channel.closeFuture().addListener(closed);
+		}
+		
+		boolean stopping;
+		synchronized(this) {
+			this.channels = Collections.unmodifiableList(channels);
+			stopping = this.state == State.DRAINING;
+			if(!stopping) {
+				this.state = State.RUNNING;
+			}
+		}
+		
+		if(stopping) {
+			closeAll(channels);
+			startFuture.tryFailure(new IllegalStateException("Server on port " + this.server.getListenPort() + " was shut down while starting"));
+			return;
+		}
+		
+		String acceptors = channels.size() > 1 ? " with " + channels.size() + " acceptors" : "";
+		System.out.println("Listening on port " + this.server.getListenPort() + " over " + this.transport + acceptors);
+		startFuture.trySuccess(null);
+	}
+	
+	/**
+	 * Drain the connections once a server channel has been closed, and
+	 * release everything once they all are.
+	 * 
+	 */
+	private void drainConnections() {
+		long timeoutMillis;
+		synchronized(this) {
+			if(this.drainStarted) {
+				return;
+			}
+			
+			// also when the channel was closed by something else than us
+			this.drainStarted = true;
+			this.state = State.DRAINING;
+			timeoutMillis = this.drainTimeoutMillis;
+		}
+		
+		// acceptors stop together
+		closeAll(this.channels);
+		
+		this.connections.drain(timeoutMillis).addListener(new GenericFutureListener<Future<Void>>() {
+			
+			@Override
+			public void operationComplete(Future<Void> future) {
+				synchronized(NettyServer.this) {
+					state = State.STOPPED;
+				}
+				
+				release();
+			}
+			
+		});
+	}
+	
+	private static void closeAll(List<Channel> channels) {
+		for(Channel channel : channels) {
+			channel.close();
+		}
+	}
+	
+	private void failed(Throwable cause, Promise<Void> startFuture) {
+		synchronized(this) {
+			this.state = State.FAILED;
+		}
+		
+		System.out.println("Unable to start server on port " + this.server.getListenPort() + ": " + cause);
+		this.release();
+		startFuture.tryFailure(cause);
+	}
+	
+	private void release() {
+		try {
+			this.releaseResources();
+		} finally {
+			if(this.ownEventLoops) {
+				this.bossGroup.shutdownGracefully();
+				this.workerGroup.shutdownGracefully();
+			}
+			
+			this.terminationFuture.trySuccess(null);
+		}
+	}
+	
 }
@@ -21,33 +21,25 @@
 
 package com.sangupta.swift.netty;
 
-import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
 import io.netty.util.CharsetUtil;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.Locale;
-import java.util.TimeZone;
 import java.util.regex.Pattern;
 
-import javax.activation.MimetypesFileTypeMap;
-
-import com.sangupta.jerry.util.AssertUtils;
 
 public class NettyUtils {
 	
@@ -64,19 +56,47 @@ public class NettyUtils {
 	public final static String SPDY_STREAM_PRIO = "X-SPDY-Stream-Priority";
 	
 	public static void sendError(ChannelHandlerContext ctx, HttpResponseStatus status) {
-		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer("Failure: " + status + "\r\n", CharsetUtil.UTF_8));
-		response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=UTF-8");
-		
-		// Close the connection as soon as the error message is sent.
-		ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+		sendError(ctx, null, status);
+	}
+	
+	/**
+	 * Send an error response, keeping the connection open if the request
+	 * allows for it.
+	 * 
+	 * @param ctx
+	 *            Context
+	 * 
+	 * @param request
+	 *            the request being answered, or <code>null</code> to close the
+	 *            connection after the response
+	 * 
+	 * @param status
+	 *            the error status
+	 */
+	public static void sendError(ChannelHandlerContext ctx, HttpRequest request, HttpResponseStatus status) {
+		writeResponse(ctx, request, createError(status));
 	}
 	
 	public static void sendRedirect(ChannelHandlerContext ctx, String newUri) {
-		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.FOUND);
-		response.headers().set(HttpHeaders.Names.LOCATION, newUri);
-
-		// Close the connection as soon as the error message is sent.
-		ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+		sendRedirect(ctx, null, newUri);
+	}
+	
+	/**
+	 * Redirect the client to the given URI, keeping the connection open if the
+	 * request allows for it.
+	 * 
+	 * @param ctx
+	 *            Context
+	 * 
+	 * @param request
+	 *            the request being answered, or <code>null</code> to close the
+	 *            connection after the response
+	 * 
+	 * @param newUri
+	 *            the location to redirect to
+	 */
+	public static void sendRedirect(ChannelHandlerContext ctx, HttpRequest request, String newUri) {
+		writeResponse(ctx, request, createRedirect(newUri));
 	}
 
 	/**
@@ -87,11 +107,97 @@ public class NettyUtils {
 	 *            Context
 	 */
 	public static void sendNotModified(ChannelHandlerContext ctx) {
+		sendNotModified(ctx, null);
+	}
+	
+	/**
+	 * Send a "304 Not Modified", keeping the connection open if the request
+	 * allows for it.
+	 * 
+	 * @param ctx
+	 *            Context
+	 * 
+	 * @param request
+	 *            the request being answered, or <code>null</code> to close the
+	 *            connection after the response
+	 */
+	public static void sendNotModified(ChannelHandlerContext ctx, HttpRequest request) {
 		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
-		setDateHeader(response);
-
-		// Close the connection as soon as the error message is sent.
-		ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+		writeResponse(ctx, request, response);
+	}
+	
+	/**
+	 * Create a plain text error response.
+	 * 
+	 * @param status
+	 *            the error status
+	 * 
+	 * @return
+	 */
+	public static FullHttpResponse createError(HttpResponseStatus status) {
+		return ResponseTemplates.DEFAULT.newError(status);
+	}
+	
+	/**
+	 * Create a redirect response to the given location.
+	 * 
+	 * @param newUri
+	 *            the location to redirect to
+	 * 
+	 * @return
+	 */
+	public static FullHttpResponse createRedirect(String newUri) {
+		return ResponseTemplates.DEFAULT.newRedirect(newUri);
+	}
+	
+	/**
+	 * Write a complete response and close the connection only if the request
+	 * does not allow it to be kept alive. The <code>Content-Length</code> and
+	 * <code>Date</code> headers are added if missing, so the client can tell
+	 * where the response ends without waiting for the connection to close.
+	 * The body is left out when answering a <code>HEAD</code>.
+	 * 
+	 * @param ctx
+	 *            Context
+	 * 
+	 * @param request
+	 *            the request being answered, or <code>null</code> if it could
+	 *            not be read, in which case the connection is always closed
+	 * 
+	 * @param response
+	 *            the response to write
+	 * 
+	 * @return the future of the write
+	 */
+	public static ChannelFuture writeResponse(ChannelHandlerContext ctx, HttpRequest request, FullHttpResponse response) {
+		HttpHeaders headers = response.headers();
+		// a 304 never has a body, and its length would describe the full response
+		if(response.getStatus().code() != HttpResponseStatus.NOT_MODIFIED.code() && !headers.contains(HttpHeaders.Names.CONTENT_LENGTH)) {
+			HttpHeaders.setContentLength(response, response.content().readableBytes());
+		}
+		
+		if(!headers.contains(HttpHeaders.Names.DATE)) {
+			setDateHeader(response);
+		}
+		
+		if(request != null && request.getMethod() == HttpMethod.HEAD && response.content().isReadable()) {
+			// the length stays that of the body a GET would get
+			FullHttpResponse head = response.replace(Unpooled.EMPTY_BUFFER);
+			response.release();
+			response = head;
+			headers = response.headers();
+		}
+		
+		final boolean keepAlive = request != null && HttpHeaders.isKeepAlive(request);
+		headers.set(HttpHeaders.Names.CONNECTION, keepAlive ? HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
+		
+		ChannelFuture future = ctx.writeAndFlush(response);
+		if(!keepAlive) {
+			// Close the connection as soon as the response is sent.
+			future.addListener(ChannelFutureListener.CLOSE);
+		}
+		
+		return future;
 	}
 	
 	/**
@@ -100,21 +206,17 @@ public class NettyUtils {
 	 * @param response
 	 *            HTTP response
 	 */
-	public static void setDateHeader(FullHttpResponse response) {
-		SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-		dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-		Calendar time = new GregorianCalendar();
-		response.headers().set(HttpHeaders.Names.DATE, dateFormatter.format(time.getTime()));
+	public static void setDateHeader(HttpResponse response) {
+		response.headers().set(HttpHeaders.Names.DATE, HttpDateClock.getDate());
 	}
 
 	public static Date parseDateHeader(String dateString) {
-		SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-		try {
-			return dateFormatter.parse(dateString);
-		} catch (ParseException e) {
+		long millis = HttpDateClock.parse(dateString);
+		if(millis < 0) {
 			return null;
 		}
+		
+		return new Date(millis);
 	}
 	
 	/**
@@ -126,9 +228,19 @@ public class NettyUtils {
 	 *            file to extract content type
 	 */
 	public static void setContentTypeHeader(HttpResponse response, File file) {
-		// must remove dependency on javax activation
-		MimetypesFileTypeMap mimeTypesMap = new MimetypesFileTypeMap();
-		response.headers().set(HttpHeaders.Names.CONTENT_TYPE, mimeTypesMap.getContentType(file.getPath()));
+		response.headers().set(HttpHeaders.Names.CONTENT_TYPE, getContentType(file));
+	}
+	
+	/**
+	 * Find the content type for the given file
+	 * 
+	 * @param file
+	 *            file to extract content type
+	 * 
+	 * @return the content type
+	 */
+	public static AsciiString getContentType(File file) {
+		return MimeTypeRegistry.DEFAULT.getMimeType(file.getName());
 	}
 	
 	/**
@@ -140,142 +252,53 @@ public class NettyUtils {
 	 *            file to extract content type
 	 */
 	public static void setDateAndCacheHeaders(HttpResponse response, File fileToCache, int cacheSeconds) {
-		SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-		dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-		// Date header
-		Calendar time = new GregorianCalendar();
-		response.headers().set(HttpHeaders.Names.DATE, dateFormatter.format(time.getTime()));
-
-		// Add cache headers
-		time.add(Calendar.SECOND, cacheSeconds);
-		response.headers().set(HttpHeaders.Names.EXPIRES, dateFormatter.format(time.getTime()));
-		response.headers().set(HttpHeaders.Names.CACHE_CONTROL, "private, max-age=" + cacheSeconds);
-		response.headers().set(HttpHeaders.Names.LAST_MODIFIED, dateFormatter.format(new Date(fileToCache.lastModified())));
+		setDateAndCacheHeaders(response, fileToCache.lastModified(), cacheSeconds);
 	}
 	
-	public static String sanitizeUri(String uri) {
-		// Decode the path.
-		try {
-			uri = URLDecoder.decode(uri, "UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new Error(e);
-		}
-
-		if (!uri.startsWith("/")) {
-			return null;
-		}
-
-		// Convert file separators.
-		uri = uri.replace('/', File.separatorChar);
-
-		// TODO: Simplistic dumb security check.
-		// You will have to do something serious in the production environment.
-		if (uri.contains(File.separator + '.')
-				|| uri.contains('.' + File.separator) || uri.startsWith(".")
-				|| uri.endsWith(".") || INSECURE_URI.matcher(uri).matches()) {
-			return null;
-		}
-
-		// Convert to absolute path.
-		return uri;
+	/**
+	 * Sets the Date and Cache headers for the HTTP Response
+	 *
+	 * @param response
+	 *            HTTP response
+	 * @param lastModified
+	 *            the last modified time of the resource being sent
+	 */
+	public static void setDateAndCacheHeaders(HttpResponse response, long lastModified, int cacheSeconds) {
+		setDateAndCacheHeaders(response, HttpDateClock.format(lastModified), cacheSeconds);
 	}
 	
-	public static void sendListing(ChannelHandlerContext ctx, File dir) {
-		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-		response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/html; charset=UTF-8");
-
-		StringBuilder buf = new StringBuilder();
-		String dirPath = dir.getPath();
-
-		buf.append("<!DOCTYPE html>\r\n");
-		buf.append("<html><head><title>");
-		buf.append("Listing of: ");
-		buf.append(dirPath);
-		buf.append("</title></head><body>\r\n");
-
-		buf.append("<h3>Listing of: ");
-		buf.append(dirPath);
-		buf.append("</h3>\r\n");
-
-		buf.append("<ul>");
-		buf.append("<li><a href=\"../\">..</a></li>\r\n");
-
-		for (File f : dir.listFiles()) {
-			if (f.isHidden() || !f.canRead()) {
-				continue;
-			}
-
-			String name = f.getName();
-			if (!ALLOWED_FILE_NAME.matcher(name).matches()) {
-				continue;
-			}
-
-			buf.append("<li><a href=\"");
-			buf.append(name);
-			buf.append("\">");
-			buf.append(name);
-			buf.append("</a></li>\r\n");
-		}
-
-		buf.append("</ul></body></html>\r\n");
-		ByteBuf buffer = Unpooled.copiedBuffer(buf, CharsetUtil.UTF_8);
-		response.content().writeBytes(buffer);
-		buffer.release();
-
-		// Close the connection as soon as the error message is sent.
-		ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+	/**
+	 * Sets the Date and Cache headers for the HTTP Response
+	 *
+	 * @param response
+	 *            HTTP response
+	 * @param lastModified
+	 *            the already formatted last modified time of the resource
+	 */
+	public static void setDateAndCacheHeaders(HttpResponse response, CharSequence lastModified, int cacheSeconds) {
+		// one snapshot, so that Expires is exactly the cache time after Date
+		HttpDateClock.Tick tick = HttpDateClock.now(cacheSeconds);
+		
+		HttpHeaders headers = response.headers();
+		headers.set(HttpHeaders.Names.DATE, tick.getDate());
+		headers.set(HttpHeaders.Names.EXPIRES, tick.getExpires());
+		headers.set(HttpHeaders.Names.CACHE_CONTROL, tick.getCacheControl());
+		headers.set(HttpHeaders.Names.LAST_MODIFIED, lastModified);
 	}
 	
-	public static void sendListing(final ChannelHandlerContext ctx, final File dir, final String spdyRequest) {
-		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-		response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/html; charset=UTF-8");
-		
-		if(AssertUtils.isNotEmpty(spdyRequest)) {
-			response.headers().set(SPDY_STREAM_ID, spdyRequest);
-			response.headers().set(SPDY_STREAM_PRIO, 0);
-		}
-
-		StringBuilder buf = new StringBuilder();
-		String dirPath = dir.getPath();
-
-		buf.append("<!DOCTYPE html>\r\n");
-		buf.append("<html><head><title>");
-		buf.append("Listing of: ");
-		buf.append(dirPath);
-		buf.append("</title></head><body>\r\n");
-
-		buf.append("<h3>Listing of: ");
-		buf.append(dirPath);
-		buf.append("</h3>\r\n");
-
-		buf.append("<ul>");
-		buf.append("<li><a href=\"../\">..</a></li>\r\n");
-
-		for (File f : dir.listFiles()) {
-			if (f.isHidden() || !f.canRead()) {
-				continue;
-			}
-
-			String name = f.getName();
-			if (!ALLOWED_FILE_NAME.matcher(name).matches()) {
-				continue;
-			}
-
-			buf.append("<li><a href=\"");
-			buf.append(name);
-			buf.append("\">");
-			buf.append(name);
-			buf.append("</a></li>\r\n");
-		}
-
-		buf.append("</ul></body></html>\r\n");
-		ByteBuf buffer = Unpooled.copiedBuffer(buf, CharsetUtil.UTF_8);
-		response.content().writeBytes(buffer);
-		buffer.release();
-
-		// Close the connection as soon as the error message is sent.
-		ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+	/**
+	 * Convert the request target into the path of the file to serve, relative
+	 * to the document root.
+	 * 
+	 * @param uri
+	 *            the request target, with or without a query string
+	 * 
+	 * @return the path, or <code>null</code> if the target may not be served
+	 * 
+	 * @see UriSanitizer
+	 */
+	public static String sanitizeUri(String uri) {
+		return UriSanitizer.sanitize(uri);
 	}
-
+	
 }
@@ -0,0 +1,227 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of immutable, pre-encoded responses for errors and redirects.
+ * Bodies are held in read-only direct buffers that are never released, and
+ * every response gets its own duplicate of the body and a copy of the
+ * pre-built headers, so sending one costs no encoding at all.
+ * 
+ * Custom error pages, if configured, are read once when the registry is
+ * created.
+ * 
+ * @author sangupta
+ *
+ */
+public class ResponseTemplates {
+	
+	/**
+	 * Templates with the built-in error pages
+	 */
+	public static final ResponseTemplates DEFAULT = new ResponseTemplates();
+	
+	public static final AsciiString TEXT_PLAIN_UTF8 = AsciiString.cached("text/plain; charset=UTF-8");
+	
+	public static final AsciiString TEXT_HTML_UTF8 = AsciiString.cached("text/html; charset=UTF-8");
+	
+	/**
+	 * Templates by status code
+	 */
+	private final ConcurrentMap<Integer, Template> templates = new ConcurrentHashMap<Integer, Template>();
+	
+	/**
+	 * Create templates with the built-in error pages.
+	 * 
+	 */
+	public ResponseTemplates() {
+		this.prepareCommonStatuses();
+	}
+	
+	/**
+	 * Create templates, replacing the built-in error pages with the given
+	 * files.
+	 * 
+	 * @param errorPages
+	 *            the pages to send, by status code
+	 * 
+	 * @param mimeTypes
+	 *            the registry to resolve the content type of the pages with
+	 * 
+	 * @throws IllegalStateException
+	 *             if one of the pages cannot be read
+	 */
+	public ResponseTemplates(Map<Integer, File> errorPages, MimeTypeRegistry mimeTypes) {
+		for(Map.Entry<Integer, File> entry : errorPages.entrySet()) {
+			File page = entry.getValue();
+			
+			byte[] bytes;
+			try {
+				bytes = Files.readAllBytes(page.toPath());
+			} catch(IOException e) {
+				throw new IllegalStateException("Unable to read error page: " + page, e);
+			}
+			
+			HttpResponseStatus status = HttpResponseStatus.valueOf(entry.getKey());
+			this.templates.put(status.code(), new Template(status, mimeTypes.getMimeType(page.getName()), Unpooled.wrappedBuffer(bytes)));
+		}
+		
+		this.prepareCommonStatuses();
+	}
+	
+	/**
+	 * Create a new error response for the given status.
+	 * 
+	 * @param status
+	 * @return
+	 */
+	public FullHttpResponse newError(HttpResponseStatus status) {
+		return this.getTemplate(status).newResponse();
+	}
+	
+	/**
+	 * Create a new redirect response to the given location.
+	 * 
+	 * @param location
+	 * @return
+	 */
+	public FullHttpResponse newRedirect(String location) {
+		FullHttpResponse response = this.getTemplate(HttpResponseStatus.FOUND).newResponse();
+		response.headers().set(HttpHeaders.Names.LOCATION, location);
+		return response;
+	}
+	
+	/**
+	 * Create a directory listing response around the given body.
+	 * 
+	 * @param content
+	 *            the encoded listing, ownership passes to the response
+	 * 
+	 * @param contentType
+	 *            the format of the listing
+	 * 
+	 * @return
+	 */
+	public static FullHttpResponse newListing(ByteBuf content, AsciiString contentType) {
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content, false);
+		response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+		HttpHeaders.setContentLength(response, content.readableBytes());
+		return response;
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * Build the templates we know scanners will hit, so that the first 404
+	 * does not pay for it either.
+	 * 
+	 */
+	private void prepareCommonStatuses() {
+		HttpResponseStatus[] statuses = { HttpResponseStatus.BAD_REQUEST, HttpResponseStatus.FORBIDDEN, HttpResponseStatus.NOT_FOUND,
+										  HttpResponseStatus.METHOD_NOT_ALLOWED, HttpResponseStatus.PRECONDITION_FAILED,
+										  HttpResponseStatus.INTERNAL_SERVER_ERROR, HttpResponseStatus.SERVICE_UNAVAILABLE, HttpResponseStatus.FOUND };
+		
+		for(HttpResponseStatus status : statuses) {
+			this.getTemplate(status);
+		}
+	}
+	
+	private Template getTemplate(HttpResponseStatus status) {
+		Template template = this.templates.get(status.code());
+		if(template != null) {
+			return template;
+		}
+		
+		template = createDefaultTemplate(status);
+		Template existing = this.templates.putIfAbsent(status.code(), template);
+		if(existing != null) {
+			return existing;
+		}
+		
+		return template;
+	}
+	
+	private static Template createDefaultTemplate(HttpResponseStatus status) {
+		if(status.code() < 400) {
+			return new Template(status, null, Unpooled.EMPTY_BUFFER);
+		}
+		
+		return new Template(status, TEXT_PLAIN_UTF8, Unpooled.copiedBuffer("Failure: " + status + "\r\n", CharsetUtil.UTF_8));
+	}
+	
+	/**
+	 * A single pre-encoded response
+	 * 
+	 */
+	private static class Template {
+		
+		final HttpResponseStatus status;
+		
+		/**
+		 * Read-only and never released, handed out as duplicates
+		 */
+		final ByteBuf content;
+		
+		final HttpHeaders headers;
+		
+		Template(HttpResponseStatus status, AsciiString contentType, ByteBuf body) {
+			ByteBuf direct = Unpooled.directBuffer(body.readableBytes());
+			direct.writeBytes(body);
+			body.release();
+			
+			this.status = status;
+			this.content = Unpooled.unreleasableBuffer(direct.asReadOnly());
+			this.headers = new DefaultHttpHeaders(false);
+			if(contentType != null) {
+				this.headers.set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+			}
+			
+			this.headers.set(HttpHeaders.Names.CONTENT_LENGTH, String.valueOf(this.content.readableBytes()));
+		}
+		
+		FullHttpResponse newResponse() {
+			FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, this.status, this.content.retainedDuplicate(), false);
+			response.headers().set(this.headers);
+			return response;
+		}
+	
+	}
+
+}
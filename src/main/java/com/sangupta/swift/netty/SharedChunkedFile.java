@@ -0,0 +1,204 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import com.sangupta.swift.cache.OpenFile;
+
+/**
+ * Streams a section of a shared {@link OpenFile} for connections where
+ * zero-copy transfers are not possible, such as SSL.
+ * 
+ * The file is read into pooled direct buffers, which the SSL engine can
+ * encrypt from without another copy. Chunks are a whole number of full TLS
+ * records: the first chunk is a single record so the response starts right
+ * away, and later chunks grow to fill whatever room the channel we are
+ * given has before it turns unwritable, up to the maximum chunk size. The
+ * channel is passed in as the chunked writer does not tell us which one it
+ * is reading for. Reads are positional so other responses can use the same
+ * file at the same time, and closing only gives up the reference to the
+ * file.
+ * 
+ * @author sangupta
+ *
+ */
+public class SharedChunkedFile implements ChunkedInput<ByteBuf> {
+	
+	/**
+	 * The most plain text a single TLS record can carry
+	 */
+	public static final int TLS_RECORD_SIZE = 16 * 1024;
+	
+	public static final int DEFAULT_MAX_CHUNK_SIZE = 16 * TLS_RECORD_SIZE;
+	
+	private final OpenFile file;
+	
+	/**
+	 * The channel the chunks are written to, <code>null</code> for chunks of
+	 * a single record
+	 */
+	private final Channel channel;
+	
+	private final long startOffset;
+	
+	private final long endOffset;
+	
+	private final int maxChunkSize;
+	
+	private long offset;
+	
+	private boolean closed = false;
+	
+	/**
+	 * Create a chunked reader over the given file. Takes over one reference
+	 * to the file from the caller.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @param channel
+	 *            the channel the chunks are written to
+	 */
+	public SharedChunkedFile(OpenFile file, long offset, long length, Channel channel) {
+		this(file, offset, length, channel, DEFAULT_MAX_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Create a chunked reader over the given file. Takes over one reference
+	 * to the file from the caller.
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @param channel
+	 *            the channel the chunks are written to
+	 * 
+	 * @param maxChunkSize
+	 *            the largest chunk to read at once, rounded down to full TLS
+	 *            records
+	 */
+	public SharedChunkedFile(OpenFile file, long offset, long length, Channel channel, int maxChunkSize) {
+		if(offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Offset and length cannot be negative");
+		}
+		
+		this.file = file;
+		this.channel = channel;
+		this.startOffset = offset;
+		this.offset = offset;
+		this.endOffset = offset + length;
+		this.maxChunkSize = Math.max(TLS_RECORD_SIZE, maxChunkSize - maxChunkSize % TLS_RECORD_SIZE);
+	}
+	
+	@Override
+	public boolean isEndOfInput() throws Exception {
+		return this.offset >= this.endOffset || this.closed;
+	}
+	
+	@Override
+	public void close() {
+		if(this.closed) {
+			return;
+		}
+		
+		this.closed = true;
+		this.file.release();
+	}
+	
+	@Override
+	@Deprecated
+	public ByteBuf readChunk(ChannelHandlerContext context) throws Exception {
+		return this.readChunk(context.alloc());
+	}
+	
+	@Override
+	public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+		if(this.offset >= this.endOffset) {
+			return null;
+		}
+		
+		final int size = (int) Math.min(this.nextChunkSize(), this.endOffset - this.offset);
+		final FileChannel in = this.file.getChannel();
+		
+		ByteBuf buffer = allocator.directBuffer(size);
+		boolean release = true;
+		try {
+			int read = 0;
+			while(read < size) {
+				int bytes = buffer.writeBytes(in, this.offset + read, size - read);
+				if(bytes < 0) {
+					throw new IOException("File was truncated while being sent: " + this.file.getPath());
+				}
+				
+				read += bytes;
+			}
+			
+			this.offset += read;
+			release = false;
+			return buffer;
+		} finally {
+			if(release) {
+				buffer.release();
+			}
+		}
+	}
+	
+	@Override
+	public long length() {
+		return this.endOffset - this.startOffset;
+	}
+	
+	@Override
+	public long progress() {
+		return this.offset - this.startOffset;
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * Size the next chunk to fill the room left before the channel turns
+	 * unwritable, in full TLS records.
+	 * 
+	 * @return
+	 */
+	private int nextChunkSize() {
+		if(this.offset == this.startOffset || this.channel == null) {
+			return TLS_RECORD_SIZE;
+		}
+		
+		long room = this.channel.bytesBeforeUnwritable();
+		if(room <= TLS_RECORD_SIZE) {
+			return TLS_RECORD_SIZE;
+		}
+		
+		return (int) Math.min(this.maxChunkSize, room - room % TLS_RECORD_SIZE);
+	}
+
+}
@@ -0,0 +1,60 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.channel.DefaultFileRegion;
+
+import com.sangupta.swift.cache.OpenFile;
+
+/**
+ * A zero-copy file region over a shared {@link OpenFile}. Being a
+ * {@link DefaultFileRegion} it is sent with <code>sendfile</code> by the
+ * native transports too, but it does not close the file channel when done,
+ * it only gives up its reference to the file.
+ * 
+ * @author sangupta
+ *
+ */
+public class SharedFileRegion extends DefaultFileRegion {
+	
+	private final OpenFile file;
+	
+	/**
+	 * Create a region of the given file. The region takes over one reference
+	 * to the file from the caller.
+	 * 
+	 * @param file
+	 * @param position
+	 * @param count
+	 */
+	public SharedFileRegion(OpenFile file, long position, long count) {
+		// transfers are positional, others may be sending the same file
+		super(file.getChannel(), position, count);
+		this.file = file;
+	}
+	
+	@Override
+	protected void deallocate() {
+		this.file.release();
+	}
+
+}
@@ -0,0 +1,246 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The transports servers can run on, in the order they are preferred when
+ * none is asked for. Event loops of a transport only serve channels of the
+ * same transport.
+ * 
+ * @author sangupta
+ *
+ */
+public enum Transport {
+	
+	/**
+	 * Native Linux epoll, edge-triggered, with TCP fast open and deferred
+	 * accepts for protocols where the client speaks first
+	 */
+	EPOLL {
+		
+		@Override
+		public boolean isAvailable() {
+			return Epoll.isAvailable();
+		}
+		
+		@Override
+		public Throwable unavailabilityCause() {
+			return Epoll.unavailabilityCause();
+		}
+		
+		@Override
+		public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+			return new EpollEventLoopGroup(threads, threadFactory);
+		}
+		
+		@Override
+		public Class<? extends ServerChannel> getServerChannelClass() {
+			return EpollServerSocketChannel.class;
+		}
+		
+		@Override
+		public Class<? extends SocketChannel> getSocketChannelClass() {
+			return EpollSocketChannel.class;
+		}
+		
+		@Override
+		public void configure(ServerBootstrap bootstrap, boolean clientSpeaksFirst) {
+			bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+					 .option(EpollChannelOption.TCP_FASTOPEN, TCP_FASTOPEN_QUEUE)
+					 .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+			
+			if(clientSpeaksFirst) {
+				// no need to wake up for a connection before there is a request
+				bootstrap.option(EpollChannelOption.TCP_DEFER_ACCEPT, DEFER_ACCEPT_SECONDS);
+			}
+		}
+		
+		@Override
+		public boolean enableReusePort(ServerBootstrap bootstrap) {
+			bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+			return true;
+		}
+	
+	},
+	
+	/**
+	 * Java NIO, available everywhere
+	 */
+	NIO {
+		
+		@Override
+		public boolean isAvailable() {
+			return true;
+		}
+		
+		@Override
+		public Throwable unavailabilityCause() {
+			return null;
+		}
+		
+		@Override
+		public EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory) {
+			return new NioEventLoopGroup(threads, threadFactory);
+		}
+		
+		@Override
+		public Class<? extends ServerChannel> getServerChannelClass() {
+			return NioServerSocketChannel.class;
+		}
+		
+		@Override
+		public Class<? extends SocketChannel> getSocketChannelClass() {
+			return NioSocketChannel.class;
+		}
+		
+		@Override
+		public void configure(ServerBootstrap bootstrap, boolean clientSpeaksFirst) {
+			// nothing to tune
+		}
+		
+		@Override
+		public boolean enableReusePort(ServerBootstrap bootstrap) {
+			return false;
+		}
+	
+	};
+	
+	/**
+	 * Connections that may be waiting for their fast open cookie to be
+	 * checked
+	 */
+	private static final int TCP_FASTOPEN_QUEUE = 256;
+	
+	/**
+	 * How long a connection may wait for its first data before it is
+	 * accepted all the same
+	 */
+	private static final int DEFER_ACCEPT_SECONDS = 1;
+	
+	/**
+	 * @return whether the transport can be used on this machine
+	 */
+	public abstract boolean isAvailable();
+	
+	/**
+	 * @return why the transport cannot be used on this machine, or
+	 *         <code>null</code> if it can
+	 */
+	public abstract Throwable unavailabilityCause();
+	
+	/**
+	 * Create a group of event loops for this transport.
+	 * 
+	 * @param threads
+	 * @param threadFactory
+	 * @return
+	 */
+	public abstract EventLoopGroup newEventLoopGroup(int threads, ThreadFactory threadFactory);
+	
+	/**
+	 * @return the class of channels accepting connections
+	 */
+	public abstract Class<? extends ServerChannel> getServerChannelClass();
+	
+	/**
+	 * @return the class of channels of connections, also used to open ones
+	 */
+	public abstract Class<? extends SocketChannel> getSocketChannelClass();
+	
+	/**
+	 * Set the options of this transport on a server about to be bound.
+	 * 
+	 * @param bootstrap
+	 * @param clientSpeaksFirst
+	 *            whether clients always send data before the server does,
+	 *            as they do with HTTP and TLS
+	 */
+	public abstract void configure(ServerBootstrap bootstrap, boolean clientSpeaksFirst);
+	
+	/**
+	 * Let the channels of a server all bind the same port, with the kernel
+	 * spreading new connections between them.
+	 * 
+	 * @param bootstrap
+	 * @return whether the transport can do so
+	 */
+	public abstract boolean enableReusePort(ServerBootstrap bootstrap);
+	
+	/**
+	 * Pick the transport to run on: the one asked for if it is available on
+	 * this machine, or else the most preferred one that is.
+	 * 
+	 * @param preferred
+	 *            the transport asked for, <code>null</code> for the best one
+	 *            available
+	 * 
+	 * @return
+	 */
+	public static Transport select(Transport preferred) {
+		if(preferred != null) {
+			if(preferred.isAvailable()) {
+				return preferred;
+			}
+			
+			System.out.println("Transport " + preferred + " is not available, falling back: " + preferred.unavailabilityCause());
+		}
+		
+		for(Transport transport : values()) {
+			if(transport.isAvailable()) {
+				return transport;
+			}
+		}
+		
+		return NIO;
+	}
+	
+	/**
+	 * Return the transport the given event loops belong to.
+	 * 
+	 * @param group
+	 * @return
+	 */
+	public static Transport of(EventLoopGroup group) {
+		if(group instanceof EpollEventLoopGroup) {
+			return EPOLL;
+		}
+		
+		return NIO;
+	}
+
+}
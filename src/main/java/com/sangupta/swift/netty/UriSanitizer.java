@@ -0,0 +1,286 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.io.File;
+
+/**
+ * Turns the request target of an HTTP request into the path used as key by
+ * the file caches, in a single pass over its characters. The query string
+ * and fragment are dropped, percent escapes and UTF-8 sequences decoded,
+ * empty and <code>.</code> segments removed and <code>..</code> segments
+ * resolved against the segments before them. Separators are converted to
+ * the one of the platform.
+ * 
+ * A path is rejected if it would climb above the document root, or if any of
+ * its segments
+ * <ul>
+ * <li>starts with a dot, as hidden files are never served</li>
+ * <li>ends with a dot, which some file systems silently drop</li>
+ * <li>holds a control character, or one of <code>&lt;&gt;&amp;&quot;</code></li>
+ * <li>holds a malformed escape or UTF-8 sequence</li>
+ * </ul>
+ * 
+ * A plus sign is a plus sign in a path; only query strings encode spaces as
+ * such.
+ * 
+ * Work is done in a buffer kept per thread. A path that needs no changes,
+ * which is what nearly every request carries, is returned as is without
+ * allocating anything.
+ * 
+ * @author sangupta
+ *
+ */
+public class UriSanitizer {
+	
+	private static final char SEPARATOR = File.separatorChar;
+	
+	/**
+	 * Whether names are subject to the rules of Windows file systems
+	 */
+	private static final boolean WINDOWS = SEPARATOR == '\\';
+	
+	private static final FastThreadLocal<char[]> BUFFER = new FastThreadLocal<char[]>() {
+		
+		@Override
+		protected char[] initialValue() {
+			return new char[256];
+		}
+	
+	};
+	
+	private UriSanitizer() {
+		// no instance
+	}
+	
+	/**
+	 * Sanitize the given request target.
+	 * 
+	 * @param uri
+	 *            the request target, with or without a query string
+	 * 
+	 * @return the sanitized path, starting with the separator of the platform
+	 *         and ending with it if the target did, or <code>null</code> if
+	 *         the target is not one we can serve
+	 */
+	public static String sanitize(String uri) {
+		final int length = uri.length();
+		if(length == 0 || uri.charAt(0) != '/') {
+			return null;
+		}
+		
+		// the decoded path is never longer than the encoded one
+		char[] out = BUFFER.get();
+		if(out.length < length) {
+			out = new char[Math.max(length, out.length * 2)];
+			BUFFER.set(out);
+		}
+		
+		out[0] = SEPARATOR;
+		int written = 1;
+		int segmentStart = 1;
+		
+		// whether the path differs from the start of the target
+		boolean changed = SEPARATOR != '/';
+		
+		// the UTF-8 sequence being decoded
+		int codePoint = 0;
+		int pending = 0;
+		int minimum = 0;
+		
+		int index = 1;
+		for( ; index < length; index++) {
+			char c = uri.charAt(index);
+			if(c == '?' || c == '#') {
+				break;
+			}
+			
+			if(c == '%') {
+				if(index + 2 >= length) {
+					return null;
+				}
+				
+				int high = Character.digit(uri.charAt(index + 1), 16);
+				int low = Character.digit(uri.charAt(index + 2), 16);
+				if(high < 0 || low < 0) {
+					return null;
+				}
+				
+				c = (char) (high << 4 | low);
+				index += 2;
+				changed = true;
+			}
+			
+			// bytes of a UTF-8 sequence, escaped or not
+			if(c >= 0x80 && c <= 0xFF) {
+				changed = true;
+				if(pending > 0) {
+					if((c & 0xC0) != 0x80) {
+						return null;
+					}
+					
+					codePoint = codePoint << 6 | (c & 0x3F);
+					if(--pending > 0) {
+						continue;
+					}
+					
+					if(codePoint < minimum || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) || codePoint > Character.MAX_CODE_POINT) {
+						return null;
+					}
+					
+					if(Character.isSupplementaryCodePoint(codePoint)) {
+						out[written++] = Character.highSurrogate(codePoint);
+						out[written++] = Character.lowSurrogate(codePoint);
+						continue;
+					}
+					
+					c = (char) codePoint;
+				} else if(c >= 0xC2 && c <= 0xDF) {
+					codePoint = c & 0x1F;
+					pending = 1;
+					minimum = 0x80;
+					continue;
+				} else if(c >= 0xE0 && c <= 0xEF) {
+					codePoint = c & 0x0F;
+					pending = 2;
+					minimum = 0x800;
+					continue;
+				} else if(c >= 0xF0 && c <= 0xF4) {
+					codePoint = c & 0x07;
+					pending = 3;
+					minimum = 0x10000;
+					continue;
+				} else {
+					return null;
+				}
+			} else if(pending > 0) {
+				// sequence cut short
+				return null;
+			}
+			
+			if(c == '/' || c == SEPARATOR) {
+				if(written == segmentStart) {
+					// empty segment, the separator is dropped
+					changed = true;
+					continue;
+				}
+				
+				int end = endSegment(out, segmentStart, written);
+				if(end < 0) {
+					return null;
+				}
+				
+				if(end != written) {
+					// dot segment, the output already ends with a separator
+					changed = true;
+					written = end;
+				} else {
+					out[written++] = SEPARATOR;
+				}
+				
+				segmentStart = written;
+				continue;
+			}
+			
+			if(c < 0x20 || c == 0x7F || c == '<' || c == '>' || c == '&' || c == '"' || (WINDOWS && c == ':')) {
+				return null;
+			}
+			
+			out[written++] = c;
+		}
+		
+		if(pending > 0) {
+			return null;
+		}
+		
+		if(written > segmentStart) {
+			int end = endSegment(out, segmentStart, written);
+			if(end < 0) {
+				return null;
+			}
+			
+			if(end != written) {
+				changed = true;
+				written = end;
+			}
+		}
+		
+		if(changed) {
+			return new String(out, 0, written);
+		}
+		
+		// nothing to decode or resolve, which is the common case
+		return index == length ? uri : uri.substring(0, index);
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * Check the segment that has just been read, resolving it if it is a
+	 * dot segment.
+	 * 
+	 * @param out
+	 *            the path so far
+	 * @param segmentStart
+	 *            where the segment starts, just past a separator
+	 * @param written
+	 *            where the segment ends
+	 * @return where the path now ends, or <code>-1</code> if the segment is
+	 *         not allowed
+	 */
+	private static int endSegment(char[] out, int segmentStart, int written) {
+		final char last = out[written - 1];
+		if(out[segmentStart] != '.') {
+			if(last == '.' || (WINDOWS && last == ' ')) {
+				return -1;
+			}
+			
+			return written;
+		}
+		
+		final int length = written - segmentStart;
+		if(length == 1) {
+			return segmentStart;
+		}
+		
+		if(length == 2 && last == '.') {
+			if(segmentStart == 1) {
+				// would climb above the root
+				return -1;
+			}
+			
+			// drop the segment before, keeping its leading separator
+			int end = segmentStart - 1;
+			while(out[end - 1] != SEPARATOR) {
+				end--;
+			}
+			
+			return end;
+		}
+		
+		// hidden file
+		return -1;
+	}
+
+}
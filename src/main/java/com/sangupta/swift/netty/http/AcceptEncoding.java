@@ -0,0 +1,123 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty.http;
+
+/**
+ * Utility functions to work with the <code>Accept-Encoding</code> request
+ * header.
+ * 
+ * @author sangupta
+ *
+ */
+public class AcceptEncoding {
+	
+	private AcceptEncoding() {
+		// no instance
+	}
+	
+	/**
+	 * Check if the client accepts the given content coding. A coding is
+	 * accepted when it is listed with a non-zero quality, or when it is not
+	 * listed and the wildcard is.
+	 * 
+	 * @param header
+	 *            the value of the <code>Accept-Encoding</code> header, may be
+	 *            <code>null</code>
+	 * 
+	 * @param coding
+	 *            the coding to check, in lower case
+	 * 
+	 * @return
+	 */
+	public static boolean accepts(String header, String coding) {
+		if(header == null || header.isEmpty()) {
+			return false;
+		}
+		
+		boolean wildcard = false;
+		
+		final int length = header.length();
+		int start = 0;
+		while(start < length) {
+			int end = header.indexOf(',', start);
+			if(end < 0) {
+				end = length;
+			}
+			
+			// find the token
+			int tokenStart = skipSpaces(header, start, end);
+			int tokenEnd = tokenStart;
+			while(tokenEnd < end && header.charAt(tokenEnd) != ';' && header.charAt(tokenEnd) != ' ') {
+				tokenEnd++;
+			}
+			
+			boolean accepted = isNonZeroQuality(header, tokenEnd, end);
+			int tokenLength = tokenEnd - tokenStart;
+			if(tokenLength == coding.length() && header.regionMatches(true, tokenStart, coding, 0, tokenLength)) {
+				return accepted;
+			}
+			
+			if(tokenLength == 1 && header.charAt(tokenStart) == '*') {
+				wildcard = accepted;
+			}
+			
+			start = end + 1;
+		}
+		
+		return wildcard;
+	}
+	
+	// Internal methods follow
+	
+	private static int skipSpaces(String header, int start, int end) {
+		while(start < end && header.charAt(start) == ' ') {
+			start++;
+		}
+		
+		return start;
+	}
+	
+	/**
+	 * Check the parameters of a single coding for <code>q=0</code>
+	 * 
+	 */
+	private static boolean isNonZeroQuality(String header, int start, int end) {
+		int q = header.indexOf("q=", start);
+		if(q < 0 || q >= end) {
+			return true;
+		}
+		
+		for(int index = q + 2; index < end; index++) {
+			char c = header.charAt(index);
+			if(c >= '1' && c <= '9') {
+				return true;
+			}
+			
+			if(c != '0' && c != '.') {
+				break;
+			}
+		}
+		
+		return false;
+	}
+
+}
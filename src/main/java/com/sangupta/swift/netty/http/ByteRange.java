@@ -0,0 +1,211 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A single satisfiable byte range of a resource, as asked for in the
+ * <code>Range</code> request header.
+ * 
+ * @author sangupta
+ *
+ */
+public class ByteRange {
+	
+	/**
+	 * Maximum number of ranges we honour in a single request. More than this
+	 * and the whole resource is sent instead.
+	 */
+	public static final int MAX_RANGES = 32;
+	
+	private final long start;
+	
+	private final long end;
+	
+	public ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+	
+	/**
+	 * Parse the value of a <code>Range</code> header.
+	 * 
+	 * @param header
+	 *            the header value
+	 * 
+	 * @param length
+	 *            the length of the resource
+	 * 
+	 * @return <code>null</code> if the header is absent, malformed or asks for
+	 *         too many ranges, in which case it must be ignored; an empty list
+	 *         if no range can be satisfied; else the ranges to send, sorted
+	 *         and with overlapping ranges merged
+	 */
+	public static List<ByteRange> parse(String header, long length) {
+		if(header == null) {
+			return null;
+		}
+		
+		header = header.trim();
+		if(!header.startsWith("bytes=")) {
+			return null;
+		}
+		
+		String[] specs = header.substring(6).split(",");
+		if(specs.length > MAX_RANGES) {
+			return null;
+		}
+		
+		List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+		for(String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if(dash < 0) {
+				return null;
+			}
+			
+			long start;
+			long end;
+			try {
+				if(dash == 0) {
+					// suffix range: last N bytes
+					long suffix = Long.parseLong(spec.substring(1));
+					if(suffix <= 0) {
+						continue;
+					}
+					
+					start = Math.max(0, length - suffix);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					if(dash == spec.length() - 1) {
+						end = length - 1;
+					} else {
+						long last = Long.parseLong(spec.substring(dash + 1));
+						if(last < start) {
+							// syntactically invalid
+							return null;
+						}
+						
+						end = Math.min(last, length - 1);
+					}
+				}
+			} catch(NumberFormatException e) {
+				return null;
+			}
+			
+			if(start < 0) {
+				return null;
+			}
+			
+			if(start >= length || end < start) {
+				// not satisfiable, skip
+				continue;
+			}
+			
+			ranges.add(new ByteRange(start, end));
+		}
+		
+		return coalesce(ranges);
+	}
+	
+	/**
+	 * @return the number of bytes in this range
+	 */
+	public long length() {
+		return this.end - this.start + 1;
+	}
+	
+	/**
+	 * @param total
+	 *            the length of the complete resource
+	 * 
+	 * @return the value for the <code>Content-Range</code> header
+	 */
+	public String toContentRange(long total) {
+		return "bytes " + this.start + "-" + this.end + "/" + total;
+	}
+	
+	/**
+	 * @param total
+	 *            the length of the complete resource
+	 * 
+	 * @return the <code>Content-Range</code> value for a 416 response
+	 */
+	public static String unsatisfiedContentRange(long total) {
+		return "bytes */" + total;
+	}
+	
+	// Internal methods follow
+	
+	private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+		if(ranges.size() < 2) {
+			return ranges;
+		}
+		
+		Collections.sort(ranges, new Comparator<ByteRange>() {
+			
+			@Override
+			public int compare(ByteRange first, ByteRange second) {
+				return first.start < second.start ? -1 : (first.start == second.start ? 0 : 1);
+			}
+			
+		});
+		
+		List<ByteRange> merged = new ArrayList<ByteRange>(ranges.size());
+		ByteRange current = ranges.get(0);
+		for(int index = 1; index < ranges.size(); index++) {
+			ByteRange next = ranges.get(index);
+			if(next.start <= current.end + 1) {
+				current = new ByteRange(current.start, Math.max(current.end, next.end));
+				continue;
+			}
+			
+			merged.add(current);
+			current = next;
+		}
+		
+		merged.add(current);
+		return merged;
+	}
+	
+	// Usual accessors follow
+
+	/**
+	 * @return the start
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the end
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+}
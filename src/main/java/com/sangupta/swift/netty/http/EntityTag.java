@@ -0,0 +1,147 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty.http;
+
+import io.netty.util.AsciiString;
+
+/**
+ * Utility functions to work with entity tags and the <code>If-Match</code>,
+ * <code>If-None-Match</code> and <code>If-Range</code> request headers.
+ * 
+ * @author sangupta
+ *
+ */
+public class EntityTag {
+	
+	private EntityTag() {
+		// no instance
+	}
+	
+	/**
+	 * Check if the given list of entity tags, as sent in an
+	 * <code>If-Match</code> or <code>If-None-Match</code> header, matches the
+	 * given strong entity tag.
+	 * 
+	 * @param header
+	 *            the header value
+	 * 
+	 * @param etag
+	 *            our strong entity tag, including the quotes
+	 * 
+	 * @param weakComparison
+	 *            whether a weak tag sent by the client may match, as is the
+	 *            case for <code>If-None-Match</code>
+	 * 
+	 * @return
+	 */
+	public static boolean matches(String header, CharSequence etag, boolean weakComparison) {
+		if(header == null || etag == null) {
+			return false;
+		}
+		
+		final int length = header.length();
+		int index = 0;
+		while(index < length) {
+			char c = header.charAt(index);
+			if(c == ' ' || c == ',' || c == '\t') {
+				index++;
+				continue;
+			}
+			
+			if(c == '*') {
+				return true;
+			}
+			
+			boolean weak = false;
+			if(c == 'W' && index + 1 < length && header.charAt(index + 1) == '/') {
+				weak = true;
+				index += 2;
+			}
+			
+			if(index >= length || header.charAt(index) != '"') {
+				// malformed, skip to the next tag
+				int comma = header.indexOf(',', index);
+				if(comma < 0) {
+					return false;
+				}
+				
+				index = comma + 1;
+				continue;
+			}
+			
+			int end = header.indexOf('"', index + 1);
+			if(end < 0) {
+				return false;
+			}
+			
+			int tagLength = end - index + 1;
+			if((!weak || weakComparison) && tagLength == etag.length() && regionMatches(header, index, etag)) {
+				return true;
+			}
+			
+			index = end + 1;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Check if the value of an <code>If-Range</code> header is an entity tag
+	 * rather than a date.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static boolean isEntityTag(String value) {
+		return value.startsWith("\"") || value.startsWith("W/");
+	}
+	
+	/**
+	 * Derive the entity tag of an encoded representation from the entity tag
+	 * of the file.
+	 * 
+	 * @param etag
+	 *            the strong entity tag of the file, including the quotes
+	 * 
+	 * @param encoding
+	 *            the content encoding
+	 * 
+	 * @return
+	 */
+	public static AsciiString forEncoding(AsciiString etag, AsciiString encoding) {
+		String value = etag.toString();
+		return new AsciiString(value.substring(0, value.length() - 1) + '-' + encoding + '"');
+	}
+	
+	// Internal methods follow
+	
+	private static boolean regionMatches(String header, int start, CharSequence etag) {
+		for(int index = 0; index < etag.length(); index++) {
+			if(header.charAt(start + index) != etag.charAt(index)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+
+}
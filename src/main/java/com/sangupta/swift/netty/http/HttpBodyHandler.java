@@ -0,0 +1,761 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sangupta.swift.cache.FileMetadata;
+import com.sangupta.swift.netty.NettyUtils;
+
+/**
+ * Deals with request bodies ahead of the {@link HttpObjectAggregator}.
+ * Requests without a body, which is nearly every <code>GET</code>, are handed
+ * on as a full request right away, sharing the headers the decoder read and
+ * without the aggregator setting up a buffer for them.
+ * 
+ * If uploads are enabled, the body of a <code>PUT</code> or <code>POST</code>
+ * is never aggregated. Each chunk is written to a temporary file next to the
+ * target on the file I/O pool as it arrives, one write at a time, and the file
+ * is moved over the target once the body is complete. Reading from the
+ * connection is paused while more than {@link #HIGH_WATER_MARK} bytes wait for
+ * the disk, and resumed once they are down to {@link #LOW_WATER_MARK}.
+ * An upload only starts once every request before it has been answered, and
+ * requests pipelined behind it are held till it is answered, so responses go
+ * out in order.
+ * 
+ * Everything else is left to the aggregator. One instance per connection.
+ * 
+ * @author sangupta
+ *
+ */
+public class HttpBodyHandler extends ChannelInboundHandlerAdapter {
+	
+	private static final int HIGH_WATER_MARK = 1024 * 1024;
+	
+	private static final int LOW_WATER_MARK = 256 * 1024;
+	
+	/**
+	 * Most chunks written to disk in a single task
+	 */
+	private static final int MAX_CHUNKS_PER_WRITE = 64;
+	
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(CharsetUtil.US_ASCII);
+	
+	private final HttpStaticFileServerHandler fileServerHandler;
+	
+	private final long maxUploadSize;
+	
+	/**
+	 * A request without a body, waiting for the end marker the decoder sends
+	 * after it
+	 */
+	private HttpRequest bodiless;
+	
+	/**
+	 * The upload being received, <code>null</code> if none
+	 */
+	private Upload upload;
+	
+	/**
+	 * Messages that arrived after the body of the upload, till it is answered
+	 */
+	private final ArrayDeque<Object> held = new ArrayDeque<Object>();
+	
+	/**
+	 * Set while an upload waits for the requests before it to be answered
+	 */
+	private boolean waitingForIdle;
+	
+	/**
+	 * Set while the body of a rejected upload is thrown away
+	 */
+	private boolean discardingBody;
+	
+	/**
+	 * Set once the connection is to be closed, after which nothing is read
+	 */
+	private boolean closing;
+	
+	public HttpBodyHandler(HttpStaticFileServerHandler fileServerHandler) {
+		this.fileServerHandler = fileServerHandler;
+		this.maxUploadSize = fileServerHandler.swiftServer.getMaxUploadSize();
+	}
+	
+	@Override
+	public void channelRead(ChannelHandlerContext context, Object message) throws Exception {
+		if(this.closing) {
+			ReferenceCountUtil.release(message);
+			return;
+		}
+		
+		if(this.waitingForIdle) {
+			this.held.add(message);
+			return;
+		}
+		
+		if(this.upload != null) {
+			if(this.upload.lastReceived) {
+				this.held.add(message);
+			} else if(message instanceof HttpContent) {
+				this.upload.received(context, (HttpContent) message);
+			} else {
+				// not the body we expected
+				ReferenceCountUtil.release(message);
+				this.upload.fail(context, HttpResponseStatus.BAD_REQUEST);
+			}
+			
+			return;
+		}
+		
+		if(this.discardingBody) {
+			if(message instanceof HttpContent) {
+				this.discardingBody = !(message instanceof LastHttpContent);
+				ReferenceCountUtil.release(message);
+				return;
+			}
+			
+			this.discardingBody = false;
+		}
+		
+		if(this.bodiless != null && message instanceof LastHttpContent) {
+			LastHttpContent last = (LastHttpContent) message;
+			if(!last.content().isReadable() && last.trailingHeaders().isEmpty()) {
+				last.release();
+				HttpRequest request = this.bodiless;
+				this.bodiless = null;
+				context.fireChannelRead(toFullRequest(request));
+				return;
+			}
+			
+			// a body after all, which the aggregator can deal with
+			context.fireChannelRead(this.bodiless);
+			this.bodiless = null;
+			context.fireChannelRead(message);
+			return;
+		}
+		
+		if(message instanceof HttpRequest && !(message instanceof FullHttpRequest)) {
+			HttpRequest request = (HttpRequest) message;
+			if(request.getDecoderResult().isSuccess()) {
+				if(this.fileServerHandler.uploadsEnabled && isUpload(request)) {
+					if(!this.fileServerHandler.isIdle(context)) {
+						this.waitForIdle(context, request);
+						return;
+					}
+					
+					this.startUpload(context, request);
+					return;
+				}
+				
+				if(hasNoBody(request)) {
+					this.bodiless = request;
+					return;
+				}
+			}
+		}
+		
+		context.fireChannelRead(message);
+	}
+	
+	@Override
+	public void channelInactive(ChannelHandlerContext context) throws Exception {
+		if(this.upload != null) {
+			this.upload.abort();
+			this.upload = null;
+		}
+		
+		Object message;
+		while((message = this.held.poll()) != null) {
+			ReferenceCountUtil.release(message);
+		}
+		
+		this.bodiless = null;
+		super.channelInactive(context);
+	}
+	
+	// Internal methods follow
+	
+	private void startUpload(ChannelHandlerContext context, HttpRequest request) {
+		FullHttpRequest view = toFullRequest(request);
+		if(!this.fileServerHandler.acceptRequest(context, view)) {
+			this.discardingBody = true;
+			return;
+		}
+		
+		final String path = NettyUtils.sanitizeUri(request.getUri());
+		if(path == null) {
+			this.rejectUpload(context, view, HttpResponseStatus.FORBIDDEN);
+			return;
+		}
+		
+		if(path.endsWith(File.separator)) {
+			this.rejectUpload(context, view, HttpResponseStatus.CONFLICT);
+			return;
+		}
+		
+		if(HttpHeaders.getContentLength(request, 0) > this.maxUploadSize) {
+			// do not read a body this large only to throw it away
+			this.closing = true;
+			this.fileServerHandler.sendError(context, null, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+			return;
+		}
+		
+		// a folder we already know of, no need to look at the disk
+		FileMetadata metadata = this.fileServerHandler.metadataIndex.getCached(path);
+		if(metadata != null && metadata.isDirectory()) {
+			this.closing = true;
+			this.fileServerHandler.sendError(context, null, HttpResponseStatus.CONFLICT);
+			return;
+		}
+		
+		// 100 Continue waits till the target is known not to be a folder
+		this.upload = new Upload(view, path, HttpHeaders.is100ContinueExpected(request));
+		this.upload.open(context);
+	}
+	
+	/**
+	 * Answer an upload we will not take, and throw its body away.
+	 * 
+	 * @param context
+	 * @param view
+	 * @param status
+	 */
+	private void rejectUpload(ChannelHandlerContext context, FullHttpRequest view, HttpResponseStatus status) {
+		this.discardingBody = true;
+		this.fileServerHandler.sendError(context, view, status);
+	}
+	
+	/**
+	 * Hold the given upload, and everything after it, till the requests
+	 * before it have been answered.
+	 * 
+	 * @param context
+	 * @param request
+	 */
+	private void waitForIdle(final ChannelHandlerContext context, HttpRequest request) {
+		this.waitingForIdle = true;
+		// it may have just been taken off the front
+		this.held.addFirst(request);
+		this.updateReading(context);
+		
+		this.fileServerHandler.runInOrder(context, new Runnable() {
+			
+			@Override
+			public void run() {
+				waitingForIdle = false;
+				updateReading(context);
+				replayHeld(context);
+			}
+			
+		});
+	}
+	
+	/**
+	 * The upload has been answered, carry on with what came after it.
+	 * 
+	 * @param context
+	 */
+	private void uploadDone(ChannelHandlerContext context) {
+		this.upload = null;
+		this.updateReading(context);
+		this.replayHeld(context);
+	}
+	
+	/**
+	 * Pass on the messages held so far, till one of them has to be held
+	 * again.
+	 * 
+	 * @param context
+	 */
+	private void replayHeld(ChannelHandlerContext context) {
+		Object message;
+		while(!this.waitingForIdle && (this.upload == null || !this.upload.lastReceived) && !this.closing && (message = this.held.poll()) != null) {
+			try {
+				this.channelRead(context, message);
+			} catch(Exception e) {
+				context.fireExceptionCaught(e);
+			}
+		}
+	}
+	
+	/**
+	 * Pause reading from the connection while the disk cannot keep up, or
+	 * while the response to an upload is pending.
+	 * 
+	 * @param context
+	 */
+	private void updateReading(ChannelHandlerContext context) {
+		ChannelConfig config = context.channel().config();
+		
+		boolean read;
+		if(this.waitingForIdle) {
+			read = false;
+		} else if(this.upload == null) {
+			read = true;
+		} else if(this.upload.lastReceived || this.upload.queuedBytes > HIGH_WATER_MARK) {
+			read = false;
+		} else if(this.upload.queuedBytes <= LOW_WATER_MARK) {
+			read = true;
+		} else {
+			return;
+		}
+		
+		if(config.isAutoRead() != read) {
+			config.setAutoRead(read);
+		}
+	}
+	
+	/**
+	 * Send an interim <code>100 Continue</code>. It is written past the
+	 * encoder, which would otherwise count it as the response to a request
+	 * and be one off in telling which later responses answer a
+	 * <code>HEAD</code>.
+	 * 
+	 * @param context
+	 */
+	private static void writeContinue(ChannelHandlerContext context) {
+		ChannelHandlerContext codec = context.pipeline().context(HttpServerCodec.class);
+		if(codec == null) {
+			context.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE, Unpooled.EMPTY_BUFFER));
+			return;
+		}
+		
+		codec.writeAndFlush(Unpooled.wrappedBuffer(CONTINUE));
+	}
+	
+	private static boolean isUpload(HttpRequest request) {
+		return request.getMethod() == HttpMethod.PUT || request.getMethod() == HttpMethod.POST;
+	}
+	
+	private static boolean hasNoBody(HttpRequest request) {
+		return !HttpHeaders.isTransferEncodingChunked(request) && HttpHeaders.getContentLength(request, 0) == 0;
+	}
+	
+	/**
+	 * A full request with no body, sharing the headers of the given one.
+	 * 
+	 * @param request
+	 * @return
+	 */
+	private static FullHttpRequest toFullRequest(HttpRequest request) {
+		DefaultFullHttpRequest full = new DefaultFullHttpRequest(request.getProtocolVersion(), request.getMethod(), request.getUri(), Unpooled.EMPTY_BUFFER,
+																 request.headers(), EmptyHttpHeaders.INSTANCE);
+		full.setDecoderResult(request.getDecoderResult());
+		return full;
+	}
+	
+	/**
+	 * Close the given file, ignoring any error.
+	 * 
+	 * @param file
+	 */
+	private static void closeQuietly(FileChannel file) {
+		if(file == null) {
+			return;
+		}
+		
+		try {
+			file.close();
+		} catch(IOException e) {
+			// nothing we can do
+		}
+	}
+	
+	/**
+	 * A single upload, from the request headers till the response. Only ever
+	 * touched on the event loop, except for the file channel which is used by
+	 * one task on the file I/O pool at a time.
+	 * 
+	 */
+	private class Upload {
+		
+		private final FullHttpRequest view;
+		
+		private final String path;
+		
+		private final Path target;
+		
+		/**
+		 * Where the body is written to, <code>null</code> till opened
+		 */
+		private FileChannel file;
+		
+		private Path temporary;
+		
+		/**
+		 * Chunks waiting to be written
+		 */
+		private final ArrayDeque<ByteBuf> queue = new ArrayDeque<ByteBuf>();
+		
+		private long queuedBytes;
+		
+		private long receivedBytes;
+		
+		/**
+		 * Whether a task on the file I/O pool is working on the file
+		 */
+		private boolean busy;
+		
+		private boolean lastReceived;
+		
+		private boolean failed;
+		
+		/**
+		 * Whether the client waits for a <code>100 Continue</code> before
+		 * sending the body
+		 */
+		private final boolean expectContinue;
+		
+		Upload(FullHttpRequest view, String path, boolean expectContinue) {
+			this.view = view;
+			this.path = path;
+			this.expectContinue = expectContinue;
+			this.target = new File(fileServerHandler.documentRoot, path).toPath();
+		}
+		
+		void open(final ChannelHandlerContext context) {
+			final Path folder = this.target.getParent();
+			final Path temporary = folder.resolve(".swift-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".upload");
+			
+			this.submit(context, new Callable<FileChannel>() {
+				
+				@Override
+				public FileChannel call() throws IOException {
+					try {
+						Files.createDirectories(folder);
+					} catch(FileAlreadyExistsException e) {
+						// a file is in the way
+						return null;
+					}
+					
+					if(Files.isDirectory(target)) {
+						return null;
+					}
+					
+					return FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				}
+			
+			}, new FutureListener<FileChannel>() {
+				
+				@Override
+				public void operationComplete(Future<FileChannel> future) {
+					busy = false;
+					if(future.isSuccess() && future.getNow() != null) {
+						file = future.getNow();
+						Upload.this.temporary = temporary;
+					}
+					
+					if(failed) {
+						cleanUp();
+						return;
+					}
+					
+					if(!future.isSuccess()) {
+						fail(context, statusOf(future.cause()));
+						return;
+					}
+					
+					if(file == null) {
+						fail(context, HttpResponseStatus.CONFLICT);
+						return;
+					}
+					
+					if(expectContinue && receivedBytes == 0 && !lastReceived) {
+						writeContinue(context);
+					}
+					
+					writeNext(context);
+				}
+			
+			});
+		}
+		
+		void received(ChannelHandlerContext context, HttpContent content) {
+			final ByteBuf buffer = content.content();
+			final int readable = buffer.readableBytes();
+			
+			this.receivedBytes += readable;
+			if(this.receivedBytes > maxUploadSize) {
+				content.release();
+				this.fail(context, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+				return;
+			}
+			
+			if(readable > 0) {
+				this.queue.add(buffer);
+				this.queuedBytes += readable;
+			} else {
+				content.release();
+			}
+			
+			this.lastReceived = content instanceof LastHttpContent;
+			updateReading(context);
+			
+			if(!this.busy && this.file != null) {
+				this.writeNext(context);
+			}
+		}
+		
+		/**
+		 * Write the chunks queued so far, or move the file into place once
+		 * the body is complete.
+		 * 
+		 * @param context
+		 */
+		private void writeNext(final ChannelHandlerContext context) {
+			if(this.queue.isEmpty()) {
+				if(this.lastReceived) {
+					this.complete(context);
+				}
+				
+				return;
+			}
+			
+			final List<ByteBuf> chunks = new ArrayList<ByteBuf>();
+			long bytes = 0;
+			while(chunks.size() < MAX_CHUNKS_PER_WRITE && !this.queue.isEmpty()) {
+				ByteBuf chunk = this.queue.poll();
+				bytes += chunk.readableBytes();
+				chunks.add(chunk);
+			}
+			
+			final long written = bytes;
+			final FileChannel file = this.file;
+			this.submit(context, new Callable<Void>() {
+				
+				@Override
+				public Void call() throws IOException {
+					for(ByteBuf chunk : chunks) {
+						for(ByteBuffer buffer : chunk.nioBuffers()) {
+							while(buffer.hasRemaining()) {
+								file.write(buffer);
+							}
+						}
+					}
+					
+					return null;
+				}
+			
+			}, new FutureListener<Void>() {
+				
+				@Override
+				public void operationComplete(Future<Void> future) {
+					busy = false;
+					for(ByteBuf chunk : chunks) {
+						chunk.release();
+					}
+					
+					queuedBytes -= written;
+					if(failed) {
+						cleanUp();
+						return;
+					}
+					
+					if(!future.isSuccess()) {
+						fail(context, statusOf(future.cause()));
+						return;
+					}
+					
+					updateReading(context);
+					writeNext(context);
+				}
+			
+			});
+		}
+		
+		private void complete(final ChannelHandlerContext context) {
+			final FileChannel file = this.file;
+			final Path temporary = this.temporary;
+			
+			this.submit(context, new Callable<Boolean>() {
+				
+				@Override
+				public Boolean call() throws IOException {
+					file.force(false);
+					file.close();
+					
+					boolean existed = Files.exists(target);
+					Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					return existed;
+				}
+			
+			}, new FutureListener<Boolean>() {
+				
+				@Override
+				public void operationComplete(Future<Boolean> future) {
+					busy = false;
+					if(failed) {
+						cleanUp();
+						return;
+					}
+					
+					if(!future.isSuccess()) {
+						fail(context, statusOf(future.cause()));
+						return;
+					}
+					
+					fileServerHandler.fileWritten(path);
+					
+					FullHttpResponse response;
+					if(future.getNow()) {
+						response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.EMPTY_BUFFER);
+					} else {
+						response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CREATED, Unpooled.EMPTY_BUFFER);
+						response.headers().set(HttpHeaders.Names.LOCATION, HttpStaticFileServerHandler.getPath(view.getUri()));
+					}
+					
+					fileServerHandler.prepareResponse(view, response);
+					NettyUtils.writeResponse(context, view, response);
+					uploadDone(context);
+				}
+			
+			});
+		}
+		
+		/**
+		 * Give up on the upload and close the connection, as the rest of the
+		 * body may still be on its way.
+		 * 
+		 * @param context
+		 * @param status
+		 */
+		void fail(ChannelHandlerContext context, HttpResponseStatus status) {
+			this.abort();
+			
+			upload = null;
+			closing = true;
+			fileServerHandler.sendError(context, null, status);
+		}
+		
+		/**
+		 * Give up on the upload without answering it.
+		 * 
+		 */
+		void abort() {
+			if(this.failed) {
+				return;
+			}
+			
+			this.failed = true;
+			
+			ByteBuf chunk;
+			while((chunk = this.queue.poll()) != null) {
+				chunk.release();
+			}
+			
+			this.queuedBytes = 0;
+			if(!this.busy) {
+				this.cleanUp();
+			}
+		}
+		
+		/**
+		 * Close and delete the temporary file, once no task is using it.
+		 * 
+		 */
+		private void cleanUp() {
+			final FileChannel file = this.file;
+			final Path temporary = this.temporary;
+			this.file = null;
+			this.temporary = null;
+			if(temporary == null) {
+				return;
+			}
+			
+			Runnable delete = new Runnable() {
+				
+				@Override
+				public void run() {
+					closeQuietly(file);
+					try {
+						Files.deleteIfExists(temporary);
+					} catch(IOException e) {
+						System.out.println("Unable to delete incomplete upload: " + temporary);
+					}
+				}
+			
+			};
+			
+			Future<Object> future = fileServerHandler.ioExecutor.submit(Executors.callable(delete), ImmediateEventExecutor.INSTANCE);
+			if(future.cause() instanceof RejectedExecutionException) {
+				// the pool is full or shutting down, do it here rather than leave it behind
+				delete.run();
+			}
+		}
+		
+		private <T> void submit(ChannelHandlerContext context, Callable<T> task, FutureListener<T> listener) {
+			this.busy = true;
+			fileServerHandler.ioExecutor.submit(task, context.executor()).addListener(listener);
+		}
+		
+		private HttpResponseStatus statusOf(Throwable cause) {
+			if(cause instanceof RejectedExecutionException) {
+				return HttpResponseStatus.SERVICE_UNAVAILABLE;
+			}
+			
+			System.out.println("Unable to store upload " + this.path + ": " + cause);
+			return HttpResponseStatus.INTERNAL_SERVER_ERROR;
+		}
+	
+	}
+
+}
@@ -22,8 +22,14 @@
 package com.sangupta.swift.netty.http;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import java.security.cert.CertificateException;
+
+import javax.net.ssl.SSLException;
 
 import com.sangupta.swift.SwiftServer;
 import com.sangupta.swift.netty.NettyServer;
@@ -36,35 +42,70 @@ import com.sangupta.swift.netty.NettyServer;
  */
 public class HttpStaticFileServer extends NettyServer {
 	
+	private final HttpStaticFileServerHandler fileServerHandler;
+	
+	/**
+	 * Create a server on event loops of its own. Call {@link #start()} to
+	 * start serving.
+	 * 
+	 * @param server
+	 */
 	public HttpStaticFileServer(SwiftServer server) {
+		this(server, null, null);
+	}
+	
+	/**
+	 * Create a server on the given event loops, which are shared with other
+	 * servers and left running when this one is shut down. Call
+	 * {@link #start()} to start serving.
+	 * 
+	 * @param server
+	 * @param bossGroup
+	 *            the group accepting connections, <code>null</code> to create
+	 *            one of its own
+	 * @param workerGroup
+	 *            the group serving connections, <code>null</code> to create
+	 *            one of its own
+	 */
+	public HttpStaticFileServer(SwiftServer server, EventLoopGroup bossGroup, EventLoopGroup workerGroup) {
+		super(server);
+		
 		if(server.isSslEnabled()) {
-			// TODO: fix this
+			// only self signed certificates can be configured for now
+			try {
+				SelfSignedCertificate ssc = new SelfSignedCertificate();
+				this.sslContext = SslContext.newServerContext(SslProvider.JDK, ssc.certificate(), ssc.privateKey());
+			} catch(CertificateException e) {
+				throw new RuntimeException("Unable to initialize self-signed SSL certificate", e);
+			} catch(SSLException e) {
+				throw new RuntimeException("Unable to initialize self-signed SSL certificate", e);
+			}
 		} else {
 			this.sslContext = null;
 		}
 		
-		this.bossGroup = new NioEventLoopGroup(1);
-		this.workerGroup = new NioEventLoopGroup();
+		this.fileServerHandler = new HttpStaticFileServerHandler(server);
+		this.useEventLoops(server, bossGroup, workerGroup);
+		this.fileServerHandler.startUpkeep(this.workerGroup);
 		
-		try {
-			this.serverBootstrap = new ServerBootstrap();
-			
-			HttpStaticFileServerHandler fileServerHandler = new HttpStaticFileServerHandler(server.getDocumentRoot());
-			
-			this.serverBootstrap.group(this.bossGroup, this.workerGroup)
-						  .channel(NioServerSocketChannel.class)
-						  .childHandler(new HttpStaticFileServerInitializer(this.sslContext, fileServerHandler));
-						  
-			this.channel = this.serverBootstrap.bind(server.getListenPort()).sync().channel();
-			
-			System.out.println("Listening on port " + server.getListenPort());
-			
-			this.channel.closeFuture().awaitUninterruptibly();
-		} catch(InterruptedException e) {
-			// TODO: think what we can do with this
-		} finally {
-			this.shutdownGracefully();
+		this.serverBootstrap = new ServerBootstrap();
+		this.serverBootstrap.group(this.bossGroup, this.workerGroup)
+					  .channel(this.transport.getServerChannelClass())
+					  .childHandler(new HttpStaticFileServerInitializer(this.sslContext, this.connections, this.fileServerHandler));
+		
+		this.transport.configure(this.serverBootstrap, true);
+	}
+	
+	@Override
+	protected void warmUp() {
+		if(this.server.isWarmUpEnabled()) {
+			this.fileServerHandler.warmUp();
 		}
 	}
+	
+	@Override
+	protected void releaseResources() {
+		this.fileServerHandler.shutdown();
+	}
 
 }
@@ -21,14 +21,19 @@
 
 package com.sangupta.swift.netty.http;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
@@ -37,131 +42,748 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.ssl.SslHandler;
-import io.netty.handler.stream.ChunkedFile;
+import io.netty.util.AsciiString;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.RandomAccessFile;
-import java.util.Date;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
+import com.sangupta.swift.SwiftServer;
+import com.sangupta.swift.cache.CachedFile;
+import com.sangupta.swift.cache.DirectorySnapshot;
+import com.sangupta.swift.cache.DirectorySnapshotCache;
+import com.sangupta.swift.cache.ExistenceFilter;
+import com.sangupta.swift.cache.FileContentCache;
+import com.sangupta.swift.cache.FileMetadata;
+import com.sangupta.swift.cache.FileMetadataIndex;
+import com.sangupta.swift.cache.OpenFile;
+import com.sangupta.swift.cache.OpenFileCache;
+import com.sangupta.swift.cache.ZipArchive;
+import com.sangupta.swift.netty.CompressionService;
+import com.sangupta.swift.netty.DirectoryListing;
+import com.sangupta.swift.netty.FileIoExecutor;
+import com.sangupta.swift.netty.HttpDateClock;
+import com.sangupta.swift.netty.InflatingChunkedInput;
+import com.sangupta.swift.netty.MimeTypeRegistry;
 import com.sangupta.swift.netty.NettyUtils;
+import com.sangupta.swift.netty.ResponseTemplates;
+import com.sangupta.swift.netty.SharedChunkedFile;
+import com.sangupta.swift.netty.SharedFileRegion;
 
+/**
+ * Serves static files from the document root of a {@link SwiftServer}.
+ * 
+ * @author sangupta
+ *
+ */
 @Sharable
 public class HttpStaticFileServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 	
-	private final File documentRoot;
+	/**
+	 * Boundary used to separate parts of multi-range responses
+	 */
+	private static final String MULTIPART_BOUNDARY = "swift_" + Long.toHexString(new SecureRandom().nextLong());
+	
+	private static final String MULTIPART_CONTENT_TYPE = "multipart/byteranges; boundary=" + MULTIPART_BOUNDARY;
+	
+	private static final String MULTIPART_END = "\r\n--" + MULTIPART_BOUNDARY + "--\r\n";
+	
+	private static final String ALLOWED_METHODS = "GET, HEAD, OPTIONS";
+	
+	private static final String ALLOWED_METHODS_WITH_UPLOADS = "GET, HEAD, OPTIONS, PUT, POST";
+	
+	/**
+	 * Member header put in front of deflated archive entries to send them as
+	 * gzip: no name, no modification time, unknown OS
+	 */
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+	
+	private static final int GZIP_TRAILER_LENGTH = 8;
+	
+	/**
+	 * Listings with more entries than this are streamed rather than sent,
+	 * and compressed, in one piece
+	 */
+	private static final int STREAMED_LISTING_ENTRIES = 4 * DirectoryListing.ENTRIES_PER_CHUNK;
+	
+	/**
+	 * Requests of a connection waiting for an earlier one to be answered
+	 */
+	private static final AttributeKey<RequestQueue> REQUEST_QUEUE = AttributeKey.valueOf("swift.requestQueue");
+	
+	protected final SwiftServer swiftServer;
+	
+	protected final File documentRoot;
+	
+	/**
+	 * The in-memory cache for small files, <code>null</code> if disabled
+	 */
+	protected final FileContentCache fileCache;
+	
+	/**
+	 * Metadata of all files under the document root, <code>null</code> if
+	 * files are only served from an archive
+	 */
+	protected final FileMetadataIndex metadataIndex;
+	
+	/**
+	 * The archive files are looked up in before the document root,
+	 * <code>null</code> if none
+	 */
+	protected final ZipArchive archive;
+	
+	/**
+	 * Files kept open between responses
+	 */
+	protected final OpenFileCache openFiles;
+	
+	/**
+	 * Entries of recently listed folders
+	 */
+	protected final DirectorySnapshotCache listingCache;
+	
+	/**
+	 * On the fly compression of responses, <code>null</code> if disabled
+	 */
+	protected final CompressionService compression;
+	
+	/**
+	 * Pre-encoded error and redirect responses
+	 */
+	protected final ResponseTemplates responseTemplates;
+	
+	/**
+	 * Runs the file system calls that may block
+	 */
+	protected final FileIoExecutor ioExecutor;
+	
+	/**
+	 * Whether <code>PUT</code> and <code>POST</code> bodies are stored, see
+	 * {@link HttpBodyHandler}
+	 */
+	protected final boolean uploadsEnabled;
 
-	public HttpStaticFileServerHandler(File documentRoot) {
-		this.documentRoot = documentRoot;
+	public HttpStaticFileServerHandler(SwiftServer swiftServer) {
+		this.swiftServer = swiftServer;
+		this.documentRoot = swiftServer.getDocumentRoot();
+		
+		MimeTypeRegistry mimeTypes = MimeTypeRegistry.DEFAULT.extend(swiftServer.getMimeTypes());
+		this.responseTemplates = new ResponseTemplates(swiftServer.getErrorPages(), mimeTypes);
+		if(swiftServer.isDocumentRootExists()) {
+			this.metadataIndex = new FileMetadataIndex(this.documentRoot, mimeTypes, swiftServer.isPrecompressedFilesEnabled(), swiftServer.isContentHashETagsEnabled(), 
+													   swiftServer.isFileWatcherEnabled(), swiftServer.getMetadataPollMillis(), swiftServer.isNotFoundFilterEnabled(), 
+													   swiftServer.getMetadataIndexMaxEntries());
+		} else {
+			this.metadataIndex = null;
+		}
+		
+		if(swiftServer.isArchiveRootExists()) {
+			try {
+				this.archive = ZipArchive.open(swiftServer.getArchiveRoot(), mimeTypes);
+			} catch(IOException e) {
+				throw new IllegalStateException("Unable to open archive: " + swiftServer.getArchiveRoot(), e);
+			}
+			
+			System.out.println("Serving " + this.archive.size() + " files from archive " + swiftServer.getArchiveRoot());
+		} else {
+			this.archive = null;
+		}
+		
+		this.openFiles = new OpenFileCache(swiftServer.getOpenFileCacheMax(), swiftServer.getOpenFileCacheIdleMillis());
+		if(this.metadataIndex != null) {
+			// close files as soon as they change, not when next asked for
+			this.metadataIndex.setChangeListener(new FileMetadataIndex.ChangeListener() {
+				
+				@Override
+				public void changed(String path, boolean tree) {
+					if(tree) {
+						openFiles.invalidateTree(path);
+					} else {
+						openFiles.invalidate(path);
+					}
+				}
+				
+			});
+		}
+		
+		this.listingCache = new DirectorySnapshotCache(swiftServer.getListingCacheMaxEntries());
+		
+		if(swiftServer.isFileCacheEnabled()) {
+			this.fileCache = new FileContentCache(swiftServer.getFileCacheMaxBytes(), swiftServer.getFileCacheMaxFileSize());
+		} else {
+			this.fileCache = null;
+		}
+		
+		if(swiftServer.isCompressionEnabled()) {
+			this.compression = new CompressionService(swiftServer);
+		} else {
+			this.compression = null;
+		}
+		
+		this.ioExecutor = new FileIoExecutor(String.valueOf(swiftServer.getListenPort()), swiftServer.getFileIoThreads(), swiftServer.getFileIoQueueSize());
+		swiftServer.setFileIoExecutor(this.ioExecutor);
+		if(this.metadataIndex != null) {
+			swiftServer.setExistenceFilter(this.metadataIndex.getExistenceFilter());
+		}
+		
+		// uploads go to the document root, never into an archive
+		this.uploadsEnabled = swiftServer.isUploadsEnabled() && this.metadataIndex != null;
 	}
 
 	@Override
 	protected void channelRead0(ChannelHandlerContext context, FullHttpRequest request) throws Exception {
+		RequestQueue queue = getRequestQueue(context);
+		if(queue.isBusy()) {
+			// an earlier request is waiting on the disk, answer this one after it
+			queue.add(request.retain());
+			return;
+		}
+		
+		this.processRequest(context, request);
+	}
+	
+	@Override
+	public void channelInactive(ChannelHandlerContext context) throws Exception {
+		getRequestQueue(context).clear();
+		super.channelInactive(context);
+	}
+	
+	/**
+	 * Check if every request that came in on the connection so far has been
+	 * answered, at least as far as writing its response goes.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	protected boolean isIdle(ChannelHandlerContext context) {
+		return !getRequestQueue(context).isBusy();
+	}
+	
+	/**
+	 * Run the given task on the event loop once every request that came in
+	 * on the connection before it has been answered. This is how a response
+	 * written by another handler, such as the one to an upload, keeps its
+	 * place among pipelined responses.
+	 * 
+	 * @param context
+	 * @param task
+	 */
+	protected void runInOrder(ChannelHandlerContext context, Runnable task) {
+		RequestQueue queue = getRequestQueue(context);
+		if(queue.isBusy()) {
+			queue.add(task);
+			return;
+		}
+		
+		task.run();
+	}
+	
+	/**
+	 * Serve a single request. Whatever is already known about the file system
+	 * is used right away on the event loop, anything else is looked up on the
+	 * file I/O pool.
+	 * 
+	 * @param context
+	 * @param request
+	 * @throws Exception
+	 */
+	protected void processRequest(final ChannelHandlerContext context, final FullHttpRequest request) throws Exception {
 		if(!request.getDecoderResult().isSuccess()) {
-			NettyUtils.sendError(context, HttpResponseStatus.BAD_REQUEST);
+			// we cannot trust the framing of anything that follows
+			this.sendError(context, null, HttpResponseStatus.BAD_REQUEST);
+			return;
+		}
+		
+		if(!this.acceptRequest(context, request)) {
+			return;
+		}
+		
+		final HttpMethod method = request.getMethod();
+		if(method == HttpMethod.OPTIONS) {
+			this.sendOptions(context, request);
 			return;
 		}
 		
-		if(request.getMethod() != HttpMethod.GET) {
-			NettyUtils.sendError(context, HttpResponseStatus.METHOD_NOT_ALLOWED);
+		if(method != HttpMethod.GET && method != HttpMethod.HEAD) {
+			this.sendMethodNotAllowed(context, request);
 			return;
 		}
 		
-		final String uri = request.getUri();
-		final String path = NettyUtils.sanitizeUri(uri);
+		final String uri = getPath(request.getUri());
+		final String path = NettyUtils.sanitizeUri(request.getUri());
 		if (path == null) {
-			NettyUtils.sendError(context, HttpResponseStatus.FORBIDDEN);
+			this.sendError(context, request, HttpResponseStatus.FORBIDDEN);
+			return;
+		}
+		
+		if(this.archive != null && this.serveFromArchive(context, request, uri, path)) {
+			return;
+		}
+		
+		if(this.metadataIndex == null) {
+			this.sendError(context, request, HttpResponseStatus.NOT_FOUND);
+			return;
+		}
+		
+		if(!this.metadataIndex.mightExist(path)) {
+			// certainly not there, answer without going near the disk
+			this.sendError(context, request, HttpResponseStatus.NOT_FOUND);
+			return;
+		}
+		
+		FileMetadata metadata = this.metadataIndex.getCached(path);
+		if(metadata != null) {
+			this.serve(context, request, uri, metadata);
+			return;
+		}
+		
+		this.offload(context, request, new Callable<FileMetadata>() {
+			
+			@Override
+			public FileMetadata call() {
+				return metadataIndex.get(path);
+			}
+			
+		}, new IoContinuation<FileMetadata>() {
+			
+			@Override
+			public void resume(FileMetadata metadata) throws Exception {
+				serve(context, request, uri, metadata);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Serve the request for the given path.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param uri
+	 * @param metadata
+	 * @throws Exception
+	 */
+	protected void serve(final ChannelHandlerContext context, final FullHttpRequest request, final String uri, final FileMetadata metadata) throws Exception {
+		if (metadata.isHidden() || !metadata.isExists()) {
+			ExistenceFilter filter = this.metadataIndex.getExistenceFilter();
+			if(filter != null && !metadata.isExists()) {
+				filter.recordFalsePositive();
+			}
+			
+			this.sendError(context, request, HttpResponseStatus.NOT_FOUND);
+			return;
+		}
+		
+		if (!metadata.isDirectory()) {
+			this.serveFile(context, request, metadata);
+			return;
+		}
+		
+		if (!uri.endsWith("/")) {
+			this.sendRedirect(context, request, uri + '/' + request.getUri().substring(uri.length()));
+			return;
+		}
+		
+		final String indexPath = metadata.getIndexPath();
+		if(indexPath == null) {
+			this.sendListing(context, request, uri, metadata);
 			return;
 		}
 		
-		File file = new File(documentRoot, path);
-		if (file.isHidden() || !file.exists()) {
-			NettyUtils.sendError(context, HttpResponseStatus.NOT_FOUND);
+		FileMetadata index = this.metadataIndex.getCached(indexPath);
+		if(index != null) {
+			this.serveDirectory(context, request, uri, metadata, index);
 			return;
 		}
 		
-		if (file.isDirectory()) {
-			if (uri.endsWith("/")) {
-				NettyUtils.sendListing(context, file);
-			} else {
-				NettyUtils.sendRedirect(context, uri + '/');
+		this.offload(context, request, new Callable<FileMetadata>() {
+			
+			@Override
+			public FileMetadata call() {
+				return metadataIndex.get(indexPath);
+			}
+			
+		}, new IoContinuation<FileMetadata>() {
+			
+			@Override
+			public void resume(FileMetadata index) throws Exception {
+				serveDirectory(context, request, uri, metadata, index);
 			}
 			
+		});
+	}
+	
+	/**
+	 * Serve the index file of a folder, or its listing if there is none.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param uri
+	 * @param metadata
+	 * @param index
+	 * @throws Exception
+	 */
+	protected void serveDirectory(ChannelHandlerContext context, FullHttpRequest request, String uri, FileMetadata metadata, FileMetadata index) throws Exception {
+		if(!index.isRegularFile()) {
+			this.sendListing(context, request, uri, metadata);
 			return;
 		}
 		
-		if (!file.isFile()) {
-			NettyUtils.sendError(context, HttpResponseStatus.FORBIDDEN);
+		this.serveFile(context, request, index);
+	}
+	
+	/**
+	 * Serve the given file, from memory if possible.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param metadata
+	 * @throws Exception
+	 */
+	protected void serveFile(final ChannelHandlerContext context, final FullHttpRequest request, FileMetadata metadata) throws Exception {
+		if (!metadata.isRegularFile()) {
+			this.sendError(context, request, HttpResponseStatus.FORBIDDEN);
 			return;
 		}
 		
+		final boolean head = isHead(request);
+		if(!head) {
+			// health checks and probes say nothing about how hot a file is
+			metadata.recordHit();
+		}
+		
+		// pick a precompressed representation if the client can take one
+		metadata = selectVariant(request, metadata);
+		
+		// the encoding we would compress the file with on the fly
+		AsciiString encoding = null;
+		if(this.compression != null && this.compression.isCompressible(metadata)) {
+			encoding = this.compression.selectEncoding(request.headers().get(HttpHeaders.Names.ACCEPT_ENCODING));
+		}
+		
 		// Cache Validation
-		String ifModifiedSince = request.headers().get(HttpHeaders.Names.IF_MODIFIED_SINCE);
-		if (ifModifiedSince != null && !ifModifiedSince.isEmpty()) {
-			Date ifModifiedSinceDate = NettyUtils.parseDateHeader(ifModifiedSince);
-			
-			if(ifModifiedSinceDate != null) {
-				// Only compare up to the second because the datetime format we send to the client
-				// does not have milliseconds
-				long ifModifiedSinceDateSeconds = ifModifiedSinceDate.getTime() / 1000;
-				long fileLastModifiedSeconds = file.lastModified() / 1000;
+		if(this.checkPreconditions(context, request, metadata, encoding)) {
+			return;
+		}
+		
+		// everything a HEAD needs is in the metadata, ranges are for GET only
+		if(head) {
+			this.sendHead(context, request, metadata, encoding);
+			return;
+		}
+		
+		// check for partial content
+		final List<ByteRange> ranges = this.getRanges(request, metadata);
+		if(ranges != null && ranges.isEmpty()) {
+			this.sendRangeNotSatisfiable(context, request, metadata);
+			return;
+		}
+		
+		// compress text files on the fly
+		if(ranges == null && encoding != null) {
+			CachedFile compressedFile = this.compression.getCompressedFile(metadata, encoding);
+			if(compressedFile != null) {
+				this.sendCachedFile(context, request, compressedFile, null, encoding);
+				return;
+			}
+		}
+		
+		// small files are served from memory
+		if(this.fileCache != null && this.fileCache.isCacheable(metadata.getLength())) {
+			CachedFile cachedFile = this.fileCache.get(metadata);
+			if(cachedFile != null) {
+				this.sendCachedFile(context, request, cachedFile, ranges, null);
+				return;
+			}
+			
+			final FileMetadata toLoad = metadata;
+			this.offload(context, request, new Callable<CachedFile>() {
 				
-				if (ifModifiedSinceDateSeconds == fileLastModifiedSeconds) {
-					NettyUtils.sendNotModified(context);
-					return;
+				@Override
+				public CachedFile call() throws IOException {
+					return fileCache.load(toLoad);
+				}
+				
+			}, new IoContinuation<CachedFile>() {
+				
+				@Override
+				public void resume(CachedFile cachedFile) {
+					if(cachedFile != null) {
+						sendCachedFile(context, request, cachedFile, ranges, null);
+						return;
+					}
+					
+					sendFile(context, request, toLoad, ranges);
+				}
+				
+			});
+			return;
+		}
+		
+		this.sendFile(context, request, metadata, ranges);
+	}
+	
+	/**
+	 * Evaluate the conditional request headers in the order laid down by RFC
+	 * 7232, and send a <code>412</code> or <code>304</code> response if one of
+	 * them says so. All of this happens on the cached metadata, the file
+	 * itself is never opened.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param metadata
+	 * @param encoding
+	 *            the encoding the file may be compressed with on the fly, if
+	 *            any
+	 * @return <code>true</code> if a response has been sent
+	 */
+	protected boolean checkPreconditions(ChannelHandlerContext context, FullHttpRequest request, FileMetadata metadata, AsciiString encoding) {
+		HttpHeaders headers = request.headers();
+		
+		String ifMatch = headers.get(HttpHeaders.Names.IF_MATCH);
+		if(ifMatch != null) {
+			if(!matchesETag(ifMatch, metadata, encoding, false)) {
+				this.sendError(context, request, HttpResponseStatus.PRECONDITION_FAILED);
+				return true;
+			}
+		} else {
+			String ifUnmodifiedSince = headers.get(HttpHeaders.Names.IF_UNMODIFIED_SINCE);
+			if(ifUnmodifiedSince != null) {
+				long date = HttpDateClock.parse(ifUnmodifiedSince);
+				if(date >= 0 && metadata.getLastModified() / 1000 > date / 1000) {
+					this.sendError(context, request, HttpResponseStatus.PRECONDITION_FAILED);
+					return true;
 				}
 			}
 		}
 		
-		RandomAccessFile raf;
-		try {
-			raf = new RandomAccessFile(file, "r");
-		} catch(FileNotFoundException ignore) {
-			NettyUtils.sendError(context, HttpResponseStatus.NOT_FOUND);
-			return;
+		String ifNoneMatch = headers.get(HttpHeaders.Names.IF_NONE_MATCH);
+		if(ifNoneMatch != null) {
+			if(matchesETag(ifNoneMatch, metadata, encoding, true)) {
+				this.sendNotModified(context, request, metadata, encoding);
+				return true;
+			}
+			
+			// If-Modified-Since must be ignored when If-None-Match is present
+			return false;
+		}
+		
+		if(isNotModified(request, metadata.getLastModified())) {
+			this.sendNotModified(context, request, metadata, encoding);
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Tell the client that its cached copy of the file is still good. The
+	 * validators and caching headers are repeated as a 200 would carry them.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param metadata
+	 * @param encoding
+	 *            the encoding the file may be compressed with on the fly, if
+	 *            any
+	 */
+	protected void sendNotModified(ChannelHandlerContext context, FullHttpRequest request, FileMetadata metadata, AsciiString encoding) {
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+		HttpHeaders headers = response.headers();
+		
+		// only promise the compressed representation if we actually have it ready
+		AsciiString etag = metadata.getETag();
+		if(encoding != null && this.compression.hasCompressedFile(metadata, encoding)) {
+			etag = EntityTag.forEncoding(etag, encoding);
+		}
+		
+		headers.set(HttpHeaders.Names.ETAG, etag);
+		if(metadata.hasVariants() || encoding != null) {
+			headers.set(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
 		}
 		
-		final long fileLength = file.length();
+		NettyUtils.setDateAndCacheHeaders(response, metadata.getLastModifiedHeader(), 3600);
+		this.prepareResponse(request, response);
 		
+		NettyUtils.writeResponse(context, request, response);
+	}
+	
+	/**
+	 * Answer a <code>HEAD</code> for the given file with the headers a
+	 * <code>GET</code> would get, without opening the file.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param metadata
+	 * @param encoding
+	 *            the encoding the file may be compressed with on the fly, if
+	 *            any
+	 */
+	protected void sendHead(ChannelHandlerContext context, FullHttpRequest request, FileMetadata metadata, AsciiString encoding) {
 		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-		HttpHeaders.setContentLength(response, fileLength);
-		NettyUtils.setContentTypeHeader(response, file);
-		NettyUtils.setDateAndCacheHeaders(response, file, 3600); // cache for an hour
+		this.setFileHeaders(request, response, metadata);
+		HttpHeaders.setContentLength(response, metadata.getLength());
 		
-		// check for keep alive
-		if (HttpHeaders.isKeepAlive(request)) {
-			response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+		// a GET only gets the compressed copy once it is ready
+		if(encoding != null) {
+			CachedFile compressedFile = this.compression.getCompressedFile(metadata, encoding);
+			if(compressedFile != null) {
+				HttpHeaders.setContentLength(response, compressedFile.getContent().readableBytes());
+				compressedFile.getContent().release();
+				
+				response.headers().set(HttpHeaders.Names.CONTENT_ENCODING, encoding);
+				response.headers().set(HttpHeaders.Names.ETAG, EntityTag.forEncoding(metadata.getETag(), encoding));
+			}
 		}
 		
-		// Write the initial line and the header.
+		this.writeHead(context, request, response);
+	}
+	
+	/**
+	 * Write the headers of a response to a <code>HEAD</code>, with the end
+	 * marker right after them.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param response
+	 */
+	protected void writeHead(ChannelHandlerContext context, FullHttpRequest request, HttpResponse response) {
+		final boolean keepAlive = HttpHeaders.isKeepAlive(request);
+		response.headers().set(HttpHeaders.Names.CONNECTION, keepAlive ? HttpHeaders.Values.KEEP_ALIVE : HttpHeaders.Values.CLOSE);
+		
 		context.write(response);
+		ChannelFuture lastContentFuture = context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+		if (!keepAlive) {
+			lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+		}
+	}
+	
+	/**
+	 * Stream the given file from disk, either completely or the requested
+	 * ranges of it. Files already open are sent right away, others are opened
+	 * on the file I/O pool.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param metadata
+	 * @param ranges
+	 *            the ranges to send, or <code>null</code> for the whole file
+	 */
+	protected void sendFile(final ChannelHandlerContext context, final FullHttpRequest request, final FileMetadata metadata, final List<ByteRange> ranges) {
+		OpenFile file = this.openFiles.getIfOpen(metadata);
+		if(file != null) {
+			this.writeFile(context, request, metadata, ranges, file);
+			return;
+		}
 		
-		// Write the content.
-		ChannelFuture sendFileFuture;
-		if (context.pipeline().get(SslHandler.class) == null) {
-			sendFileFuture = context.write(new DefaultFileRegion(raf.getChannel(), 0, fileLength), context.newProgressivePromise());
+		this.offload(context, request, new Callable<OpenFile>() {
+			
+			@Override
+			public OpenFile call() throws IOException {
+				try {
+					return openFiles.open(metadata);
+				} catch(FileNotFoundException e) {
+					return null;
+				}
+			}
+			
+		}, new IoContinuation<OpenFile>() {
+			
+			@Override
+			public void resume(OpenFile file) {
+				if(file == null) {
+					metadataIndex.invalidate(metadata.getPath());
+					openFiles.invalidate(metadata.getPath());
+					sendError(context, request, HttpResponseStatus.NOT_FOUND);
+					return;
+				}
+				
+				writeFile(context, request, metadata, ranges, file);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Write the given file out. Plain connections use zero-copy file regions
+	 * while SSL connections read the file in chunks.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param metadata
+	 * @param ranges
+	 *            the ranges to send, or <code>null</code> for the whole file
+	 * @param file
+	 *            the open file, the reference of the caller is taken over
+	 */
+	protected void writeFile(ChannelHandlerContext context, FullHttpRequest request, FileMetadata metadata, List<ByteRange> ranges, OpenFile file) {
+		final long fileLength = metadata.getLength();
+		final boolean ssl = context.pipeline().get(SslHandler.class) != null;
+		
+		HttpResponse response;
+		if(ranges == null) {
+			response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+			HttpHeaders.setContentLength(response, fileLength);
 		} else {
-			sendFileFuture = context.write(new HttpChunkedInput(new ChunkedFile(raf, 0, fileLength, 8192)), context.newProgressivePromise());
-		}
-		
-//		sendFileFuture.addListener(new ChannelProgressiveFutureListener() {
-//
-//			@Override
-//			public void operationProgressed(ChannelProgressiveFuture future, long progress, long total) {
-//				if (total < 0) { // total unknown
-//					System.err.println(future.channel() + " Transfer progress: " + progress);
-//				} else {
-//					System.err.println(future.channel() + " Transfer progress: " + progress + " / " + total);
-//				}
-//			}
-//
-//			@Override
-//			public void operationComplete(ChannelProgressiveFuture future) {
-//				System.err.println(future.channel() + " Transfer complete.");
-//			}
-//			
-//		});
-
+			response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT);
+		}
+		
+		this.setFileHeaders(request, response, metadata);
+		
+		if(ranges == null || ranges.size() == 1) {
+			long start = 0;
+			long length = fileLength;
+			if(ranges != null) {
+				ByteRange range = ranges.get(0);
+				start = range.getStart();
+				length = range.length();
+				
+				HttpHeaders.setContentLength(response, length);
+				response.headers().set(HttpHeaders.Names.CONTENT_RANGE, range.toContentRange(fileLength));
+			}
+			
+			// Write the initial line and the header.
+			context.write(response);
+			
+			// Write the content.
+			writeFileRegion(context, file, start, length, ssl);
+		} else {
+			List<String> partHeaders = new ArrayList<String>(ranges.size());
+			long contentLength = MULTIPART_END.length();
+			for(ByteRange range : ranges) {
+				String partHeader = getPartHeader(metadata.getContentType(), range, fileLength);
+				partHeaders.add(partHeader);
+				contentLength += partHeader.length() + range.length();
+			}
+			
+			HttpHeaders.setContentLength(response, contentLength);
+			response.headers().set(HttpHeaders.Names.CONTENT_TYPE, MULTIPART_CONTENT_TYPE);
+			context.write(response);
+			
+			for(int index = 0; index < ranges.size(); index++) {
+				ByteRange range = ranges.get(index);
+				context.write(Unpooled.copiedBuffer(partHeaders.get(index), CharsetUtil.US_ASCII));
+				writeFileRegion(context, file.retain(), range.getStart(), range.length(), ssl);
+			}
+			
+			// every part holds its own reference
+			file.release();
+			
+			context.write(Unpooled.copiedBuffer(MULTIPART_END, CharsetUtil.US_ASCII));
+		}
+		
 		// Write the end marker
 		ChannelFuture lastContentFuture = context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
 
@@ -171,6 +793,1023 @@ public class HttpStaticFileServerHandler extends SimpleChannelInboundHandler<Ful
 			lastContentFuture.addListener(ChannelFutureListener.CLOSE);
 		}
 	}
+	
+	/**
+	 * Serve the request from the archive, if the path is in it. Folders are
+	 * served their index file; they are never listed.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param uri
+	 * @param path
+	 * @return <code>true</code> if a response has been sent, or
+	 *         <code>false</code> if the path should be looked up in the
+	 *         document root
+	 */
+	protected boolean serveFromArchive(ChannelHandlerContext context, FullHttpRequest request, String uri, String path) {
+		ZipArchive.Entry entry = this.archive.get(path);
+		if(entry == null && this.archive.isFolder(path)) {
+			if(!uri.endsWith("/")) {
+				this.sendRedirect(context, request, uri + '/' + request.getUri().substring(uri.length()));
+				return true;
+			}
+			
+			for(String indexFile : FileMetadata.INDEX_FILES) {
+				entry = this.archive.get(path + indexFile);
+				if(entry != null) {
+					break;
+				}
+			}
+		}
+		
+		if(entry == null) {
+			return false;
+		}
+		
+		this.sendArchiveEntry(context, request, entry);
+		return true;
+	}
+	
+	/**
+	 * Send an entry of the archive. Stored entries are sent like any file,
+	 * ranges included. Deflated entries are sent as they are with a gzip
+	 * header and trailer around them if the client accepts gzip, which is as
+	 * good as free, and inflated chunk by chunk otherwise.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param entry
+	 */
+	protected void sendArchiveEntry(ChannelHandlerContext context, FullHttpRequest request, ZipArchive.Entry entry) {
+		AsciiString encoding = null;
+		if(entry.isDeflated() && AcceptEncoding.accepts(request.headers().get(HttpHeaders.Names.ACCEPT_ENCODING), "gzip")) {
+			encoding = FileMetadata.ENCODING_GZIP;
+		}
+		
+		final AsciiString etag = encoding == null ? entry.getETag() : EntityTag.forEncoding(entry.getETag(), encoding);
+		if(this.checkArchivePreconditions(context, request, entry, etag)) {
+			return;
+		}
+		
+		// ranges of deflated entries would mean inflating up to them
+		final boolean head = isHead(request);
+		ByteRange range = null;
+		String rangeHeader = request.headers().get(HttpHeaders.Names.RANGE);
+		if(rangeHeader != null && !head && !entry.isDeflated() && isIfRangeMatching(request.headers().get(HttpHeaders.Names.IF_RANGE), entry)) {
+			List<ByteRange> ranges = ByteRange.parse(rangeHeader, entry.getLength());
+			if(ranges != null && ranges.isEmpty()) {
+				FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+				response.headers().set(HttpHeaders.Names.CONTENT_RANGE, ByteRange.unsatisfiedContentRange(entry.getLength()));
+				this.prepareResponse(request, response);
+				NettyUtils.writeResponse(context, request, response);
+				return;
+			}
+			
+			// several ranges are sent as the whole entry
+			if(ranges != null && ranges.size() == 1) {
+				range = ranges.get(0);
+			}
+		}
+		
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, range == null ? HttpResponseStatus.OK : HttpResponseStatus.PARTIAL_CONTENT);
+		HttpHeaders headers = response.headers();
+		headers.set(HttpHeaders.Names.CONTENT_TYPE, entry.getContentType());
+		headers.set(HttpHeaders.Names.ETAG, etag);
+		if(entry.isDeflated()) {
+			headers.set(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+		} else {
+			headers.set(HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+		}
+		
+		NettyUtils.setDateAndCacheHeaders(response, entry.getLastModifiedHeader(), 3600);
+		this.prepareResponse(request, response);
+		
+		long start = 0;
+		long length = entry.getLength();
+		if(encoding != null) {
+			headers.set(HttpHeaders.Names.CONTENT_ENCODING, encoding);
+			length = GZIP_HEADER.length + entry.getCompressedSize() + GZIP_TRAILER_LENGTH;
+		} else if(range != null) {
+			start = range.getStart();
+			length = range.length();
+			headers.set(HttpHeaders.Names.CONTENT_RANGE, range.toContentRange(entry.getLength()));
+		}
+		
+		HttpHeaders.setContentLength(response, length);
+		if(head) {
+			this.writeHead(context, request, response);
+			return;
+		}
+		
+		final boolean keepAlive = HttpHeaders.isKeepAlive(request);
+		if(keepAlive) {
+			headers.set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+		}
+		
+		context.write(response);
+		
+		final boolean ssl = context.pipeline().get(SslHandler.class) != null;
+		if(encoding != null) {
+			ByteBuf trailer = context.alloc().buffer(GZIP_TRAILER_LENGTH);
+			trailer.writeIntLE(entry.getCrc());
+			trailer.writeIntLE((int) entry.getLength());
+			
+			context.write(Unpooled.wrappedBuffer(GZIP_HEADER));
+			writeFileRegion(context, this.archive.retainFile(), entry.getDataOffset(), entry.getCompressedSize(), ssl);
+			context.write(trailer);
+		} else if(entry.isDeflated()) {
+			context.write(new InflatingChunkedInput(this.archive.slice(entry.getDataOffset(), entry.getCompressedSize()), entry.getLength()));
+		} else {
+			writeFileRegion(context, this.archive.retainFile(), entry.getDataOffset() + start, length, ssl);
+		}
+		
+		ChannelFuture lastContentFuture = context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+		if (!keepAlive) {
+			lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+		}
+	}
+	
+	/**
+	 * Evaluate the conditional request headers for an archive entry, the same
+	 * way {@link #checkPreconditions(ChannelHandlerContext, FullHttpRequest, FileMetadata, AsciiString)}
+	 * does for files.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param entry
+	 * @param etag
+	 *            the entity tag of the representation being sent
+	 * @return <code>true</code> if a response has been sent
+	 */
+	protected boolean checkArchivePreconditions(ChannelHandlerContext context, FullHttpRequest request, ZipArchive.Entry entry, AsciiString etag) {
+		HttpHeaders headers = request.headers();
+		
+		String ifMatch = headers.get(HttpHeaders.Names.IF_MATCH);
+		if(ifMatch != null) {
+			if(!EntityTag.matches(ifMatch, etag, false)) {
+				this.sendError(context, request, HttpResponseStatus.PRECONDITION_FAILED);
+				return true;
+			}
+		} else {
+			String ifUnmodifiedSince = headers.get(HttpHeaders.Names.IF_UNMODIFIED_SINCE);
+			if(ifUnmodifiedSince != null) {
+				long date = HttpDateClock.parse(ifUnmodifiedSince);
+				if(date >= 0 && entry.getLastModified() / 1000 > date / 1000) {
+					this.sendError(context, request, HttpResponseStatus.PRECONDITION_FAILED);
+					return true;
+				}
+			}
+		}
+		
+		String ifNoneMatch = headers.get(HttpHeaders.Names.IF_NONE_MATCH);
+		if(ifNoneMatch != null) {
+			if(!EntityTag.matches(ifNoneMatch, etag, true)) {
+				return false;
+			}
+		} else if(!isNotModified(request, entry.getLastModified())) {
+			return false;
+		}
+		
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+		response.headers().set(HttpHeaders.Names.ETAG, etag);
+		if(entry.isDeflated()) {
+			response.headers().set(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+		}
+		
+		NettyUtils.setDateAndCacheHeaders(response, entry.getLastModifiedHeader(), 3600);
+		this.prepareResponse(request, response);
+		
+		NettyUtils.writeResponse(context, request, response);
+		return true;
+	}
+	
+	/**
+	 * Fill the metadata index, from the snapshot of the last run if there is
+	 * one or by walking the document root otherwise, and load the hottest
+	 * files. Called before the server accepts connections.
+	 * 
+	 */
+	public void warmUp() {
+		if(this.metadataIndex == null) {
+			// the archive was indexed when opened
+			return;
+		}
+		
+		final long start = System.currentTimeMillis();
+		final File snapshot = this.swiftServer.getIndexSnapshot();
+		
+		int entries = 0;
+		if(snapshot != null && snapshot.isFile()) {
+			entries = this.metadataIndex.restore(snapshot);
+		}
+		
+		// the existence filter can only be built from what is on disk now
+		final ExistenceFilter filter = this.metadataIndex.getExistenceFilter();
+		if(entries == 0 || filter != null) {
+			entries = this.metadataIndex.preIndex(this.swiftServer.getFileIoThreads());
+			this.saveIndex();
+		}
+		
+		int preloaded = 0;
+		if(this.fileCache != null) {
+			for(FileMetadata hot : this.metadataIndex.getHottest(this.swiftServer.getWarmUpPreloadFiles())) {
+				if(this.preload(hot.getPath())) {
+					preloaded++;
+				}
+			}
+		}
+		
+		System.out.println("Warmed up " + entries + " index entries and " + preloaded + " files in " + (System.currentTimeMillis() - start) + " ms");
+		if(filter != null) {
+			System.out.println("Existence filter holds " + filter.getPathCount() + " paths");
+		}
+	}
+	
+	/**
+	 * Start the periodic upkeep of the caches on the given event loops.
+	 * 
+	 * @param group
+	 */
+	public void startUpkeep(EventLoopGroup group) {
+		this.openFiles.startSweeping(group.next());
+	}
+	
+	/**
+	 * Release all resources held by this handler.
+	 * 
+	 */
+	public void shutdown() {
+		this.ioExecutor.shutdown();
+		if(this.metadataIndex != null) {
+			this.saveIndex();
+			this.metadataIndex.close();
+		}
+		
+		if(this.archive != null) {
+			this.archive.close();
+		}
+		
+		this.openFiles.close();
+		this.listingCache.clear();
+		if(this.fileCache != null) {
+			this.fileCache.clear();
+		}
+		
+		if(this.compression != null) {
+			this.compression.shutdown();
+		}
+	}
+	
+	/**
+	 * Drop everything cached about a file that was just uploaded.
+	 * 
+	 * @param path
+	 *            the sanitized path of the file
+	 */
+	protected void fileWritten(String path) {
+		this.metadataIndex.fileWritten(path);
+		this.openFiles.invalidate(path);
+		if(this.fileCache != null) {
+			this.fileCache.invalidate(path);
+		}
+	}
+	
+	/**
+	 * Check if the request should be served by this handler. Implementations
+	 * must send the error response themselves when rejecting.
+	 * 
+	 * @param context
+	 * @param request
+	 * @return <code>true</code> if the request should be processed
+	 */
+	protected boolean acceptRequest(ChannelHandlerContext context, FullHttpRequest request) {
+		return true;
+	}
+	
+	/**
+	 * Add any protocol specific headers to a response before it is written.
+	 * 
+	 * @param request
+	 * @param response
+	 */
+	protected void prepareResponse(FullHttpRequest request, HttpResponse response) {
+		// nothing to do for plain HTTP
+	}
+	
+	/**
+	 * Send an error response. The connection is kept open if the request
+	 * allows for it.
+	 * 
+	 * @param context
+	 * @param request
+	 *            the request, or <code>null</code> to close the connection
+	 * @param status
+	 */
+	protected void sendError(ChannelHandlerContext context, FullHttpRequest request, HttpResponseStatus status) {
+		FullHttpResponse response = this.responseTemplates.newError(status);
+		if(request != null) {
+			this.prepareResponse(request, response);
+		}
+		
+		NettyUtils.writeResponse(context, request, response);
+	}
+	
+	/**
+	 * Redirect the client to the given URI. The connection is kept open if the
+	 * request allows for it.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param newUri
+	 */
+	protected void sendRedirect(ChannelHandlerContext context, FullHttpRequest request, String newUri) {
+		FullHttpResponse response = this.responseTemplates.newRedirect(newUri);
+		this.prepareResponse(request, response);
+		
+		NettyUtils.writeResponse(context, request, response);
+	}
+	
+	/**
+	 * Answer an <code>OPTIONS</code> request with the methods we serve, for
+	 * any path as well as for the server as a whole.
+	 * 
+	 * @param context
+	 * @param request
+	 */
+	protected void sendOptions(ChannelHandlerContext context, FullHttpRequest request) {
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.EMPTY_BUFFER);
+		response.headers().set(HttpHeaders.Names.ALLOW, this.getAllowedMethods());
+		this.prepareResponse(request, response);
+		
+		NettyUtils.writeResponse(context, request, response);
+	}
+	
+	/**
+	 * Reject a method we do not serve, telling the client which ones we do.
+	 * 
+	 * @param context
+	 * @param request
+	 */
+	protected void sendMethodNotAllowed(ChannelHandlerContext context, FullHttpRequest request) {
+		FullHttpResponse response = this.responseTemplates.newError(HttpResponseStatus.METHOD_NOT_ALLOWED);
+		response.headers().set(HttpHeaders.Names.ALLOW, this.getAllowedMethods());
+		this.prepareResponse(request, response);
+		
+		NettyUtils.writeResponse(context, request, response);
+	}
+	
+	/**
+	 * Send the listing of the given folder. The folder is read off the event
+	 * loop, once for as long as it does not change.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param uri
+	 *            the request path of the folder
+	 * @param metadata
+	 *            the metadata of the folder
+	 */
+	protected void sendListing(final ChannelHandlerContext context, final FullHttpRequest request, final String uri, final FileMetadata metadata) {
+		final DirectoryListing.Options options = DirectoryListing.Options.parse(request.getUri());
+		if(isHead(request)) {
+			// the length is only known once rendered, and may be left out
+			HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+			response.headers().set(HttpHeaders.Names.CONTENT_TYPE, options.getContentType());
+			response.headers().set(HttpHeaders.Names.DATE, HttpDateClock.getDate());
+			this.prepareResponse(request, response);
+			
+			this.writeHead(context, request, response);
+			return;
+		}
+		
+		DirectorySnapshot snapshot = this.listingCache.get(metadata);
+		if(snapshot != null && snapshot.isSorted(options.getSortKey())) {
+			this.writeListing(context, request, new DirectoryListing(uri, snapshot, options));
+			return;
+		}
+		
+		this.offload(context, request, new Callable<DirectoryListing>() {
+			
+			@Override
+			public DirectoryListing call() throws IOException {
+				DirectorySnapshot snapshot = listingCache.get(metadata);
+				if(snapshot == null) {
+					snapshot = listingCache.load(metadata);
+				}
+				
+				// sorting a large folder is not work for the event loop either
+				return new DirectoryListing(uri, snapshot, options);
+			}
+			
+		}, new IoContinuation<DirectoryListing>() {
+			
+			@Override
+			public void resume(DirectoryListing listing) {
+				writeListing(context, request, listing);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Write out the given listing. Small listings are sent as a single,
+	 * possibly compressed, response; larger ones are streamed with chunked
+	 * encoding as they are rendered.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param listing
+	 */
+	protected void writeListing(ChannelHandlerContext context, FullHttpRequest request, DirectoryListing listing) {
+		if(listing.getEntryCount() <= STREAMED_LISTING_ENTRIES) {
+			FullHttpResponse response = ResponseTemplates.newListing(listing.readAll(context.alloc()), listing.getContentType());
+			this.prepareResponse(request, response);
+			this.sendCompressed(context, request, response);
+			return;
+		}
+		
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		response.headers().set(HttpHeaders.Names.CONTENT_TYPE, listing.getContentType());
+		response.headers().set(HttpHeaders.Names.DATE, HttpDateClock.getDate());
+		this.prepareResponse(request, response);
+		
+		ChannelFuture lastContentFuture;
+		if(request.getProtocolVersion().equals(HttpVersion.HTTP_1_0)) {
+			// no chunked encoding, the end of the listing is the end of the connection
+			response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+			context.write(response);
+			context.write(listing);
+			lastContentFuture = context.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+			lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+			return;
+		}
+		
+		HttpHeaders.setTransferEncodingChunked(response);
+		context.write(response);
+		lastContentFuture = context.writeAndFlush(new HttpChunkedInput(listing));
+		
+		if (!HttpHeaders.isKeepAlive(request)) {
+			lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+		}
+	}
+	
+	/**
+	 * Run blocking file system work on the file I/O pool and continue with
+	 * its result back on the event loop of the channel. Later requests on the
+	 * same connection wait till the continuation is done, so that responses
+	 * go out in the order the requests came in.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param task
+	 *            the blocking work
+	 * @param continuation
+	 *            what to do with the result, on the event loop
+	 */
+	protected <T> void offload(final ChannelHandlerContext context, final FullHttpRequest request, Callable<T> task, final IoContinuation<T> continuation) {
+		final RequestQueue queue = getRequestQueue(context);
+		queue.begin();
+		request.retain();
+		
+		this.ioExecutor.submit(task, context.executor()).addListener(new FutureListener<T>() {
+			
+			@Override
+			public void operationComplete(Future<T> future) {
+				try {
+					if(future.isSuccess()) {
+						continuation.resume(future.getNow());
+					} else if(future.cause() instanceof RejectedExecutionException) {
+						sendError(context, request, HttpResponseStatus.SERVICE_UNAVAILABLE);
+					} else {
+						sendError(context, request, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+					}
+				} catch(Exception e) {
+					context.fireExceptionCaught(e);
+				} finally {
+					request.release();
+					if(queue.end()) {
+						processQueued(context, queue);
+					}
+				}
+			}
+			
+		});
+	}
+	
+	/**
+	 * Send the given response, compressing its body off the event loop first
+	 * if the client accepts it and it is worth it.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param response
+	 */
+	protected void sendCompressed(final ChannelHandlerContext context, final FullHttpRequest request, final FullHttpResponse response) {
+		AsciiString encoding = null;
+		if(this.compression != null && this.compression.isCompressible(response.headers().get(HttpHeaders.Names.CONTENT_TYPE), response.content().readableBytes())) {
+			encoding = this.compression.selectEncoding(request.headers().get(HttpHeaders.Names.ACCEPT_ENCODING));
+		}
+		
+		if(encoding == null) {
+			NettyUtils.writeResponse(context, request, response);
+			return;
+		}
+		
+		final AsciiString contentEncoding = encoding;
+		response.headers().set(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+		
+		// hold back later requests on this connection till we are done
+		final RequestQueue queue = getRequestQueue(context);
+		queue.begin();
+		request.retain();
+		
+		this.compression.compress(response.content().retain(), encoding, context.executor()).addListener(new FutureListener<ByteBuf>() {
+			
+			@Override
+			public void operationComplete(Future<ByteBuf> future) {
+				try {
+					FullHttpResponse toSend = response;
+					if(future.isSuccess()) {
+						toSend = response.replace(future.getNow());
+						toSend.headers().set(HttpHeaders.Names.CONTENT_ENCODING, contentEncoding);
+						HttpHeaders.setContentLength(toSend, toSend.content().readableBytes());
+						response.release();
+					}
+					
+					NettyUtils.writeResponse(context, request, toSend);
+				} finally {
+					request.release();
+					if(queue.end()) {
+						processQueued(context, queue);
+					}
+				}
+			}
+			
+		});
+	}
+	
+	/**
+	 * Send a file that is held in memory. The content of the cached file is
+	 * released once written.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param cachedFile
+	 * @param ranges
+	 *            the ranges to send, or <code>null</code> for the whole file
+	 * @param contentEncoding
+	 *            the encoding of the cached content, if it was compressed
+	 */
+	protected void sendCachedFile(ChannelHandlerContext context, FullHttpRequest request, CachedFile cachedFile, List<ByteRange> ranges, AsciiString contentEncoding) {
+		final FileMetadata metadata = cachedFile.getMetadata();
+		final ByteBuf content = cachedFile.getContent();
+		final long fileLength = content.readableBytes();
+		
+		FullHttpResponse response;
+		if(ranges == null) {
+			response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+			this.setFileHeaders(request, response, metadata);
+		} else if(ranges.size() == 1) {
+			ByteRange range = ranges.get(0);
+			
+			// the slice shares the reference count of the duplicate we own
+			ByteBuf slice = content.slice(content.readerIndex() + (int) range.getStart(), (int) range.length());
+			response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT, slice);
+			this.setFileHeaders(request, response, metadata);
+			response.headers().set(HttpHeaders.Names.CONTENT_RANGE, range.toContentRange(fileLength));
+		} else {
+			CompositeByteBuf body = context.alloc().compositeBuffer(ranges.size() * 2 + 1);
+			for(ByteRange range : ranges) {
+				String partHeader = getPartHeader(metadata.getContentType(), range, fileLength);
+				body.addComponent(true, Unpooled.copiedBuffer(partHeader, CharsetUtil.US_ASCII));
+				body.addComponent(true, content.retainedSlice(content.readerIndex() + (int) range.getStart(), (int) range.length()));
+			}
+			
+			body.addComponent(true, Unpooled.copiedBuffer(MULTIPART_END, CharsetUtil.US_ASCII));
+			content.release();
+			
+			response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT, body);
+			this.setFileHeaders(request, response, metadata);
+			response.headers().set(HttpHeaders.Names.CONTENT_TYPE, MULTIPART_CONTENT_TYPE);
+		}
+		
+		HttpHeaders.setContentLength(response, response.content().readableBytes());
+		if(contentEncoding != null) {
+			response.headers().set(HttpHeaders.Names.CONTENT_ENCODING, contentEncoding);
+			response.headers().set(HttpHeaders.Names.ETAG, EntityTag.forEncoding(metadata.getETag(), contentEncoding));
+		}
+		
+		if (HttpHeaders.isKeepAlive(request)) {
+			context.writeAndFlush(response);
+			return;
+		}
+		
+		context.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+	}
+	
+	/**
+	 * Tell the client that none of the requested ranges can be served.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param metadata
+	 */
+	protected void sendRangeNotSatisfiable(ChannelHandlerContext context, FullHttpRequest request, FileMetadata metadata) {
+		FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+		response.headers().set(HttpHeaders.Names.CONTENT_RANGE, ByteRange.unsatisfiedContentRange(metadata.getLength()));
+		this.prepareResponse(request, response);
+		
+		NettyUtils.writeResponse(context, request, response);
+	}
+	
+	/**
+	 * Find the ranges asked for in the request. The <code>Range</code> header
+	 * is ignored when an <code>If-Range</code> validator does not match.
+	 * 
+	 * @param request
+	 * @param metadata
+	 * @return the ranges, or <code>null</code> if the whole file is to be sent
+	 */
+	protected List<ByteRange> getRanges(FullHttpRequest request, FileMetadata metadata) {
+		String range = request.headers().get(HttpHeaders.Names.RANGE);
+		if(range == null) {
+			return null;
+		}
+		
+		String ifRange = request.headers().get(HttpHeaders.Names.IF_RANGE);
+		if(ifRange != null && !isIfRangeMatching(ifRange, metadata)) {
+			return null;
+		}
+		
+		return ByteRange.parse(range, metadata.getLength());
+	}
+	
+	/**
+	 * Add the headers common to all file responses
+	 * 
+	 * @param request
+	 * @param response
+	 * @param metadata
+	 */
+	protected void setFileHeaders(FullHttpRequest request, HttpResponse response, FileMetadata metadata) {
+		HttpHeaders headers = response.headers();
+		headers.set(HttpHeaders.Names.CONTENT_TYPE, metadata.getContentType());
+		headers.set(HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+		headers.set(HttpHeaders.Names.ETAG, metadata.getETag());
+		if(metadata.getContentEncoding() != null) {
+			headers.set(HttpHeaders.Names.CONTENT_ENCODING, metadata.getContentEncoding());
+		}
+		
+		if(metadata.hasVariants() || (this.compression != null && this.compression.isCompressible(metadata))) {
+			headers.set(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+		}
+		
+		NettyUtils.setDateAndCacheHeaders(response, metadata.getLastModifiedHeader(), 3600); // cache for an hour
+		this.prepareResponse(request, response);
+		
+		// check for keep alive
+		if (HttpHeaders.isKeepAlive(request)) {
+			headers.set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+		}
+	}
+	
+	/**
+	 * Choose the representation of the file to send based on the encodings
+	 * accepted by the client. Brotli is preferred over gzip.
+	 * 
+	 * @param request
+	 * @param metadata
+	 * @return the precompressed variant, or the file itself
+	 */
+	protected static FileMetadata selectVariant(FullHttpRequest request, FileMetadata metadata) {
+		if(metadata.getBrotliVariant() == null && metadata.getGzipVariant() == null) {
+			return metadata;
+		}
+		
+		String acceptEncoding = request.headers().get(HttpHeaders.Names.ACCEPT_ENCODING);
+		if(acceptEncoding == null) {
+			return metadata;
+		}
+		
+		if(metadata.getBrotliVariant() != null && AcceptEncoding.accepts(acceptEncoding, "br")) {
+			return metadata.getBrotliVariant();
+		}
+		
+		if(metadata.getGzipVariant() != null && AcceptEncoding.accepts(acceptEncoding, "gzip")) {
+			return metadata.getGzipVariant();
+		}
+		
+		return metadata;
+	}
+	
+	/**
+	 * Check if the given <code>If-Match</code> or <code>If-None-Match</code>
+	 * header matches any of the current entity tags of the file.
+	 * 
+	 * @param header
+	 * @param metadata
+	 * @param encoding
+	 *            the encoding the file may be compressed with on the fly, if
+	 *            any
+	 * @param weakComparison
+	 * @return
+	 */
+	protected static boolean matchesETag(String header, FileMetadata metadata, AsciiString encoding, boolean weakComparison) {
+		if(matchesETag(header, metadata.getStatETag(), encoding, weakComparison)) {
+			return true;
+		}
+		
+		AsciiString contentHash = metadata.getContentHashETag();
+		return contentHash != null && matchesETag(header, contentHash, encoding, weakComparison);
+	}
+	
+	private static boolean matchesETag(String header, AsciiString etag, AsciiString encoding, boolean weakComparison) {
+		if(EntityTag.matches(header, etag, weakComparison)) {
+			return true;
+		}
+		
+		return encoding != null && EntityTag.matches(header, EntityTag.forEncoding(etag, encoding), weakComparison);
+	}
+	
+	/**
+	 * Check if the <code>If-Range</code> validator sent by the client still
+	 * matches the file. Entity tags are compared strongly and dates must match
+	 * exactly to the second.
+	 * 
+	 * @param ifRange
+	 * @param metadata
+	 * @return
+	 */
+	protected static boolean isIfRangeMatching(String ifRange, FileMetadata metadata) {
+		if(EntityTag.isEntityTag(ifRange)) {
+			// ranges are never served from the compressed copy, so no encoding
+			return matchesETag(ifRange, metadata, null, false);
+		}
+		
+		long date = HttpDateClock.parse(ifRange);
+		if(date < 0) {
+			return false;
+		}
+		
+		return date / 1000 == metadata.getLastModified() / 1000;
+	}
+	
+	/**
+	 * Check if the <code>If-Range</code> validator sent by the client still
+	 * matches the archive entry.
+	 * 
+	 * @param ifRange
+	 *            the validator, may be <code>null</code>
+	 * @param entry
+	 * @return
+	 */
+	protected static boolean isIfRangeMatching(String ifRange, ZipArchive.Entry entry) {
+		if(ifRange == null) {
+			return true;
+		}
+		
+		if(EntityTag.isEntityTag(ifRange)) {
+			return EntityTag.matches(ifRange, entry.getETag(), false);
+		}
+		
+		long date = HttpDateClock.parse(ifRange);
+		return date >= 0 && date / 1000 == entry.getLastModified() / 1000;
+	}
+	
+	/**
+	 * Write the given section of the file to the channel. The reference to the
+	 * file is given up once the section has been written, or if writing it
+	 * fails.
+	 * 
+	 * @param context
+	 * @param file
+	 * @param start
+	 * @param length
+	 * @param ssl
+	 * @return
+	 */
+	protected static ChannelFuture writeFileRegion(ChannelHandlerContext context, OpenFile file, long start, long length, boolean ssl) {
+		if (!ssl) {
+			return context.write(new SharedFileRegion(file, start, length), context.newProgressivePromise());
+		}
+		
+		// the chunked writer only asks for the next chunk while the channel
+		// is writable, and the chunks grow to fill full TLS records
+		return context.write(new SharedChunkedFile(file, start, length, context.channel()), context.newProgressivePromise());
+	}
+	
+	/**
+	 * Write the metadata index to the snapshot file, if one is configured.
+	 * 
+	 */
+	private void saveIndex() {
+		File snapshot = this.swiftServer.getIndexSnapshot();
+		if(snapshot == null) {
+			return;
+		}
+		
+		try {
+			this.metadataIndex.save(snapshot);
+		} catch(IOException e) {
+			System.out.println("Unable to save index snapshot " + snapshot + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Load the given file into the file cache, if it fits.
+	 * 
+	 * @param path
+	 * @return <code>true</code> if the file was loaded
+	 */
+	private boolean preload(String path) {
+		FileMetadata metadata = this.metadataIndex.get(path);
+		if(!metadata.isRegularFile() || metadata.isHidden() || !this.fileCache.isCacheable(metadata.getLength())) {
+			return false;
+		}
+		
+		try {
+			CachedFile cachedFile = this.fileCache.load(metadata);
+			if(cachedFile == null) {
+				return false;
+			}
+			
+			cachedFile.getContent().release();
+			return true;
+		} catch(IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Return the path of the given request URI, without the query string.
+	 * 
+	 * @param uri
+	 * @return
+	 */
+	protected static String getPath(String uri) {
+		int query = uri.indexOf('?');
+		if(query < 0) {
+			return uri;
+		}
+		
+		return uri.substring(0, query);
+	}
+	
+	/**
+	 * Build the headers that precede a single part of a
+	 * <code>multipart/byteranges</code> response.
+	 * 
+	 * @param contentType
+	 * @param range
+	 * @param total
+	 * @return
+	 */
+	protected static String getPartHeader(CharSequence contentType, ByteRange range, long total) {
+		return "\r\n--" + MULTIPART_BOUNDARY + "\r\n" 
+				+ HttpHeaders.Names.CONTENT_TYPE + ": " + contentType + "\r\n"
+				+ HttpHeaders.Names.CONTENT_RANGE + ": " + range.toContentRange(total) + "\r\n\r\n";
+	}
+	
+	/**
+	 * Serve the requests that arrived while an earlier one was waiting on the
+	 * file I/O pool, and run the tasks queued in between them, till one of
+	 * them has to wait as well.
+	 * 
+	 * @param context
+	 * @param queue
+	 */
+	private void processQueued(ChannelHandlerContext context, RequestQueue queue) {
+		Object queued;
+		while(!queue.isBusy() && (queued = queue.poll()) != null) {
+			if(queued instanceof Runnable) {
+				try {
+					((Runnable) queued).run();
+				} catch(Exception e) {
+					context.fireExceptionCaught(e);
+				}
+				
+				continue;
+			}
+			
+			FullHttpRequest request = (FullHttpRequest) queued;
+			try {
+				this.processRequest(context, request);
+			} catch(Exception e) {
+				context.fireExceptionCaught(e);
+			} finally {
+				request.release();
+			}
+		}
+	}
+	
+	private static RequestQueue getRequestQueue(ChannelHandlerContext context) {
+		Attribute<RequestQueue> attribute = context.channel().attr(REQUEST_QUEUE);
+		RequestQueue queue = attribute.get();
+		if(queue == null) {
+			queue = new RequestQueue();
+			attribute.set(queue);
+		}
+		
+		return queue;
+	}
+	
+	/**
+	 * @return the value of the <code>Allow</code> header
+	 */
+	protected String getAllowedMethods() {
+		return this.uploadsEnabled ? ALLOWED_METHODS_WITH_UPLOADS : ALLOWED_METHODS;
+	}
+	
+	protected static boolean isHead(FullHttpRequest request) {
+		return request.getMethod() == HttpMethod.HEAD;
+	}
+	
+	/**
+	 * Check if the client already has the latest copy of the resource.
+	 * 
+	 * @param request
+	 * @param lastModified
+	 * @return
+	 */
+	protected static boolean isNotModified(FullHttpRequest request, long lastModified) {
+		String ifModifiedSince = request.headers().get(HttpHeaders.Names.IF_MODIFIED_SINCE);
+		if (ifModifiedSince == null || ifModifiedSince.isEmpty()) {
+			return false;
+		}
+		
+		long ifModifiedSinceDate = HttpDateClock.parse(ifModifiedSince);
+		if(ifModifiedSinceDate < 0) {
+			return false;
+		}
+		
+		// Only compare up to the second because the datetime format we send to the client
+		// does not have milliseconds
+		long ifModifiedSinceDateSeconds = ifModifiedSinceDate / 1000;
+		long fileLastModifiedSeconds = lastModified / 1000;
+		
+		return fileLastModifiedSeconds <= ifModifiedSinceDateSeconds;
+	}
 
+	/**
+	 * What to do with the result of blocking work once back on the event loop
+	 * 
+	 * @param <T>
+	 */
+	protected interface IoContinuation<T> {
+		
+		void resume(T result) throws Exception;
+		
+	}
+	
+	/**
+	 * Requests of a single connection that wait for an earlier request to be
+	 * answered, along with tasks that have to wait for the same. Only ever
+	 * touched from the event loop of the channel.
+	 * 
+	 */
+	private static class RequestQueue {
+		
+		/**
+		 * Requests and {@link Runnable} tasks, in the order they came in
+		 */
+		private final ArrayDeque<Object> pending = new ArrayDeque<Object>();
+		
+		/**
+		 * Number of blocking tasks the current request waits on
+		 */
+		private int inFlight;
+		
+		boolean isBusy() {
+			return this.inFlight > 0;
+		}
+		
+		void begin() {
+			this.inFlight++;
+		}
+		
+		/**
+		 * @return <code>true</code> if nothing is in flight anymore
+		 */
+		boolean end() {
+			this.inFlight--;
+			return this.inFlight == 0;
+		}
+		
+		void add(Object requestOrTask) {
+			this.pending.add(requestOrTask);
+		}
+		
+		Object poll() {
+			return this.pending.poll();
+		}
+		
+		void clear() {
+			Object queued;
+			while((queued = this.pending.poll()) != null) {
+				ReferenceCountUtil.release(queued);
+			}
+		}
+		
+	}
 
 }
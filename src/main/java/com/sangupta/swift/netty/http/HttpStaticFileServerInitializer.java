@@ -26,17 +26,23 @@ import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.stream.ChunkedWriteHandler;
 
+import com.sangupta.swift.netty.ConnectionTracker;
+
 public class HttpStaticFileServerInitializer extends ChannelInitializer<SocketChannel> {
 	
 	private final SslContext sslContext;
 	
+	private final ConnectionTracker connections;
+	
 	private final HttpStaticFileServerHandler fileServerHandler;
 
-	public HttpStaticFileServerInitializer(SslContext sslContext, HttpStaticFileServerHandler fileServerHandler) {
+	public HttpStaticFileServerInitializer(SslContext sslContext, ConnectionTracker connections, HttpStaticFileServerHandler fileServerHandler) {
 		this.sslContext = sslContext;
+		this.connections = connections;
 		this.fileServerHandler = fileServerHandler;
 	}
 
@@ -46,7 +52,14 @@ public class HttpStaticFileServerInitializer extends ChannelInitializer<SocketCh
 		if (this.sslContext != null) {
 			pipeline.addLast(this.sslContext.newHandler(socketChannel.alloc()));
 		}
+		
+		// responses to pipelined requests, or ones finished in the same turn
+		// of the event loop, go out with a single flush and write
+		pipeline.addLast(new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true));
+		
 		pipeline.addLast(new HttpServerCodec());
+		pipeline.addLast(this.connections.newHandler());
+		pipeline.addLast(new HttpBodyHandler(this.fileServerHandler));
 		pipeline.addLast(new HttpObjectAggregator(65536));
 		pipeline.addLast(new ChunkedWriteHandler());
 		pipeline.addLast(fileServerHandler);
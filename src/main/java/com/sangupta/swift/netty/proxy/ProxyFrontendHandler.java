@@ -30,6 +30,8 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOption;
 
+import com.sangupta.swift.netty.Transport;
+
 /**
  * 
  * @author sangupta
@@ -40,12 +42,15 @@ public class ProxyFrontendHandler extends ChannelInboundHandlerAdapter {
     private final String remoteHost;
     
     private final int remotePort;
+    
+    private final Transport transport;
 
     private volatile Channel outboundChannel;
 
-    public ProxyFrontendHandler(String remoteHost, int remotePort) {
+    public ProxyFrontendHandler(String remoteHost, int remotePort, Transport transport) {
         this.remoteHost = remoteHost;
         this.remotePort = remotePort;
+        this.transport = transport;
     }
 
     @Override
@@ -56,7 +61,7 @@ public class ProxyFrontendHandler extends ChannelInboundHandlerAdapter {
         Bootstrap bootstrap = new Bootstrap();
         
         bootstrap.group(inboundChannel.eventLoop())
-		         .channel(channelHandlerContext.channel().getClass())
+		         .channel(transport.getSocketChannelClass())
 		         .handler(new ProxyBackendHandler(inboundChannel))
 		         .option(ChannelOption.AUTO_READ, false);
         
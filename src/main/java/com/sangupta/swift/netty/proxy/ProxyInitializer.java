@@ -24,6 +24,9 @@ package com.sangupta.swift.netty.proxy;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.socket.SocketChannel;
 
+import com.sangupta.swift.netty.ConnectionTracker;
+import com.sangupta.swift.netty.Transport;
+
 /**
  * 
  * @author sangupta
@@ -34,15 +37,22 @@ public class ProxyInitializer extends ChannelInitializer<SocketChannel> {
 	private final String remoteHost;
 	
 	private final int remotePort;
+	
+	private final Transport transport;
+	
+	private final ConnectionTracker connections;
 
-	public ProxyInitializer(String remoteHost, int remotePort) {
+	public ProxyInitializer(String remoteHost, int remotePort, Transport transport, ConnectionTracker connections) {
 		this.remoteHost = remoteHost;
 		this.remotePort = remotePort;
+		this.transport = transport;
+		this.connections = connections;
 	}
 
 	@Override
 	public void initChannel(SocketChannel socketChannel) {
 		socketChannel.pipeline()
-					 .addLast(new ProxyFrontendHandler(remoteHost, remotePort));
+					 .addLast(this.connections.newHandler())
+					 .addLast(new ProxyFrontendHandler(remoteHost, remotePort, transport));
 	}
 }
\ No newline at end of file
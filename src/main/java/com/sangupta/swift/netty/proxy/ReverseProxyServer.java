@@ -23,10 +23,10 @@ package com.sangupta.swift.netty.proxy;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.EventLoopGroup;
 
 import com.sangupta.swift.SwiftServer;
+import com.sangupta.swift.netty.ConnectionTracker;
 import com.sangupta.swift.netty.NettyServer;
 
 /**
@@ -37,29 +37,41 @@ import com.sangupta.swift.netty.NettyServer;
  */
 public class ReverseProxyServer extends NettyServer {
 
+	/**
+	 * Create a server on event loops of its own. Call {@link #start()} to
+	 * start serving.
+	 * 
+	 * @param server
+	 */
 	public ReverseProxyServer(SwiftServer server) {
-		this.bossGroup = new NioEventLoopGroup(1);
-		this.workerGroup = new NioEventLoopGroup();
+		this(server, null, null);
+	}
+	
+	/**
+	 * Create a server on the given event loops, which are shared with other
+	 * servers and left running when this one is shut down. Call
+	 * {@link #start()} to start serving.
+	 * 
+	 * @param server
+	 * @param bossGroup
+	 *            the group accepting connections, <code>null</code> to create
+	 *            one of its own
+	 * @param workerGroup
+	 *            the group serving connections, <code>null</code> to create
+	 *            one of its own
+	 */
+	public ReverseProxyServer(SwiftServer server, EventLoopGroup bossGroup, EventLoopGroup workerGroup) {
+		super(server, new ConnectionTracker(false));
+		this.useEventLoops(server, bossGroup, workerGroup);
+		
+		this.serverBootstrap = new ServerBootstrap();
+		this.serverBootstrap.group(this.bossGroup, this.workerGroup)
+					  .channel(this.transport.getServerChannelClass())
+					  .childHandler(new ProxyInitializer(server.getProxyHost(), server.getProxyPort(), this.transport, this.connections))
+					  .childOption(ChannelOption.AUTO_READ, false);
 		
-		try {
-			this.serverBootstrap = new ServerBootstrap();
-			
-			this.serverBootstrap.group(this.bossGroup, this.workerGroup)
-						  .channel(NioServerSocketChannel.class)
-						  .childHandler(new ProxyInitializer(server.getProxyHost(), server.getProxyPort()))
-						  .childOption(ChannelOption.AUTO_READ, false);
-						  
-			this.channel = this.serverBootstrap.bind(server.getListenPort()).sync().channel();
-			
-			System.out.println("Listening on port " + server.getListenPort());
-			
-			this.channel.closeFuture().sync();
-		} catch(InterruptedException e) {
-			// TODO: think what we can do with this
-			e.printStackTrace();
-		} finally {
-			this.shutdownGracefully();
-		}
+		// the proxied protocol may have the server speak first
+		this.transport.configure(this.serverBootstrap, false);
 	}
 
 }
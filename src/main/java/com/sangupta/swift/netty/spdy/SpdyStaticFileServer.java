@@ -22,9 +22,9 @@
 package com.sangupta.swift.netty.spdy;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.EventLoopGroup;
 import io.netty.handler.codec.spdy.SpdyOrHttpChooser.SelectedProtocol;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslProvider;
@@ -47,7 +47,34 @@ import com.sangupta.swift.netty.NettyServer;
  */
 public class SpdyStaticFileServer extends NettyServer {
 	
+	private final SpdyStaticFileServerHandler fileServerHandler;
+	
+	/**
+	 * Create a server on event loops of its own. Call {@link #start()} to
+	 * start serving.
+	 * 
+	 * @param server
+	 */
 	public SpdyStaticFileServer(SwiftServer server) {
+		this(server, null, null);
+	}
+	
+	/**
+	 * Create a server on the given event loops, which are shared with other
+	 * servers and left running when this one is shut down. Call
+	 * {@link #start()} to start serving.
+	 * 
+	 * @param server
+	 * @param bossGroup
+	 *            the group accepting connections, <code>null</code> to create
+	 *            one of its own
+	 * @param workerGroup
+	 *            the group serving connections, <code>null</code> to create
+	 *            one of its own
+	 */
+	public SpdyStaticFileServer(SwiftServer server, EventLoopGroup bossGroup, EventLoopGroup workerGroup) {
+		super(server);
+		
 		if(server.isSpdyEnabled() && !server.isSslEnabled()) {
 			throw new IllegalStateException("SPDY can only be enabled along with SSL");
 		}
@@ -84,35 +111,41 @@ public class SpdyStaticFileServer extends NettyServer {
 			this.sslContext = null;
 		}
 		
-		this.bossGroup = new NioEventLoopGroup(1);
-		this.workerGroup = new NioEventLoopGroup();
+		this.fileServerHandler = new SpdyStaticFileServerHandler(server);
+		this.useEventLoops(server, bossGroup, workerGroup);
+		this.fileServerHandler.startUpkeep(this.workerGroup);
 		
-		try {
-			this.serverBootstrap = new ServerBootstrap();
-			if(server.isSpdyEnabled()) {
-				this.serverBootstrap.option(ChannelOption.SO_BACKLOG, 1024);
-			}
-			
-			SpdyStaticFileServerHandler fileServerHandler = new SpdyStaticFileServerHandler(server);
-			
-			this.serverBootstrap.group(this.bossGroup, this.workerGroup)
-						  		.channel(NioServerSocketChannel.class)
-						  		.childHandler(new SpdyStaticFileServerInitializer(this.sslContext, fileServerHandler));
-						  
-			if(AssertUtils.isNotEmpty(server.getServerName())) {
-				this.channel = this.serverBootstrap.bind(server.getServerName(), server.getListenPort()).sync().channel();
-			} else {
-				this.channel = this.serverBootstrap.bind(server.getListenPort()).sync().channel();
-			}
-			
-			System.out.println("Listening on port " + server.getListenPort());
-			
-			this.channel.closeFuture().sync();
-		} catch(InterruptedException e) {
-			// TODO: think what we can do with this
-		} finally {
-			this.shutdownGracefully();
+		this.serverBootstrap = new ServerBootstrap();
+		if(server.isSpdyEnabled()) {
+			this.serverBootstrap.option(ChannelOption.SO_BACKLOG, 1024);
 		}
+		
+		this.serverBootstrap.group(this.bossGroup, this.workerGroup)
+					  		.channel(this.transport.getServerChannelClass())
+					  		.childHandler(new SpdyStaticFileServerInitializer(this.sslContext, this.connections, this.fileServerHandler));
+		
+		this.transport.configure(this.serverBootstrap, true);
+	}
+	
+	@Override
+	protected void warmUp() {
+		if(this.server.isWarmUpEnabled()) {
+			this.fileServerHandler.warmUp();
+		}
+	}
+	
+	@Override
+	protected ChannelFuture bind() {
+		if(AssertUtils.isNotEmpty(this.server.getServerName())) {
+			return this.serverBootstrap.bind(this.server.getServerName(), this.server.getListenPort());
+		}
+		
+		return super.bind();
+	}
+	
+	@Override
+	protected void releaseResources() {
+		this.fileServerHandler.shutdown();
 	}
 
 }
@@ -26,9 +26,13 @@ import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.stream.ChunkedWriteHandler;
 
+import com.sangupta.swift.netty.ConnectionTracker;
+import com.sangupta.swift.netty.http.HttpBodyHandler;
+
 /**
  * 
  * @author sangupta
@@ -38,10 +42,13 @@ public class SpdyStaticFileServerInitializer extends ChannelInitializer<SocketCh
 	
 	private final SslContext sslContext;
 	
+	private final ConnectionTracker connections;
+	
 	private final SpdyStaticFileServerHandler fileServerHandler;
 
-	public SpdyStaticFileServerInitializer(SslContext sslContext, SpdyStaticFileServerHandler fileServerHandler) {
+	public SpdyStaticFileServerInitializer(SslContext sslContext, ConnectionTracker connections, SpdyStaticFileServerHandler fileServerHandler) {
 		this.sslContext = sslContext;
+		this.connections = connections;
 		this.fileServerHandler = fileServerHandler;
 	}
 
@@ -52,8 +59,14 @@ public class SpdyStaticFileServerInitializer extends ChannelInitializer<SocketCh
 			pipeline.addLast(this.sslContext.newHandler(socketChannel.alloc()));
 		}
 		
+		// responses to pipelined requests, or ones finished in the same turn
+		// of the event loop, go out with a single flush and write
+		pipeline.addLast(new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true));
+		
 		pipeline.addLast(new SpdyOrHttpHandler(this.fileServerHandler));
 		pipeline.addLast(new HttpServerCodec());
+		pipeline.addLast(this.connections.newHandler());
+		pipeline.addLast(new HttpBodyHandler(this.fileServerHandler));
 		pipeline.addLast(new HttpObjectAggregator(65536));
 		pipeline.addLast(new ChunkedWriteHandler());
 		pipeline.addLast(this.fileServerHandler);
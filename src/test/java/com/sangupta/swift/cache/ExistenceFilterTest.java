@@ -0,0 +1,192 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ExistenceFilter}. A path that was added must never be
+ * reported missing, whenever and however it was added; missing paths should
+ * mostly be reported as such.
+ * 
+ * @author sangupta
+ *
+ */
+public class ExistenceFilterTest {
+	
+	private static final String SEPARATOR = File.separator;
+	
+	private static final int PATHS = 50000;
+	
+	@Test
+	public void testNoFalseNegatives() {
+		ExistenceFilter filter = new ExistenceFilter();
+		filter.begin();
+		for(int index = 0; index < PATHS; index++) {
+			filter.add(path(index));
+		}
+		
+		assertEquals(PATHS, filter.complete());
+		assertTrue(filter.isReady());
+		
+		for(int index = 0; index < PATHS; index++) {
+			assertTrue(path(index), filter.mightExist(path(index)));
+		}
+		
+		// the tree has grown well beyond what the filter was sized for
+		for(int index = PATHS; index < PATHS * 4; index++) {
+			filter.add(path(index));
+		}
+		
+		for(int index = 0; index < PATHS * 4; index++) {
+			assertTrue(path(index), filter.mightExist(path(index)));
+		}
+	}
+	
+	@Test
+	public void testMissingPaths() {
+		ExistenceFilter filter = new ExistenceFilter();
+		filter.begin();
+		for(int index = 0; index < PATHS; index++) {
+			filter.add(path(index));
+		}
+		
+		filter.complete();
+		
+		int reported = 0;
+		for(int index = 0; index < PATHS; index++) {
+			if(filter.mightExist(SEPARATOR + "missing" + SEPARATOR + index + ".php")) {
+				reported++;
+			}
+		}
+		
+		// sized for one percent with room to double, so well below that now
+		assertTrue("False positives: " + reported, reported < PATHS / 100);
+		assertEquals(PATHS, filter.getChecks());
+		assertEquals(PATHS - reported, filter.getMisses());
+	}
+	
+	@Test
+	public void testNotReady() {
+		ExistenceFilter filter = new ExistenceFilter();
+		
+		// never built
+		filter.add(path(1));
+		assertFalse(filter.isReady());
+		assertTrue(filter.mightExist(SEPARATOR + "missing"));
+		
+		// being built
+		filter.begin();
+		filter.add(path(1));
+		assertTrue(filter.mightExist(SEPARATOR + "missing"));
+		filter.complete();
+		assertFalse(filter.mightExist(SEPARATOR + "missing"));
+		
+		// built afresh
+		filter.begin();
+		assertFalse(filter.isReady());
+		assertTrue(filter.mightExist(SEPARATOR + "missing"));
+	}
+	
+	@Test
+	public void testAddedWhileBuilding() throws InterruptedException {
+		final ExistenceFilter filter = new ExistenceFilter();
+		filter.begin();
+		
+		// the watcher reports new files while the walk is still going on
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for(int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					int index;
+					while((index = next.getAndIncrement()) < PATHS) {
+						filter.add(path(index));
+					}
+				}
+			
+			});
+			threads[thread].start();
+		}
+		
+		// complete before the others are done, they carry on afterwards
+		while(next.get() < PATHS / 2) {
+			Thread.yield();
+		}
+		
+		filter.complete();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		
+		for(int index = 0; index < PATHS; index++) {
+			assertTrue(path(index), filter.mightExist(path(index)));
+		}
+	}
+	
+	@Test
+	public void testNormalizedPaths() {
+		ExistenceFilter filter = new ExistenceFilter();
+		filter.begin();
+		filter.add(SEPARATOR + "Docs" + SEPARATOR + "README.md");
+		filter.add(SEPARATOR + "images");
+		filter.complete();
+		
+		// case insensitive file systems
+		assertTrue(filter.mightExist(SEPARATOR + "docs" + SEPARATOR + "readme.MD"));
+		
+		// folders asked for with a trailing separator
+		assertTrue(filter.mightExist(SEPARATOR + "images" + SEPARATOR));
+		assertTrue(filter.mightExist(SEPARATOR + "IMAGES" + SEPARATOR));
+	}
+	
+	@Test
+	public void testUnknownFolders() {
+		ExistenceFilter filter = new ExistenceFilter();
+		filter.begin();
+		filter.add(SEPARATOR + "index.html");
+		filter.addUnknownFolder(SEPARATOR + "private");
+		filter.complete();
+		
+		assertTrue(filter.mightExist(SEPARATOR + "private" + SEPARATOR + "anything.txt"));
+		assertTrue(filter.mightExist(SEPARATOR + "Private" + SEPARATOR + "a" + SEPARATOR + "b"));
+		
+		// a sibling sharing the prefix is still known to be missing
+		assertFalse(filter.mightExist(SEPARATOR + "private-not" + SEPARATOR + "anything.txt"));
+	}
+	
+	// Internal methods follow
+	
+	private static String path(int index) {
+		return SEPARATOR + "folder-" + (index % 100) + SEPARATOR + "file-" + index + ".html";
+	}
+
+}
@@ -0,0 +1,352 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.netty.buffer.ByteBuf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sangupta.swift.netty.MimeTypeRegistry;
+
+/**
+ * Tests for the central directory reader of {@link ZipArchive}, on archives
+ * written by {@link ZipOutputStream} and on corrupted copies of them, which
+ * must be refused with an {@link IOException} and nothing else.
+ * 
+ * @author sangupta
+ *
+ */
+public class ZipArchiveTest {
+	
+	private static final byte[] STORED = "<html><body>stored as is</body></html>".getBytes(StandardCharsets.UTF_8);
+	
+	private static final byte[] DEFLATED = repeat("body { color: black; }\n", 200);
+	
+	private static final long MODIFIED = 1500000000000L;
+	
+	private static final int FUZZ_ROUNDS = 500;
+	
+	private static final String SEPARATOR = File.separator;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void testEntries() throws IOException {
+		ZipArchive archive = ZipArchive.open(this.write(createArchive()), MimeTypeRegistry.DEFAULT);
+		try {
+			assertEquals(2, archive.size());
+			
+			ZipArchive.Entry stored = archive.get(SEPARATOR + "index.html");
+			assertNotNull(stored);
+			assertEquals(ZipArchive.METHOD_STORED, stored.getMethod());
+			assertFalse(stored.isDeflated());
+			assertEquals(STORED.length, stored.getLength());
+			assertEquals(STORED.length, stored.getCompressedSize());
+			assertEquals((int) crc(STORED), stored.getCrc());
+			assertArrayEquals(STORED, bytes(archive.slice(stored.getDataOffset(), stored.getCompressedSize())));
+			
+			// the exact time of the extended timestamp, to the second
+			assertEquals(MODIFIED, stored.getLastModified());
+			
+			ZipArchive.Entry deflated = archive.get(SEPARATOR + "css" + SEPARATOR + "site" + SEPARATOR + "main.css");
+			assertNotNull(deflated);
+			assertTrue(deflated.isDeflated());
+			assertEquals(DEFLATED.length, deflated.getLength());
+			assertTrue(deflated.getCompressedSize() < DEFLATED.length);
+			assertArrayEquals(DEFLATED, inflate(bytes(archive.slice(deflated.getDataOffset(), deflated.getCompressedSize())), DEFLATED.length));
+		} finally {
+			archive.close();
+		}
+	}
+	
+	@Test
+	public void testFolders() throws IOException {
+		ZipArchive archive = ZipArchive.open(this.write(createArchive()), MimeTypeRegistry.DEFAULT);
+		try {
+			assertTrue(archive.isFolder(SEPARATOR));
+			
+			// implied by the entries in them
+			assertTrue(archive.isFolder(SEPARATOR + "css"));
+			assertTrue(archive.isFolder(SEPARATOR + "css" + SEPARATOR + "site" + SEPARATOR));
+			
+			// explicit, even though empty
+			assertTrue(archive.isFolder(SEPARATOR + "empty"));
+			assertNull(archive.get(SEPARATOR + "empty"));
+			
+			assertFalse(archive.isFolder(SEPARATOR + "index.html"));
+			assertFalse(archive.isFolder(SEPARATOR + "missing"));
+		} finally {
+			archive.close();
+		}
+	}
+	
+	@Test
+	public void testUnreachableEntries() throws IOException {
+		ZipArchive archive = ZipArchive.open(this.write(createArchive()), MimeTypeRegistry.DEFAULT);
+		try {
+			// no sanitized request could ever ask for these
+			assertNull(archive.get(SEPARATOR + ".git" + SEPARATOR + "config"));
+			assertNull(archive.get(SEPARATOR + "evil.txt"));
+			assertNull(archive.get(SEPARATOR + ".." + SEPARATOR + "evil.txt"));
+			assertFalse(archive.isFolder(SEPARATOR + ".git"));
+		} finally {
+			archive.close();
+		}
+	}
+	
+	@Test
+	public void testNotAnArchive() throws IOException {
+		assertCorrupt(new byte[0]);
+		assertCorrupt("just some text".getBytes(StandardCharsets.UTF_8));
+		
+		byte[] random = new byte[64 * 1024];
+		new Random(7).nextBytes(random);
+		assertCorrupt(random);
+	}
+	
+	@Test
+	public void testTruncated() throws IOException {
+		byte[] archive = createArchive();
+		
+		// the end record is gone
+		assertCorrupt(Arrays.copyOf(archive, archive.length - 30));
+		
+		// the central directory is gone, the end record still points at it
+		int end = findEnd(archive);
+		byte[] truncated = new byte[archive.length - (end - directoryOffset(archive))];
+		System.arraycopy(archive, 0, truncated, 0, directoryOffset(archive));
+		System.arraycopy(archive, end, truncated, directoryOffset(archive), archive.length - end);
+		assertCorrupt(truncated);
+	}
+	
+	@Test
+	public void testBadOffsets() throws IOException {
+		byte[] archive = createArchive();
+		int end = findEnd(archive);
+		int directory = directoryOffset(archive);
+		
+		// central directory beyond the end of the file
+		assertCorrupt(patchInt(archive, end + 16, archive.length + 100));
+		
+		// central directory larger than the file
+		assertCorrupt(patchInt(archive, end + 12, 0x7FFFFFFF));
+		
+		// local header that is not one
+		assertCorrupt(patchInt(archive, directory + 42, 1));
+		
+		// local header beyond the end of the file
+		assertCorrupt(patchInt(archive, directory + 42, 0x7FFFFFF0));
+		
+		// data running past the end of the file
+		assertCorrupt(patchInt(archive, directory + 20, 0x7FFFFFF0));
+		
+		// a name running past the end of the file
+		assertCorrupt(patchShort(archive, directory + 28, 0xFFFF));
+	}
+	
+	@Test
+	public void testCorruptCentralDirectory() throws IOException {
+		final byte[] archive = createArchive();
+		final int directory = directoryOffset(archive);
+		
+		Random random = new Random(42);
+		for(int round = 0; round < FUZZ_ROUNDS; round++) {
+			byte[] corrupt = archive.clone();
+			for(int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+				int position = directory + random.nextInt(archive.length - directory);
+				corrupt[position] = (byte) random.nextInt(256);
+			}
+			
+			// either it still reads, or it is refused as an I/O error
+			try {
+				ZipArchive.open(this.write(corrupt), MimeTypeRegistry.DEFAULT).close();
+			} catch(IOException e) {
+				// expected
+			}
+		}
+	}
+	
+	// Internal methods follow
+	
+	/**
+	 * An archive with a stored and a deflated file, an explicit folder,
+	 * entries no request can reach, and a comment after the end record.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] createArchive() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		
+		ZipEntry stored = new ZipEntry("index.html");
+		stored.setMethod(ZipEntry.STORED);
+		stored.setSize(STORED.length);
+		stored.setCrc(crc(STORED));
+		stored.setTime(MODIFIED);
+		stored.setExtra(timestamp(MODIFIED));
+		zip.putNextEntry(stored);
+		zip.write(STORED);
+		zip.closeEntry();
+		
+		zip.putNextEntry(new ZipEntry("css/site/main.css"));
+		zip.write(DEFLATED);
+		zip.closeEntry();
+		
+		zip.putNextEntry(new ZipEntry("empty/"));
+		zip.closeEntry();
+		
+		zip.putNextEntry(new ZipEntry(".git/config"));
+		zip.write(STORED);
+		zip.closeEntry();
+		
+		zip.putNextEntry(new ZipEntry("../evil.txt"));
+		zip.write(STORED);
+		zip.closeEntry();
+		
+		zip.setComment("built for tests");
+		zip.close();
+		return bytes.toByteArray();
+	}
+	
+	private File write(byte[] archive) throws IOException {
+		File file = this.folder.newFile();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(archive);
+		} finally {
+			out.close();
+		}
+		
+		return file;
+	}
+	
+	private void assertCorrupt(byte[] archive) throws IOException {
+		File file = this.write(archive);
+		try {
+			ZipArchive.open(file, MimeTypeRegistry.DEFAULT).close();
+			fail("Corrupt archive was opened");
+		} catch(IOException e) {
+			// expected
+		}
+	}
+	
+	private static int findEnd(byte[] archive) {
+		ByteBuffer buffer = ByteBuffer.wrap(archive).order(ByteOrder.LITTLE_ENDIAN);
+		for(int position = archive.length - 22; position >= 0; position--) {
+			if(buffer.getInt(position) == 0x06054b50) {
+				return position;
+			}
+		}
+		
+		throw new AssertionError("No end record");
+	}
+	
+	private static int directoryOffset(byte[] archive) {
+		return ByteBuffer.wrap(archive).order(ByteOrder.LITTLE_ENDIAN).getInt(findEnd(archive) + 16);
+	}
+	
+	private static byte[] patchInt(byte[] archive, int position, int value) {
+		byte[] patched = archive.clone();
+		ByteBuffer.wrap(patched).order(ByteOrder.LITTLE_ENDIAN).putInt(position, value);
+		return patched;
+	}
+	
+	private static byte[] patchShort(byte[] archive, int position, int value) {
+		byte[] patched = archive.clone();
+		ByteBuffer.wrap(patched).order(ByteOrder.LITTLE_ENDIAN).putShort(position, (short) value);
+		return patched;
+	}
+	
+	private static byte[] bytes(ByteBuf buffer) {
+		byte[] bytes = new byte[buffer.readableBytes()];
+		buffer.readBytes(bytes);
+		return bytes;
+	}
+	
+	private static byte[] inflate(byte[] compressed, int length) {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed);
+			byte[] result = new byte[length];
+			int inflated = inflater.inflate(result);
+			assertEquals(length, inflated);
+			return result;
+		} catch(Exception e) {
+			throw new AssertionError(e);
+		} finally {
+			inflater.end();
+		}
+	}
+	
+	/**
+	 * The extended timestamp extra field, with just the modification time.
+	 * 
+	 * @param millis
+	 * @return
+	 */
+	private static byte[] timestamp(long millis) {
+		ByteBuffer buffer = ByteBuffer.allocate(9).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putShort((short) 0x5455).putShort((short) 5).put((byte) 1).putInt((int) (millis / 1000));
+		return buffer.array();
+	}
+	
+	private static long crc(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+	
+	private static byte[] repeat(String value, int times) {
+		StringBuilder builder = new StringBuilder(value.length() * times);
+		for(int index = 0; index < times; index++) {
+			builder.append(value);
+		}
+		
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AsciiString;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the per-response date header work of {@link HttpDateClock} with
+ * the <code>SimpleDateFormat</code> based code it replaced. Run with
+ * <code>-prof gc</code> to see the allocation difference as well.
+ * 
+ * @author sangupta
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpDateClockBenchmark {
+	
+	private final long lastModified = 1400000000000L;
+	
+	private final AsciiString lastModifiedHeader = HttpDateClock.format(lastModified);
+	
+	private final String ifModifiedSince = "Tue, 13 May 2014 16:53:20 GMT";
+	
+	@Benchmark
+	public HttpResponse legacyCacheHeaders() {
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		
+		SimpleDateFormat dateFormatter = new SimpleDateFormat(NettyUtils.HTTP_DATE_FORMAT, Locale.US);
+		dateFormatter.setTimeZone(TimeZone.getTimeZone(NettyUtils.HTTP_DATE_GMT_TIMEZONE));
+
+		Calendar time = new GregorianCalendar();
+		response.headers().set(HttpHeaders.Names.DATE, dateFormatter.format(time.getTime()));
+
+		time.add(Calendar.SECOND, 3600);
+		response.headers().set(HttpHeaders.Names.EXPIRES, dateFormatter.format(time.getTime()));
+		response.headers().set(HttpHeaders.Names.CACHE_CONTROL, "private, max-age=" + 3600);
+		response.headers().set(HttpHeaders.Names.LAST_MODIFIED, dateFormatter.format(new Date(lastModified)));
+		return response;
+	}
+	
+	@Benchmark
+	public HttpResponse clockCacheHeaders() {
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		NettyUtils.setDateAndCacheHeaders(response, lastModifiedHeader, 3600);
+		return response;
+	}
+	
+	@Benchmark
+	public Date legacyParse() {
+		SimpleDateFormat dateFormatter = new SimpleDateFormat(NettyUtils.HTTP_DATE_FORMAT, Locale.US);
+		try {
+			return dateFormatter.parse(ifModifiedSince);
+		} catch (ParseException e) {
+			return null;
+		}
+	}
+	
+	@Benchmark
+	public long clockParse() {
+		return HttpDateClock.parse(ifModifiedSince);
+	}
+	
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(HttpDateClockBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+}
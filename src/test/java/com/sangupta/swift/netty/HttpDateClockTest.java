@@ -0,0 +1,127 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link HttpDateClock}, parsing the three date formats of RFC
+ * 7231 and checking the allocation free parser and formatter against
+ * {@link SimpleDateFormat}.
+ * 
+ * @author sangupta
+ *
+ */
+public class HttpDateClockTest {
+	
+	/**
+	 * The example date of RFC 7231, in milliseconds since epoch
+	 */
+	private static final long EXAMPLE = 784111777000L;
+	
+	private static final int FUZZ_ROUNDS = 100000;
+	
+	@Test
+	public void testRfc1123() {
+		assertEquals(EXAMPLE, HttpDateClock.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+		
+		// the day name carries no information
+		assertEquals(EXAMPLE, HttpDateClock.parse("Mon, 06 Nov 1994 08:49:37 GMT"));
+		
+		assertEquals(0, HttpDateClock.parse("Thu, 01 Jan 1970 00:00:00 GMT"));
+		assertEquals(-1000, HttpDateClock.parse("Wed, 31 Dec 1969 23:59:59 GMT"));
+		assertEquals(951782400000L, HttpDateClock.parse("Tue, 29 Feb 2000 00:00:00 GMT"));
+	}
+	
+	@Test
+	public void testRfc850() {
+		assertEquals(EXAMPLE, HttpDateClock.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+	}
+	
+	@Test
+	public void testAsctime() {
+		assertEquals(EXAMPLE, HttpDateClock.parse("Sun Nov  6 08:49:37 1994"));
+	}
+	
+	@Test
+	public void testInvalid() {
+		assertEquals(-1, HttpDateClock.parse(null));
+		assertEquals(-1, HttpDateClock.parse(""));
+		assertEquals(-1, HttpDateClock.parse("yesterday"));
+		assertEquals(-1, HttpDateClock.parse("\"1a2b-400-5f3c\""));
+		assertEquals(-1, HttpDateClock.parse("Sun, 06 Nov 1994 24:49:37 GMT"));
+		assertEquals(-1, HttpDateClock.parse("Sun, 06 Nov 1994 08:60:37 GMT"));
+		assertEquals(-1, HttpDateClock.parse("Sun, 00 Nov 1994 08:49:37 GMT"));
+		assertEquals(-1, HttpDateClock.parse("Sun, 06 Noo 1994 08:49:37 GMT"));
+		assertEquals(-1, HttpDateClock.parse("Sun, 06 Nov 19x4 08:49:37 GMT"));
+	}
+	
+	@Test
+	public void testFormat() {
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDateClock.format(EXAMPLE).toString());
+		assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpDateClock.format(0).toString());
+		
+		// partial seconds are dropped, also before the epoch
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDateClock.format(EXAMPLE + 999).toString());
+		assertEquals("Wed, 31 Dec 1969 23:59:59 GMT", HttpDateClock.format(-1).toString());
+	}
+	
+	@Test
+	public void testAgainstReference() {
+		SimpleDateFormat reference = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		reference.setTimeZone(TimeZone.getTimeZone("GMT"));
+		
+		// between the years 1900 and 2200, to the second
+		final long from = -2208988800L;
+		final long to = 7258118400L;
+		
+		Random random = new Random(42);
+		for(int round = 0; round < FUZZ_ROUNDS; round++) {
+			long millis = (from + (long) (random.nextDouble() * (to - from))) * 1000;
+			String expected = reference.format(millis);
+			
+			assertEquals(expected, HttpDateClock.format(millis).toString());
+			assertEquals(expected, millis, HttpDateClock.parse(expected));
+		}
+	}
+	
+	@Test
+	public void testTick() {
+		// switch cache times back and forth, across second boundaries
+		for(int round = 0; round < FUZZ_ROUNDS; round++) {
+			int cacheSeconds = round % 2 == 0 ? 60 : 3600;
+			HttpDateClock.Tick tick = HttpDateClock.now(cacheSeconds);
+			
+			long date = HttpDateClock.parse(tick.getDate());
+			assertEquals(date + cacheSeconds * 1000L, HttpDateClock.parse(tick.getExpires()));
+			assertEquals("private, max-age=" + cacheSeconds, tick.getCacheControl().toString());
+		}
+	}
+
+}
@@ -0,0 +1,237 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sangupta.swift.cache.FileMetadata;
+import com.sangupta.swift.cache.OpenFileCache;
+
+/**
+ * Compares the throughput of sending a large file over SSL with the
+ * <code>ChunkedFile</code> in 8 KB chunks that we used to send, against the
+ * {@link SharedChunkedFile} that reads full TLS records into direct buffers.
+ * 
+ * Server and client run in this JVM and talk over loopback, so the numbers
+ * are mostly the cost of reading, copying and encrypting on the server.
+ * 
+ * Run with an optional file size in megabytes and number of rounds as the
+ * arguments, followed by a PEM certificate and key file to use. Without them
+ * a self-signed certificate is generated, which needs a JDK that Netty knows
+ * how to do that on, or Bouncy Castle on the class path.
+ * 
+ * @author sangupta
+ *
+ */
+public class TlsStreamingBenchmark {
+	
+	private static final int PORT = 23236;
+	
+	public static void main(String[] args) throws Exception {
+		final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		
+		final File file = createFile(megabytes);
+		final OpenFileCache openFiles = new OpenFileCache(16, 60000);
+		final FileMetadata metadata = FileMetadata.read("/" + file.getName(), file, MimeTypeRegistry.DEFAULT, false);
+		
+		final SslContext serverContext;
+		if(args.length > 3) {
+			serverContext = SslContextBuilder.forServer(new File(args[2]), new File(args[3])).build();
+		} else {
+			SelfSignedCertificate certificate = new SelfSignedCertificate();
+			serverContext = SslContextBuilder.forServer(certificate.certificate(), certificate.privateKey()).build();
+		}
+		final SslContext clientContext = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+		
+		EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+		EventLoopGroup workerGroup = new NioEventLoopGroup();
+		
+		try {
+			final boolean[] shared = new boolean[1];
+			
+			ServerBootstrap bootstrap = new ServerBootstrap();
+			bootstrap.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
+				
+				@Override
+				protected void initChannel(SocketChannel channel) throws Exception {
+					channel.pipeline().addLast(serverContext.newHandler(channel.alloc()));
+					channel.pipeline().addLast(new ChunkedWriteHandler());
+					channel.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+						
+						@Override
+						public void userEventTriggered(ChannelHandlerContext context, Object event) throws Exception {
+							if(!(event instanceof SslHandshakeCompletionEvent) || !((SslHandshakeCompletionEvent) event).isSuccess()) {
+								super.userEventTriggered(context, event);
+								return;
+							}
+							
+							ChunkedInput<ByteBuf> input;
+							if(shared[0]) {
+								input = new SharedChunkedFile(openFiles.open(metadata), 0, file.length(), context.channel());
+							} else {
+								input = new ChunkedFile(new RandomAccessFile(file, "r"), 0, file.length(), 8192);
+							}
+							
+							context.writeAndFlush(input).addListener(ChannelFutureListener.CLOSE);
+						}
+					
+					});
+				}
+			
+			});
+			
+			Channel serverChannel = bootstrap.bind(PORT).sync().channel();
+			
+			// warm up both paths
+			download(workerGroup, clientContext, file.length());
+			shared[0] = true;
+			download(workerGroup, clientContext, file.length());
+			
+			long chunkedNanos = 0;
+			long sharedNanos = 0;
+			for(int round = 0; round < rounds; round++) {
+				shared[0] = false;
+				chunkedNanos += download(workerGroup, clientContext, file.length());
+				
+				shared[0] = true;
+				sharedNanos += download(workerGroup, clientContext, file.length());
+			}
+			
+			long bytes = file.length() * rounds;
+			System.out.println("File size:              " + megabytes + " MB, rounds: " + rounds);
+			System.out.println("ChunkedFile (8 KB):     " + megabytesPerSecond(bytes, chunkedNanos) + " MB/s");
+			System.out.println("SharedChunkedFile:      " + megabytesPerSecond(bytes, sharedNanos) + " MB/s");
+			
+			serverChannel.close().sync();
+		} finally {
+			openFiles.clear();
+			bossGroup.shutdownGracefully();
+			workerGroup.shutdownGracefully();
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Download the file once, returning the time taken.
+	 * 
+	 * @param group
+	 * @param clientContext
+	 * @param expected
+	 *            the number of bytes the download must have
+	 * @return
+	 * @throws Exception
+	 */
+	private static long download(EventLoopGroup group, final SslContext clientContext, long expected) throws Exception {
+		final AtomicLong received = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(1);
+		
+		Bootstrap bootstrap = new Bootstrap();
+		bootstrap.group(group).channel(NioSocketChannel.class).handler(new ChannelInitializer<SocketChannel>() {
+			
+			@Override
+			protected void initChannel(SocketChannel channel) throws Exception {
+				channel.pipeline().addLast(clientContext.newHandler(channel.alloc(), "localhost", PORT));
+				channel.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+					
+					@Override
+					public void channelRead(ChannelHandlerContext context, Object message) throws Exception {
+						received.addAndGet(((ByteBuf) message).readableBytes());
+						ReferenceCountUtil.release(message);
+					}
+					
+					@Override
+					public void channelInactive(ChannelHandlerContext context) throws Exception {
+						done.countDown();
+					}
+				
+				});
+			}
+		
+		});
+		
+		long start = System.nanoTime();
+		bootstrap.connect("localhost", PORT).sync();
+		done.await();
+		long nanos = System.nanoTime() - start;
+		
+		if(received.get() != expected) {
+			throw new IllegalStateException("Received " + received.get() + " bytes, expected " + expected);
+		}
+		
+		return nanos;
+	}
+	
+	private static long megabytesPerSecond(long bytes, long nanos) {
+		return (long) (bytes * 1000000000d / Math.max(1, nanos) / (1024 * 1024));
+	}
+	
+	private static File createFile(int megabytes) throws IOException {
+		File file = File.createTempFile("swift-tls-", ".bin");
+		file.deleteOnExit();
+		
+		byte[] block = new byte[1024 * 1024];
+		new Random(42).nextBytes(block);
+		
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for(int index = 0; index < megabytes; index++) {
+				out.write(block);
+			}
+		} finally {
+			out.close();
+		}
+		
+		return file;
+	}
+
+}
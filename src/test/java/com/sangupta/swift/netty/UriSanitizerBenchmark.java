@@ -0,0 +1,101 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link UriSanitizer} with the <code>URLDecoder</code> and regular
+ * expression based code it replaced, including the stripping of the query
+ * string the handler did before. Run with <code>-prof gc</code> to see the
+ * allocation difference as well.
+ * 
+ * @author sangupta
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UriSanitizerBenchmark {
+	
+	@Param({ "/css/site.css", "/js/app.min.js?v=20140512", "/docs/caf%C3%A9%20menu.pdf", "/a/b/../c/./index.html" })
+	public String uri;
+	
+	@Benchmark
+	public String legacySanitize() {
+		String path = this.uri;
+		int query = path.indexOf('?');
+		if(query >= 0) {
+			path = path.substring(0, query);
+		}
+		
+		try {
+			path = URLDecoder.decode(path, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+		
+		if (!path.startsWith("/")) {
+			return null;
+		}
+		
+		path = path.replace('/', File.separatorChar);
+		if (path.contains(File.separator + '.') || path.contains('.' + File.separator) || path.startsWith(".") || path.endsWith(".")
+				|| NettyUtils.INSECURE_URI.matcher(path).matches()) {
+			return null;
+		}
+		
+		return path;
+	}
+	
+	@Benchmark
+	public String singlePassSanitize() {
+		return UriSanitizer.sanitize(this.uri);
+	}
+	
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(UriSanitizerBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+
+}
@@ -0,0 +1,265 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests for {@link UriSanitizer}, against the corpus of request targets in
+ * <code>uri-corpus.txt</code> and against a straightforward reference
+ * implementation on randomly assembled targets.
+ * 
+ * @author sangupta
+ *
+ */
+public class UriSanitizerTest {
+	
+	/**
+	 * Pieces random targets are assembled from, picked for the trouble they
+	 * cause
+	 */
+	private static final String[] TOKENS = { "a", "b", "z.txt", "a..b", "/", "//", ".", "..", "./", "../", ".a", "a.", "%2e", "%2E", "%2f", "%2F", "%5c", "%",
+											 "%4", "%41", "%zz", "%00", "%0a", "%7f", "%C3%A9", "%C3", "%A9", "%E2%82%AC", "%F0%9F%98%80", "%C0%AE", "%C0%AF",
+											 "%ED%A0%80", "%F4%90%80%80", "\u00C3\u00A9", "\u00E9", "\u00FF", "?", "#", "?x=../..", "+", " ", "~", "-", "_", "<",
+											 "&", "\"", "\\", ":" };
+	
+	private static final int FUZZ_ROUNDS = 200000;
+	
+	@Test
+	public void testCorpus() throws IOException {
+		InputStream stream = UriSanitizerTest.class.getResourceAsStream("uri-corpus.txt");
+		assertNotNull("Corpus not found", stream);
+		
+		int count = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if(line.startsWith("#") || tab < 0) {
+					continue;
+				}
+				
+				String target = line.substring(0, tab);
+				String expected = line.substring(tab + 1);
+				if("-".equals(expected)) {
+					assertNull("Target should be rejected: " + target, UriSanitizer.sanitize(target));
+				} else {
+					assertEquals("Target: " + target, toPlatform(expected), UriSanitizer.sanitize(target));
+				}
+				
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		
+		assertTrue("Corpus is too small", count > 50);
+	}
+	
+	@Test
+	public void testRawUtf8Bytes() {
+		// the HTTP decoder hands us each byte of the request line as a char
+		assertEquals(toPlatform("/caf\u00E9"), UriSanitizer.sanitize("/caf\u00C3\u00A9"));
+		assertNull(UriSanitizer.sanitize("/caf\u00E9"));
+		assertNull(UriSanitizer.sanitize("/caf\u00C3"));
+	}
+	
+	@Test
+	public void testUnchangedPathIsNotCopied() {
+		Assume.assumeTrue(File.separatorChar == '/');
+		
+		String target = "/css/site.css";
+		assertSame(target, UriSanitizer.sanitize(target));
+	}
+	
+	@Test
+	public void testLongTarget() {
+		StringBuilder builder = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for(int index = 0; index < 500; index++) {
+			builder.append("/segment").append(index).append("/x/..");
+			expected.append("/segment").append(index);
+		}
+		
+		expected.append('/');
+		assertEquals(toPlatform(expected.toString()), UriSanitizer.sanitize(builder.toString()));
+	}
+	
+	@Test
+	public void testFuzz() {
+		Assume.assumeTrue(File.separatorChar == '/');
+		
+		final Random random = new Random(42);
+		
+		int accepted = 0;
+		for(int round = 0; round < FUZZ_ROUNDS; round++) {
+			StringBuilder builder = new StringBuilder("/");
+			int tokens = 1 + random.nextInt(12);
+			for(int index = 0; index < tokens; index++) {
+				builder.append(TOKENS[random.nextInt(TOKENS.length)]);
+			}
+			
+			String target = builder.toString();
+			String path = UriSanitizer.sanitize(target);
+			assertEquals("Target: " + target, reference(target), path);
+			if(path == null) {
+				continue;
+			}
+			
+			accepted++;
+			assertFalse("Empty segment: " + target, path.contains("//"));
+			for(String segment : path.substring(1).split("/")) {
+				// this covers any attempt to climb out of the root
+				assertFalse("Dot segment: " + target, segment.startsWith("."));
+			}
+		}
+		
+		// make sure the corpus is not rejecting everything
+		assertTrue(accepted > FUZZ_ROUNDS / 20);
+	}
+	
+	// Internal methods follow
+	
+	private static String toPlatform(String path) {
+		return path.replace('/', File.separatorChar);
+	}
+	
+	/**
+	 * The rules of {@link UriSanitizer}, applied one step at a time with the
+	 * JDK doing the decoding.
+	 * 
+	 * @param uri
+	 * @return
+	 */
+	private static String reference(String uri) {
+		int end = uri.length();
+		for(int index = 0; index < uri.length(); index++) {
+			if(uri.charAt(index) == '?' || uri.charAt(index) == '#') {
+				end = index;
+				break;
+			}
+		}
+		
+		String target = uri.substring(0, end);
+		if(!target.startsWith("/")) {
+			return null;
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for(int index = 0; index < target.length(); index++) {
+			char c = target.charAt(index);
+			if(c != '%') {
+				bytes.write(c);
+				continue;
+			}
+			
+			if(index + 2 >= target.length()) {
+				return null;
+			}
+			
+			int high = Character.digit(target.charAt(index + 1), 16);
+			int low = Character.digit(target.charAt(index + 2), 16);
+			if(high < 0 || low < 0) {
+				return null;
+			}
+			
+			bytes.write(high << 4 | low);
+			index += 2;
+		}
+		
+		String decoded;
+		try {
+			decoded = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT)
+											.decode(ByteBuffer.wrap(bytes.toByteArray())).toString();
+		} catch(CharacterCodingException e) {
+			return null;
+		}
+		
+		String[] segments = decoded.split("/", -1);
+		List<String> path = new ArrayList<String>();
+		for(int index = 1; index < segments.length; index++) {
+			String segment = segments[index];
+			if(segment.isEmpty() || segment.equals(".")) {
+				continue;
+			}
+			
+			if(segment.equals("..")) {
+				if(path.isEmpty()) {
+					return null;
+				}
+				
+				path.remove(path.size() - 1);
+				continue;
+			}
+			
+			if(segment.startsWith(".") || segment.endsWith(".")) {
+				return null;
+			}
+			
+			for(char c : segment.toCharArray()) {
+				if(c < 0x20 || c == 0x7F || c == '<' || c == '>' || c == '&' || c == '"') {
+					return null;
+				}
+			}
+			
+			path.add(segment);
+		}
+		
+		String last = segments[segments.length - 1];
+		boolean trailing = last.isEmpty() || last.equals(".") || last.equals("..");
+		
+		StringBuilder builder = new StringBuilder();
+		for(String segment : path) {
+			builder.append('/').append(segment);
+		}
+		
+		if(builder.length() == 0 || trailing) {
+			builder.append('/');
+		}
+		
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,152 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ByteRange}: <code>null</code> means the header is ignored
+ * and the whole file sent, an empty list means a <code>416</code>.
+ * 
+ * @author sangupta
+ *
+ */
+public class ByteRangeTest {
+	
+	@Test
+	public void testSingleRanges() {
+		assertRanges(ByteRange.parse("bytes=0-499", 1000), 0, 499);
+		assertRanges(ByteRange.parse("bytes=500-", 1000), 500, 999);
+		assertRanges(ByteRange.parse(" bytes=10-10 ", 1000), 10, 10);
+		
+		// the end is clamped to the resource
+		assertRanges(ByteRange.parse("bytes=900-5000", 1000), 900, 999);
+	}
+	
+	@Test
+	public void testSuffixRanges() {
+		assertRanges(ByteRange.parse("bytes=-100", 1000), 900, 999);
+		
+		// longer than the resource, the whole of it
+		assertRanges(ByteRange.parse("bytes=-5000", 1000), 0, 999);
+		
+		// a suffix of nothing cannot be satisfied
+		assertUnsatisfiable(ByteRange.parse("bytes=-0", 1000));
+		
+		// nor can any suffix of an empty resource
+		assertUnsatisfiable(ByteRange.parse("bytes=-10", 0));
+	}
+	
+	@Test
+	public void testMultipleRanges() {
+		assertRanges(ByteRange.parse("bytes=0-9,20-29", 1000), 0, 9, 20, 29);
+		
+		// sorted by start
+		assertRanges(ByteRange.parse("bytes=500-599,0-9,-10", 1000), 0, 9, 500, 599, 990, 999);
+		
+		// overlapping and adjacent ranges are merged
+		assertRanges(ByteRange.parse("bytes=0-99,50-149", 1000), 0, 149);
+		assertRanges(ByteRange.parse("bytes=0-9,10-19", 1000), 0, 19);
+		assertRanges(ByteRange.parse("bytes=100-199,0-499,450-", 1000), 0, 999);
+		assertRanges(ByteRange.parse("bytes=-100,950-960", 1000), 900, 999);
+		
+		// a gap of a single byte is kept
+		assertRanges(ByteRange.parse("bytes=0-9,11-19", 1000), 0, 9, 11, 19);
+		
+		// unsatisfiable ones are dropped, the others still served
+		assertRanges(ByteRange.parse("bytes=2000-2100,0-9", 1000), 0, 9);
+	}
+	
+	@Test
+	public void testUnsatisfiable() {
+		assertUnsatisfiable(ByteRange.parse("bytes=1000-", 1000));
+		assertUnsatisfiable(ByteRange.parse("bytes=1000-1999", 1000));
+		assertUnsatisfiable(ByteRange.parse("bytes=0-0", 0));
+		assertUnsatisfiable(ByteRange.parse("bytes=1000-1001,2000-", 1000));
+		
+		// the last byte is still there
+		assertRanges(ByteRange.parse("bytes=999-", 1000), 999, 999);
+		
+		assertEquals("bytes */1000", ByteRange.unsatisfiedContentRange(1000));
+	}
+	
+	@Test
+	public void testIgnored() {
+		assertNull(ByteRange.parse(null, 1000));
+		assertNull(ByteRange.parse("", 1000));
+		assertNull(ByteRange.parse("items=0-9", 1000));
+		assertNull(ByteRange.parse("bytes=", 1000));
+		assertNull(ByteRange.parse("bytes=-", 1000));
+		assertNull(ByteRange.parse("bytes=abc", 1000));
+		assertNull(ByteRange.parse("bytes=a-9", 1000));
+		assertNull(ByteRange.parse("bytes=0-9,x", 1000));
+		
+		// the last byte before the first
+		assertNull(ByteRange.parse("bytes=9-0", 1000));
+		
+		// too many ranges to bother with
+		StringBuilder builder = new StringBuilder("bytes=0-0");
+		for(int index = 1; index <= ByteRange.MAX_RANGES; index++) {
+			builder.append(',').append(index * 2).append('-').append(index * 2);
+		}
+		
+		assertNull(ByteRange.parse(builder.toString(), 1000));
+	}
+	
+	@Test
+	public void testContentRange() {
+		List<ByteRange> ranges = ByteRange.parse("bytes=-100", 1000);
+		assertNotNull(ranges);
+		assertEquals("bytes 900-999/1000", ranges.get(0).toContentRange(1000));
+		assertEquals(100, ranges.get(0).length());
+	}
+	
+	// Internal methods follow
+	
+	private static void assertUnsatisfiable(List<ByteRange> ranges) {
+		assertNotNull("Header should not have been ignored", ranges);
+		assertTrue("Expected no satisfiable range, got " + ranges.size(), ranges.isEmpty());
+	}
+	
+	/**
+	 * Check the ranges against pairs of expected start and end.
+	 * 
+	 * @param ranges
+	 * @param bounds
+	 */
+	private static void assertRanges(List<ByteRange> ranges, long... bounds) {
+		assertNotNull("Header should not have been ignored", ranges);
+		assertEquals("Number of ranges", bounds.length / 2, ranges.size());
+		for(int index = 0; index < ranges.size(); index++) {
+			assertEquals("Start of range " + index, bounds[index * 2], ranges.get(index).getStart());
+			assertEquals("End of range " + index, bounds[index * 2 + 1], ranges.get(index).getEnd());
+		}
+	}
+
+}
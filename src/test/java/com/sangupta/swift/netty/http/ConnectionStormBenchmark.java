@@ -0,0 +1,276 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty.http;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sangupta.swift.SwiftServer;
+import com.sangupta.swift.netty.Transport;
+
+/**
+ * Measures how fast a server takes in a storm of new connections, as after
+ * a load balancer fails over to it: many clients connect at once, each sends
+ * a single request and closes.
+ * 
+ * The same storm hits a server accepting on a single socket, and one whose
+ * port is bound by several sockets with <code>SO_REUSEPORT</code>, each with
+ * its own acceptor loop. The accept rate is reported along with the connect
+ * latency and the time to the first byte of the response, whose tails grow
+ * as connections queue up for an acceptor. Needs the epoll transport; the
+ * acceptors only help with as many cores.
+ * 
+ * Run with optional arguments: connections per run, client threads and
+ * acceptors.
+ * 
+ * @author sangupta
+ *
+ */
+public class ConnectionStormBenchmark {
+	
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	
+	private static final int PORT = 23237;
+	
+	private static final byte[] REQUEST = "GET /ping.txt HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(ASCII);
+	
+	public static void main(String[] args) throws Exception {
+		final int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		final int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		final int acceptors = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(2, Runtime.getRuntime().availableProcessors());
+		
+		if(!Transport.EPOLL.isAvailable()) {
+			System.out.println("Epoll transport is not available: " + Transport.EPOLL.unavailabilityCause());
+			System.exit(1);
+		}
+		
+		File root = createDocumentRoot();
+		SwiftServer single = new SwiftServer().listen(PORT).withDocumentRoot(root).withTransport(Transport.EPOLL);
+		SwiftServer shared = new SwiftServer().listen(PORT + 1).withDocumentRoot(root).withTransport(Transport.EPOLL).withAcceptors(acceptors);
+		
+		// complete once the ports are bound
+		new HttpStaticFileServer(single).start().syncUninterruptibly();
+		new HttpStaticFileServer(shared).start().syncUninterruptibly();
+		
+		// warm up both servers
+		storm(PORT, connections / 10, clients);
+		storm(PORT + 1, connections / 10, clients);
+		
+		Result one = storm(PORT, connections, clients);
+		Result many = storm(PORT + 1, connections, clients);
+		
+		System.out.println("Connections per run: " + connections + ", client threads: " + clients + ", cores: " + Runtime.getRuntime().availableProcessors());
+		System.out.println("                 conn/s   connect p50 / p99 / p99.9 us   first byte p50 / p99 / p99.9 us   errors");
+		print("1 acceptor", one);
+		print(acceptors + " acceptors", many);
+		
+		System.exit(0);
+	}
+	
+	/**
+	 * Open the given number of connections from all clients at once, each
+	 * asking for a tiny file and closing.
+	 * 
+	 * @param port
+	 * @param connections
+	 * @param clients
+	 * @return
+	 * @throws InterruptedException
+	 */
+	private static Result storm(int port, int connections, int clients) throws InterruptedException {
+		final InetSocketAddress address = new InetSocketAddress("localhost", port);
+		final AtomicInteger remaining = new AtomicInteger(connections);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final Client[] workers = new Client[clients];
+		
+		Thread[] threads = new Thread[clients];
+		for(int index = 0; index < clients; index++) {
+			workers[index] = new Client(address, remaining, gate, connections);
+			threads[index] = new Thread(workers[index], "storm-" + index);
+			threads[index].start();
+		}
+		
+		long start = System.nanoTime();
+		gate.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		
+		Result result = new Result();
+		result.nanos = System.nanoTime() - start;
+		result.connect = new long[connections];
+		result.firstByte = new long[connections];
+		for(Client worker : workers) {
+			System.arraycopy(worker.connect, 0, result.connect, result.completed, worker.completed);
+			System.arraycopy(worker.firstByte, 0, result.firstByte, result.completed, worker.completed);
+			result.completed += worker.completed;
+			result.errors += worker.errors;
+		}
+		
+		result.connect = Arrays.copyOf(result.connect, result.completed);
+		result.firstByte = Arrays.copyOf(result.firstByte, result.completed);
+		Arrays.sort(result.connect);
+		Arrays.sort(result.firstByte);
+		return result;
+	}
+	
+	private static void print(String name, Result result) {
+		System.out.println(String.format("%-12s %10d   %8d / %6d / %7d      %11d / %6d / %7d   %6d", name, result.connectionsPerSecond(),
+				result.percentile(result.connect, 50), result.percentile(result.connect, 99), result.percentile(result.connect, 99.9),
+				result.percentile(result.firstByte, 50), result.percentile(result.firstByte, 99), result.percentile(result.firstByte, 99.9),
+				result.errors));
+	}
+	
+	private static File createDocumentRoot() throws IOException {
+		File root = new File(System.getProperty("java.io.tmpdir"), "swift-storm-" + System.nanoTime());
+		if(!root.mkdirs()) {
+			throw new IOException("Unable to create " + root);
+		}
+		
+		File ping = new File(root, "ping.txt");
+		OutputStream out = new FileOutputStream(ping);
+		try {
+			out.write("pong\n".getBytes(ASCII));
+		} finally {
+			out.close();
+		}
+		
+		// deleted in reverse order of registration
+		root.deleteOnExit();
+		ping.deleteOnExit();
+		return root;
+	}
+	
+	/**
+	 * Opens connections one after the other while there are some left to
+	 * open, timing each.
+	 * 
+	 */
+	private static class Client implements Runnable {
+		
+		private final InetSocketAddress address;
+		
+		private final AtomicInteger remaining;
+		
+		private final CountDownLatch gate;
+		
+		final long[] connect;
+		
+		final long[] firstByte;
+		
+		int completed;
+		
+		int errors;
+		
+		Client(InetSocketAddress address, AtomicInteger remaining, CountDownLatch gate, int connections) {
+			this.address = address;
+			this.remaining = remaining;
+			this.gate = gate;
+			this.connect = new long[connections];
+			this.firstByte = new long[connections];
+		}
+		
+		@Override
+		public void run() {
+			try {
+				this.gate.await();
+			} catch(InterruptedException e) {
+				return;
+			}
+			
+			byte[] buffer = new byte[1024];
+			while(this.remaining.getAndDecrement() > 0) {
+				Socket socket = new Socket();
+				try {
+					long start = System.nanoTime();
+					socket.connect(this.address, 30000);
+					long connected = System.nanoTime();
+					
+					socket.setTcpNoDelay(true);
+					socket.getOutputStream().write(REQUEST);
+					
+					InputStream in = socket.getInputStream();
+					if(in.read() < 0) {
+						throw new IOException("Connection closed before the response");
+					}
+					
+					long received = System.nanoTime();
+					
+					// the server closes the connection after the response
+					while(in.read(buffer) >= 0) {
+						// keep reading
+					}
+					
+					this.connect[this.completed] = (connected - start) / 1000;
+					this.firstByte[this.completed] = (received - start) / 1000;
+					this.completed++;
+				} catch(IOException e) {
+					this.errors++;
+				} finally {
+					try {
+						socket.close();
+					} catch(IOException e) {
+						// nothing to do
+					}
+				}
+			}
+		}
+	
+	}
+	
+	private static class Result {
+		
+		int completed;
+		
+		int errors;
+		
+		long nanos;
+		
+		long[] connect;
+		
+		long[] firstByte;
+		
+		long connectionsPerSecond() {
+			return completed * 1000000000L / Math.max(1, nanos);
+		}
+		
+		long percentile(long[] sorted, double percentile) {
+			if(sorted.length == 0) {
+				return 0;
+			}
+			
+			int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+		}
+	
+	}
+
+}
@@ -0,0 +1,125 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.util.AsciiString;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link EntityTag}, matching our strong tags against what clients
+ * send in <code>If-Match</code> (strong comparison) and
+ * <code>If-None-Match</code> (weak comparison).
+ * 
+ * @author sangupta
+ *
+ */
+public class EntityTagTest {
+	
+	private static final String ETAG = "\"1a2b-400-5f3c\"";
+	
+	@Test
+	public void testStrongTag() {
+		assertTrue(EntityTag.matches(ETAG, ETAG, false));
+		assertTrue(EntityTag.matches(ETAG, ETAG, true));
+		assertTrue(EntityTag.matches(ETAG, new AsciiString(ETAG), false));
+		
+		assertFalse(EntityTag.matches("\"1a2b-400-5f3d\"", ETAG, true));
+		
+		// neither a prefix nor a longer tag matches
+		assertFalse(EntityTag.matches("\"1a2b-400\"", ETAG, true));
+		assertFalse(EntityTag.matches("\"1a2b-400-5f3c0\"", ETAG, true));
+		
+		// tags are compared with their quotes, and case sensitively
+		assertFalse(EntityTag.matches("1a2b-400-5f3c", ETAG, true));
+		assertFalse(EntityTag.matches("\"1A2B-400-5F3C\"", ETAG, true));
+	}
+	
+	@Test
+	public void testWeakTag() {
+		String weak = "W/" + ETAG;
+		
+		// only a weak comparison lets a weak tag match
+		assertTrue(EntityTag.matches(weak, ETAG, true));
+		assertFalse(EntityTag.matches(weak, ETAG, false));
+		
+		// the weakness indicator is case sensitive
+		assertFalse(EntityTag.matches("w/" + ETAG, ETAG, true));
+	}
+	
+	@Test
+	public void testLists() {
+		assertTrue(EntityTag.matches("\"a\", " + ETAG, ETAG, false));
+		assertTrue(EntityTag.matches(ETAG + ",\"a\"", ETAG, false));
+		assertTrue(EntityTag.matches("\"a\",\t\"b\" , " + ETAG + " ,", ETAG, false));
+		assertFalse(EntityTag.matches("\"a\", \"b\"", ETAG, true));
+		
+		// weak and strong tags mixed
+		assertTrue(EntityTag.matches("W/\"a\", W/" + ETAG, ETAG, true));
+		assertFalse(EntityTag.matches("W/\"a\", W/" + ETAG, ETAG, false));
+		assertTrue(EntityTag.matches("W/\"a\", W/" + ETAG + ", " + ETAG, ETAG, false));
+		
+		// a comma inside a tag does not split it
+		assertFalse(EntityTag.matches("\"x, " + ETAG.substring(1), ETAG, true));
+	}
+	
+	@Test
+	public void testAnyTag() {
+		assertTrue(EntityTag.matches("*", ETAG, false));
+		assertTrue(EntityTag.matches(" *", ETAG, true));
+	}
+	
+	@Test
+	public void testMalformed() {
+		assertFalse(EntityTag.matches(null, ETAG, true));
+		assertFalse(EntityTag.matches(ETAG, null, true));
+		assertFalse(EntityTag.matches("", ETAG, true));
+		assertFalse(EntityTag.matches("\"unterminated", ETAG, true));
+		assertFalse(EntityTag.matches("W/", ETAG, true));
+		
+		// malformed entries are skipped, the rest of the list still counts
+		assertTrue(EntityTag.matches("bogus, " + ETAG, ETAG, false));
+		assertTrue(EntityTag.matches("W/bogus, W/" + ETAG, ETAG, true));
+		assertFalse(EntityTag.matches("bogus", ETAG, true));
+	}
+	
+	@Test
+	public void testIfRange() {
+		assertTrue(EntityTag.isEntityTag(ETAG));
+		assertTrue(EntityTag.isEntityTag("W/" + ETAG));
+		assertFalse(EntityTag.isEntityTag("Wed, 21 Oct 2015 07:28:00 GMT"));
+	}
+	
+	@Test
+	public void testForEncoding() {
+		AsciiString encoded = EntityTag.forEncoding(new AsciiString(ETAG), new AsciiString("gzip"));
+		assertEquals("\"1a2b-400-5f3c-gzip\"", encoded.toString());
+		
+		// the encoded representation has a tag of its own
+		assertFalse(EntityTag.matches(ETAG, encoded, true));
+		assertTrue(EntityTag.matches(encoded.toString(), encoded, false));
+	}
+
+}
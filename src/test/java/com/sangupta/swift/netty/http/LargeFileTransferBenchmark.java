@@ -0,0 +1,149 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import com.sangupta.swift.SwiftServer;
+import com.sangupta.swift.netty.Transport;
+
+/**
+ * Measures how fast a large file is sent over each transport available, to
+ * make sure the zero-copy path is taken on all of them: a file region that
+ * the native transports cannot hand to <code>sendfile</code> is copied
+ * through user space instead, at a fraction of the speed.
+ * 
+ * Each transport serves the same file, fetched a few times over a single
+ * connection, and the best throughput is reported.
+ * 
+ * Run with optional arguments: file size in megabytes and fetches per
+ * transport.
+ * 
+ * @author sangupta
+ *
+ */
+public class LargeFileTransferBenchmark {
+	
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	
+	private static final int PORT = 23239;
+	
+	public static void main(String[] args) throws Exception {
+		final long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+		final int fetches = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		final long length = megabytes * 1024 * 1024;
+		
+		File root = createDocumentRoot(length);
+		
+		int port = PORT;
+		for(Transport transport : Transport.values()) {
+			if(!transport.isAvailable()) {
+				System.out.println(String.format("%-6s not available: %s", transport, transport.unavailabilityCause()));
+				continue;
+			}
+			
+			SwiftServer server = new SwiftServer().listen(port).withDocumentRoot(root).withTransport(transport);
+			
+			// completes once the port is bound
+			new HttpStaticFileServer(server).start().syncUninterruptibly();
+			
+			// warm up, the file also ends up in the page cache
+			fetch(port, length);
+			
+			long best = Long.MAX_VALUE;
+			for(int index = 0; index < fetches; index++) {
+				best = Math.min(best, fetch(port, length));
+			}
+			
+			System.out.println(String.format("%-6s %8.2f GB/s for %d MB", transport, length / (best / 1e9) / (1024 * 1024 * 1024), megabytes));
+			port++;
+		}
+		
+		System.exit(0);
+	}
+	
+	/**
+	 * Fetch the file once, checking that all of it arrives.
+	 * 
+	 * @param port
+	 * @param length
+	 * @return the time taken in nanoseconds
+	 * @throws IOException
+	 */
+	private static long fetch(int port, long length) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		try {
+			long start = System.nanoTime();
+			socket.getOutputStream().write("GET /large.bin HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(ASCII));
+			
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[256 * 1024];
+			long received = 0;
+			int read;
+			while((read = in.read(buffer)) >= 0) {
+				received += read;
+			}
+			
+			long nanos = System.nanoTime() - start;
+			if(received < length) {
+				throw new IOException("Received " + received + " bytes, expected at least " + length);
+			}
+			
+			return nanos;
+		} finally {
+			socket.close();
+		}
+	}
+	
+	private static File createDocumentRoot(long length) throws IOException {
+		File root = new File(System.getProperty("java.io.tmpdir"), "swift-large-" + System.nanoTime());
+		if(!root.mkdirs()) {
+			throw new IOException("Unable to create " + root);
+		}
+		
+		File large = new File(root, "large.bin");
+		RandomAccessFile file = new RandomAccessFile(large, "rw");
+		try {
+			byte[] block = new byte[1024 * 1024];
+			for(int index = 0; index < block.length; index++) {
+				block[index] = (byte) (index * 31);
+			}
+			
+			for(long written = 0; written < length; written += block.length) {
+				file.write(block, 0, (int) Math.min(block.length, length - written));
+			}
+		} finally {
+			file.close();
+		}
+		
+		// deleted in reverse order of registration
+		root.deleteOnExit();
+		large.deleteOnExit();
+		return root;
+	}
+
+}
@@ -0,0 +1,243 @@
+/**
+ *
+ * swift - Netty based HTTP Server
+ * Copyright (c) 2014, Sandeep Gupta
+ * 
+ * http://sangupta.com/projects/swift
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.swift.netty.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import com.sangupta.swift.SwiftServer;
+
+/**
+ * Measures how many TCP connections a revalidation heavy client needs. The
+ * workload is mostly conditional requests answered with a 304, mixed with a
+ * few 404s and directory redirects, as a browser or CDN revalidating a site
+ * would send them.
+ * 
+ * The same workload is run twice: once with the client asking for keep-alive,
+ * and once with every request carrying <code>Connection: close</code>, which
+ * is what the server used to force on all of these responses.
+ * 
+ * Run with an optional request count as the only argument.
+ * 
+ * @author sangupta
+ *
+ */
+public class RevalidationChurnBenchmark {
+	
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	
+	private static final int PORT = 23235;
+	
+	public static void main(String[] args) throws Exception {
+		final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		
+		File root = createDocumentRoot();
+		final SwiftServer server = new SwiftServer().listen(PORT).withDocumentRoot(root);
+		
+		// completes once the port is bound
+		new HttpStaticFileServer(server).start().syncUninterruptibly();
+		
+		String etag = fetchETag("/style.css");
+		
+		// warm up both paths
+		run(etag, requests / 10, true);
+		run(etag, requests / 10, false);
+		
+		Result keepAlive = run(etag, requests, true);
+		Result close = run(etag, requests, false);
+		
+		System.out.println("Requests per run:           " + requests);
+		System.out.println("keep-alive: connections " + keepAlive.connections + ", " + keepAlive.requestsPerSecond() + " req/s");
+		System.out.println("close:      connections " + close.connections + ", " + close.requestsPerSecond() + " req/s");
+		System.out.println("Connections saved:          " + (close.connections - keepAlive.connections));
+		
+		System.exit(0);
+	}
+	
+	/**
+	 * Send the workload over as few connections as the server allows.
+	 * 
+	 * @param etag
+	 * @param requests
+	 * @param keepAlive
+	 * @return
+	 * @throws IOException
+	 */
+	private static Result run(String etag, int requests, boolean keepAlive) throws IOException {
+		Result result = new Result();
+		long start = System.nanoTime();
+		
+		Socket socket = null;
+		InputStream in = null;
+		for(int index = 0; index < requests; index++) {
+			if(socket == null) {
+				socket = new Socket("localhost", PORT);
+				socket.setTcpNoDelay(true);
+				in = new BufferedInputStream(socket.getInputStream());
+				result.connections++;
+			}
+			
+			String request;
+			switch(index % 20) {
+				case 0:
+					request = "GET /missing.css HTTP/1.1\r\n";
+					break;
+				
+				case 1:
+					request = "GET /assets HTTP/1.1\r\n";
+					break;
+				
+				default:
+					request = "GET /style.css HTTP/1.1\r\nIf-None-Match: " + etag + "\r\n";
+					break;
+			}
+			
+			request += "Host: localhost\r\n";
+			if(!keepAlive) {
+				request += "Connection: close\r\n";
+			}
+			
+			request += "\r\n";
+			
+			OutputStream out = socket.getOutputStream();
+			out.write(request.getBytes(ASCII));
+			out.flush();
+			
+			String headers = readResponse(in);
+			if(headers.toLowerCase().contains("connection: close")) {
+				socket.close();
+				socket = null;
+			}
+		}
+		
+		if(socket != null) {
+			socket.close();
+		}
+		
+		result.nanos = System.nanoTime() - start;
+		result.requests = requests;
+		return result;
+	}
+	
+	/**
+	 * Read a single response, returning its headers.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	private static String readResponse(InputStream in) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+		int matched = 0;
+		while(matched < 4) {
+			int b = in.read();
+			if(b < 0) {
+				throw new IOException("Connection closed before end of headers");
+			}
+			
+			buffer.write(b);
+			if((b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3))) {
+				matched++;
+			} else {
+				matched = 0;
+			}
+		}
+		
+		String headers = new String(buffer.toByteArray(), ASCII);
+		int contentLength = 0;
+		for(String line : headers.split("\r\n")) {
+			if(line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+				contentLength = Integer.parseInt(line.substring(15).trim());
+			}
+		}
+		
+		for(int index = 0; index < contentLength; index++) {
+			if(in.read() < 0) {
+				throw new IOException("Connection closed before end of body");
+			}
+		}
+		
+		return headers;
+	}
+	
+	private static String fetchETag(String path) throws IOException {
+		Socket socket = new Socket("localhost", PORT);
+		try {
+			socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes(ASCII));
+			String headers = readResponse(socket.getInputStream());
+			for(String line : headers.split("\r\n")) {
+				if(line.regionMatches(true, 0, "ETag:", 0, 5)) {
+					return line.substring(5).trim();
+				}
+			}
+			
+			throw new IOException("No entity tag in response");
+		} finally {
+			socket.close();
+		}
+	}
+	
+	private static File createDocumentRoot() throws IOException {
+		File root = new File(System.getProperty("java.io.tmpdir"), "swift-churn-" + System.nanoTime());
+		File assets = new File(root, "assets");
+		if(!assets.mkdirs()) {
+			throw new IOException("Unable to create " + assets);
+		}
+		
+		OutputStream out = new FileOutputStream(new File(root, "style.css"));
+		try {
+			for(int index = 0; index < 200; index++) {
+				out.write("body { margin: 0; padding: 0; }\n".getBytes(ASCII));
+			}
+		} finally {
+			out.close();
+		}
+		
+		// deleted in reverse order of registration
+		root.deleteOnExit();
+		assets.deleteOnExit();
+		new File(root, "style.css").deleteOnExit();
+		return root;
+	}
+	
+	private static class Result {
+		
+		int requests;
+		
+		int connections;
+		
+		long nanos;
+		
+		long requestsPerSecond() {
+			return requests * 1000000000L / Math.max(1, nanos);
+		}
+	
+	}
+
+}